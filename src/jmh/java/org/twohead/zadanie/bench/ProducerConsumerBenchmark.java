@@ -0,0 +1,51 @@
+package org.twohead.zadanie.bench;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twohead.zadanie.model.User;
+
+/**
+ * Measures producers putting and consumers taking users of a shared
+ * {@link org.twohead.zadanie.queue.UserQueue} at the same time. The thread
+ * counts default to one producer and one consumer and are set with the JMH
+ * option {@code -tg producers,consumers}. Takes wait at most
+ * {@value #TAKE_TIMEOUT_MILLIS} ms, so consumers outpacing producers on a
+ * small backlog do not block the end of an iteration.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+
+	private static final long TAKE_TIMEOUT_MILLIS = 10;
+
+	/** Ids of the users put, above those of the backlog */
+	private static final AtomicLong IDS = new AtomicLong(Integer.MAX_VALUE / 2);
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(1)
+	public void put(UserQueueState state) throws InterruptedException, SQLException {
+		state.queue.put(UserQueueState.createUser(IDS.getAndIncrement()));
+	}
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(1)
+	public User take(UserQueueState state) throws InterruptedException, SQLException {
+		return state.queue.take(TAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,72 @@
+package org.twohead.zadanie.bench;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twohead.zadanie.model.User;
+
+/**
+ * Measures single operations of {@link org.twohead.zadanie.queue.UserQueue}
+ * against a backlog of users. Operations removing users put them back and
+ * operations adding users take them again, so the backlog keeps its size
+ * across iterations. Throughput and sampled latency percentiles are reported
+ * for every operation.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UserQueueBenchmark {
+
+	@Param({ "100" })
+	public int drainSize;
+
+	private long nextId = Integer.MAX_VALUE / 2;
+
+	@Benchmark
+	public User putTake(UserQueueState state) throws InterruptedException, SQLException {
+		state.queue.put(UserQueueState.createUser(nextId++));
+		return state.queue.take();
+	}
+
+	@Benchmark
+	public User peek(UserQueueState state) throws SQLException {
+		return state.queue.peek();
+	}
+
+	@Benchmark
+	public int size(UserQueueState state) throws SQLException {
+		return state.queue.size();
+	}
+
+	@Benchmark
+	public boolean contains(UserQueueState state) throws SQLException {
+		return state.queue.contains(state.middle);
+	}
+
+	@Benchmark
+	public Object[] toArray(UserQueueState state) throws SQLException {
+		return state.queue.toArray();
+	}
+
+	@Benchmark
+	public int drainTo(UserQueueState state) throws InterruptedException, SQLException {
+		final var drained = new ArrayList<User>(drainSize);
+		final var n = state.queue.drainTo(drained, drainSize);
+		state.refill(drained);
+		return n;
+	}
+}
@@ -0,0 +1,77 @@
+package org.twohead.zadanie.bench;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.queue.UserQueue;
+
+/**
+ * The {@link UserQueue} shared by the benchmark threads of a trial, filled with
+ * {@code backlog} users before measuring. {@code UserQueue} is a singleton, so
+ * every parameter combination needs its own fork.
+ */
+@State(Scope.Benchmark)
+public class UserQueueState {
+
+	private static final String DB_JMH = "derbyDBJmh";
+	/** Users put per transaction while filling the backlog */
+	private static final int FILL_BATCH = 1000;
+
+	@Param({ "1", "1000", "100000", "1000000" })
+	public int backlog;
+
+	@Param({ "false", "true" })
+	public boolean fair;
+
+	@Param({ "false", "true" })
+	public boolean splitLocks;
+
+	public UserQueue queue;
+	/** A user in the middle of the backlog */
+	public User middle;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException, SQLException {
+		DBUtils.init(DB_JMH, 2 * Runtime.getRuntime().availableProcessors() + 1);
+		UserQueue.init(fair, splitLocks);
+		queue = UserQueue.getInstance();
+		queue.clear();
+		final var batch = new ArrayList<User>(FILL_BATCH);
+		for (int i = 0; i < backlog; i++) {
+			final var user = createUser(i);
+			if (i == backlog / 2)
+				middle = user;
+			batch.add(user);
+			if (batch.size() == FILL_BATCH || i == backlog - 1) {
+				queue.putAll(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		DBUtils.getInstance().shutdown(true);
+	}
+
+	/**
+	 * Puts the users back, keeping the backlog at its size.
+	 */
+	public void refill(List<User> users) throws InterruptedException, SQLException {
+		if (!users.isEmpty())
+			queue.putAll(users);
+	}
+
+	static User createUser(long id) {
+		return new User(id, String.format("%032x", id), "Name" + id);
+	}
+}
@@ -0,0 +1,104 @@
+package org.twohead.zadanie.consumer;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.twohead.zadanie.queue.DBBlockingQueue;
+
+/**
+ * Consumer taking elements in batches of up to {@code batchSize}, each batch
+ * is claimed and deleted in one transaction. Batches failing to process are
+ * dead-lettered.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public abstract class AbstractBatchConsumer<E> implements Runnable {
+
+	private static final long TIME_OUT_NOT_SET = -1;
+
+	private final DBBlockingQueue<E> sharedQueue;
+	private final int batchSize;
+	private long timeout = -1;
+	private TimeUnit unit;
+
+	/**
+	 * @param sharedQueue the queue to take from
+	 * @param batchSize   the maximum number of elements per batch
+	 * @throws IllegalArgumentException if {@code batchSize} is not positive or
+	 *                                  the queue has no dead-letter table to
+	 *                                  keep failed batches
+	 */
+	public AbstractBatchConsumer(DBBlockingQueue<E> sharedQueue, int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException();
+		if (!sharedQueue.isDeadLetterSupported())
+			throw new IllegalArgumentException("Failed batches would be lost, the queue has no dead-letter table");
+		this.sharedQueue = sharedQueue;
+		this.batchSize = batchSize;
+	}
+
+	public AbstractBatchConsumer(DBBlockingQueue<E> sharedQueue, int batchSize, long timeout, TimeUnit unit) {
+		this(sharedQueue, batchSize);
+		this.timeout = timeout;
+		this.unit = unit;
+	}
+
+	protected abstract void process(List<E> batch);
+
+	/**
+	 * Called when {@link #process(List)} throws, the consumer then goes on
+	 * with the next batch. The elements are already taken from the queue, by
+	 * default they are moved to the dead-letter table of the queue, and lost
+	 * only if that fails.
+	 *
+	 * @param batch the failed batch
+	 * @param ex    the failure
+	 */
+	protected void failed(List<E> batch, RuntimeException ex) {
+		ex.printStackTrace();
+		try {
+			for (E e : batch) {
+				sharedQueue.deadLetter(e, ex);
+			}
+		} catch (SQLException ex1) {
+			ex1.printStackTrace();
+		}
+	}
+
+	protected DBBlockingQueue<E> getSharedQueue() {
+		return sharedQueue;
+	}
+
+	protected int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public void run() {
+
+		List<E> batch = null;
+		do {
+			try {
+				if (timeout == TIME_OUT_NOT_SET) {
+					batch = sharedQueue.takeBatch(batchSize);
+				} else {
+					batch = sharedQueue.takeBatch(batchSize, timeout, unit);
+				}
+				if (!batch.isEmpty()) {
+					try {
+						process(batch);
+					} catch (RuntimeException ex) {
+						failed(batch, ex);
+					}
+				}
+			} catch (InterruptedException ex) {
+				// stopped, keep the interrupt for the executor
+				Thread.currentThread().interrupt();
+				return;
+			} catch (SQLException ex1) {
+				ex1.printStackTrace();
+			}
+		} while (batch != null && !batch.isEmpty());
+	}
+}
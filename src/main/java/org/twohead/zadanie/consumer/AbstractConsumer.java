@@ -5,6 +5,14 @@ import java.util.concurrent.TimeUnit;
 
 import org.twohead.zadanie.queue.DBBlockingQueue;
 
+/**
+ * Consumer taking elements one at a time until the queue stays empty for the
+ * timeout, or without a timeout until it is interrupted. Run by a
+ * {@link ConsumerGroup} it can also be drained, taking the elements left
+ * without waiting for more. Elements failing to process are dead-lettered.
+ *
+ * @param <E> the type of elements held in the queue
+ */
 public abstract class AbstractConsumer<E> implements Runnable {
 
 	private static final long TIME_OUT_NOT_SET = -1;
@@ -13,41 +21,126 @@ public abstract class AbstractConsumer<E> implements Runnable {
 	private long timeout = -1;
 	private TimeUnit unit;
 
+	/** The thread running this consumer, guarded by this */
+	private Thread runner;
+	/** Whether the runner waits in a take, guarded by this */
+	private boolean taking;
+	/** Whether the elements left are taken without waiting, guarded by this */
+	private boolean draining;
+	/** Whether the consumer exits before its next take, guarded by this */
+	private boolean stopped;
+
+	/**
+	 * @param sharedQueue the queue to take from
+	 * @throws IllegalArgumentException if the queue has no dead-letter table
+	 *                                  to keep failed elements
+	 */
 	public AbstractConsumer(DBBlockingQueue<E> sharedQueue) {
+		if (!sharedQueue.isDeadLetterSupported())
+			throw new IllegalArgumentException("Failed elements would be lost, the queue has no dead-letter table");
 		this.sharedQueue = sharedQueue;
 	}
 
 	public AbstractConsumer(DBBlockingQueue<E> sharedQueue, long timeout, TimeUnit unit) {
-		this.sharedQueue = sharedQueue;
+		this(sharedQueue);
 		this.timeout = timeout;
 		this.unit = unit;
 	}
 
 	protected abstract void process(E e);
+
+	/**
+	 * Called when {@link #process(Object)} throws, the consumer then goes on
+	 * with the next element. The element is already taken from the queue, by
+	 * default it is moved to the dead-letter table of the queue, and lost only
+	 * if that fails. Use an {@link AbstractLeaseConsumer} to retry failed
+	 * elements.
+	 *
+	 * @param e  the failed element
+	 * @param ex the failure
+	 */
+	protected void failed(E e, RuntimeException ex) {
+		ex.printStackTrace();
+		try {
+			sharedQueue.deadLetter(e, ex);
+		} catch (SQLException ex1) {
+			ex1.printStackTrace();
+		}
+	}
 	
 	protected DBBlockingQueue<E> getSharedQueue() {
 		return sharedQueue;
 	}
 
+	/**
+	 * Makes the consumer take the elements left without waiting and exit once
+	 * the queue is empty. A runner waiting in a take is woken through the
+	 * queue rather than interrupted, so a statement the take is running
+	 * completes; one processing an element is not disturbed.
+	 */
+	synchronized void drain() {
+		draining = true;
+		if (taking)
+			sharedQueue.wakeTaker(runner);
+	}
+
+	/**
+	 * Makes the consumer exit before its next take. A runner waiting in a take
+	 * is interrupted.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (taking)
+			runner.interrupt();
+	}
+
 	@Override
 	public void run() {
 
-		E e = null;
-		do {
+		boolean drain;
+		synchronized (this) {
+			runner = Thread.currentThread();
+		}
+		while (true) {
+			synchronized (this) {
+				if (stopped)
+					return;
+				drain = draining;
+				taking = !drain;
+			}
+			E e;
 			try {
-				if (timeout == TIME_OUT_NOT_SET) {
+				if (drain) {
+					e = sharedQueue.take(0, TimeUnit.NANOSECONDS);
+				} else if (timeout == TIME_OUT_NOT_SET) {
 					e = sharedQueue.take();
 				} else {
 					e = sharedQueue.take(timeout, unit);
 				}
-				if (e != null) {
-					process(e);
-				}
 			} catch (InterruptedException ex) {
-				ex.printStackTrace();
+				synchronized (this) {
+					taking = false;
+					// woken by drain
+					if (!drain && draining && !stopped)
+						continue;
+				}
+				// stopped, keep the interrupt for the executor
+				Thread.currentThread().interrupt();
+				return;
 			} catch (SQLException ex1) {
 				ex1.printStackTrace();
+				return;
+			}
+			synchronized (this) {
+				taking = false;
+			}
+			if (e == null)
+				return;
+			try {
+				process(e);
+			} catch (RuntimeException ex) {
+				failed(e, ex);
 			}
-		} while (e != null);
+		}
 	}
 }
@@ -0,0 +1,93 @@
+package org.twohead.zadanie.consumer;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.twohead.zadanie.queue.DBBlockingQueue;
+import org.twohead.zadanie.queue.Lease;
+
+/**
+ * Consumer taking elements under a lease. The element is deleted only after
+ * {@link #process(Object)} returns, a failing process
+ * {@linkplain org.twohead.zadanie.queue.Lease#fail(Throwable) fails} it, so it is
+ * delivered again after the retry delay of the queue or dead-lettered after
+ * too many failures, and an element whose consumer dies is delivered again
+ * once its lease expires. Processing does not hold any queue lock, so consumers process in
+ * parallel.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public abstract class AbstractLeaseConsumer<E> implements Runnable {
+
+	private static final long TIME_OUT_NOT_SET = -1;
+
+	private final DBBlockingQueue<E> sharedQueue;
+	private final long visibility;
+	private final TimeUnit visibilityUnit;
+	private long timeout = -1;
+	private TimeUnit unit;
+
+	/**
+	 * @param sharedQueue    the queue to lease from
+	 * @param visibility     how long a leased element stays hidden
+	 * @param visibilityUnit the unit of {@code visibility}
+	 * @throws IllegalArgumentException if {@code visibility} is not positive or
+	 *                                  the queue does not support leases and
+	 *                                  dead letters
+	 */
+	public AbstractLeaseConsumer(DBBlockingQueue<E> sharedQueue, long visibility, TimeUnit visibilityUnit) {
+		if (visibility <= 0)
+			throw new IllegalArgumentException();
+		if (!sharedQueue.isLeaseSupported() || !sharedQueue.isDeadLetterSupported())
+			throw new IllegalArgumentException("The queue does not support leases and dead letters");
+		this.sharedQueue = sharedQueue;
+		this.visibility = visibility;
+		this.visibilityUnit = visibilityUnit;
+	}
+
+	public AbstractLeaseConsumer(DBBlockingQueue<E> sharedQueue, long visibility, TimeUnit visibilityUnit,
+			long timeout, TimeUnit unit) {
+		this(sharedQueue, visibility, visibilityUnit);
+		this.timeout = timeout;
+		this.unit = unit;
+	}
+
+	protected abstract void process(E e);
+
+	protected DBBlockingQueue<E> getSharedQueue() {
+		return sharedQueue;
+	}
+
+	@Override
+	public void run() {
+
+		Lease<E> lease = null;
+		do {
+			try {
+				if (timeout == TIME_OUT_NOT_SET) {
+					lease = sharedQueue.lease(visibility, visibilityUnit);
+				} else {
+					lease = sharedQueue.lease(visibilityUnit.toNanos(visibility), unit.toNanos(timeout),
+							TimeUnit.NANOSECONDS);
+				}
+				if (lease != null) {
+					try {
+						process(lease.getElement());
+					} catch (RuntimeException ex) {
+						ex.printStackTrace();
+						lease.fail(ex);
+						continue;
+					}
+					// false when the lease expired meanwhile, the element is then delivered again
+					lease.ack();
+				}
+			} catch (InterruptedException ex) {
+				// stopped, keep the interrupt for the executor
+				Thread.currentThread().interrupt();
+				return;
+			} catch (SQLException ex1) {
+				ex1.printStackTrace();
+			}
+		} while (lease != null);
+	}
+}
@@ -0,0 +1,169 @@
+package org.twohead.zadanie.consumer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs a number of consumers on an executor owned by the group. Consumers are
+ * stopped by {@link #shutdownNow()}, interrupting the ones waiting for an
+ * element, or drained by {@link #shutdown()}, taking the elements left before
+ * they exit.
+ *
+ * <p>
+ * Each consumer occupies a thread of the executor for as long as it runs, so
+ * the executor must run all of them at the same time. On JDK 21 and later
+ * {@link #virtualThreads()} gives every consumer a virtual thread, cheap
+ * enough for thousands of consumers whose {@code process} waits on I/O. The
+ * queue still serializes takes under its lock and the connection pool bounds
+ * the statements running at the same time.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class ConsumerGroup<E> {
+
+	private final ExecutorService executor;
+	private final List<AbstractConsumer<E>> consumers;
+	private boolean started;
+
+	/**
+	 * Creates a group of {@code size} consumers made by the factory, run by the
+	 * executor once started.
+	 *
+	 * @param executor the executor running the consumers, shut down with the
+	 *                 group
+	 * @param size     the number of consumers
+	 * @param factory  makes a new consumer per call
+	 * @throws IllegalArgumentException if {@code size} is not positive
+	 */
+	public ConsumerGroup(ExecutorService executor, int size, Supplier<? extends AbstractConsumer<E>> factory) {
+		if (size <= 0)
+			throw new IllegalArgumentException();
+		this.executor = executor;
+		final var list = new ArrayList<AbstractConsumer<E>>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(factory.get());
+		}
+		this.consumers = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Creates a group of consumers, each run by a platform thread of a fixed
+	 * pool.
+	 *
+	 * @see #ConsumerGroup(ExecutorService, int, Supplier)
+	 */
+	public static <E> ConsumerGroup<E> ofPlatformThreads(int size, Supplier<? extends AbstractConsumer<E>> factory) {
+		return new ConsumerGroup<>(platformThreads(size), size, factory);
+	}
+
+	/**
+	 * Creates a group of consumers, each run by a virtual thread.
+	 *
+	 * @throws UnsupportedOperationException if the JDK has no virtual threads
+	 * @see #ConsumerGroup(ExecutorService, int, Supplier)
+	 */
+	public static <E> ConsumerGroup<E> ofVirtualThreads(int size, Supplier<? extends AbstractConsumer<E>> factory) {
+		return new ConsumerGroup<>(virtualThreads(), size, factory);
+	}
+
+	/**
+	 * Returns a fixed pool of {@code threads} daemon platform threads.
+	 */
+	public static ExecutorService platformThreads(int threads) {
+		final var index = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			final var t = new Thread(r, "db-queue-consumer-" + index.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Returns an executor starting a virtual thread per task. Looked up
+	 * reflectively, so the code still runs on JDKs without virtual threads.
+	 *
+	 * @throws UnsupportedOperationException if the JDK has no virtual threads
+	 */
+	public static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or later", e);
+		} catch (InvocationTargetException e) {
+			// preview feature not enabled
+			throw new UnsupportedOperationException("Virtual threads are not enabled", e.getCause());
+		}
+	}
+
+	/**
+	 * Returns whether {@link #virtualThreads()} is supported by this JDK.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		try {
+			virtualThreads().shutdown();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Submits the consumers to the executor. Has no effect once started.
+	 */
+	public synchronized void start() {
+		if (started)
+			return;
+		started = true;
+		consumers.forEach(executor::execute);
+	}
+
+	/**
+	 * Drains the consumers: those waiting for an element are woken, and all of
+	 * them take the elements left without waiting and exit once the queue is
+	 * empty. Elements being processed are finished. Does not wait for the
+	 * consumers to exit, use {@link #awaitTermination(long, TimeUnit)}.
+	 */
+	public void shutdown() {
+		consumers.forEach(AbstractConsumer::drain);
+		executor.shutdown();
+	}
+
+	/**
+	 * Stops the consumers: all threads running them are interrupted and each
+	 * consumer exits before its next take, elements left stay in the queue.
+	 * Does not wait for the consumers to exit, use
+	 * {@link #awaitTermination(long, TimeUnit)}.
+	 */
+	public void shutdownNow() {
+		consumers.forEach(AbstractConsumer::stop);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Waits for all consumers to exit after a shutdown.
+	 *
+	 * @return {@code true} if they exited, {@code false} if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Returns the consumers of this group.
+	 */
+	public List<AbstractConsumer<E>> getConsumers() {
+		return consumers;
+	}
+
+	public int size() {
+		return consumers.size();
+	}
+}
@@ -0,0 +1,720 @@
+package org.twohead.zadanie.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.twohead.zadanie.metrics.LatencyHistogram;
+import org.twohead.zadanie.model.DeadLetter;
+import org.twohead.zadanie.persistance.CloseableIterator;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.persistance.ResultSetIterator;
+
+/**
+ * Reads and writes the rows of one queue table, and their dead letters. Each
+ * row holds its sequence id, the columns of its element and the lease columns,
+ * its dead letter the same element columns with the failure. Subclasses give
+ * the element columns, map them to elements and bind elements to inserts. The
+ * SQL texts name the table as {@value #TABLE}, the order of its rows as
+ * {@value #ORDER} and the table read in that order as {@value #HEADS}, they
+ * are filled in once per text.
+ *
+ * @param <E> the type of elements the rows are mapped to
+ */
+public abstract class AbstractQueueDAO<E> {
+
+	/**
+	 * Binds the element columns of a row to the first parameters of an insert.
+	 */
+	@FunctionalInterface
+	protected interface RowBinder<R> {
+		void bind(PreparedStatement ps, R row) throws SQLException;
+	}
+
+	private static final String TABLE = "{table}";
+	private static final String ORDER = "{order}";
+	private static final String HEADS = "{heads}";
+	/** The dead-letter table of the table */
+	private static final String DEAD_LETTERS = TABLE + DBUtils.DEAD_LETTER_SUFFIX;
+
+	private final String table;
+	/** The element columns, read after the sequence id */
+	private final String columns;
+	/** The number of element columns */
+	private final int columnCount;
+	/** The order of the rows in SQL */
+	private final String order;
+	/** The table read in order, with the index to read it by */
+	private final String heads;
+	/** Maps the element columns of the current row, the sequence id is in the first column */
+	private final ResultSetIterator.RowMapper<E> mapper;
+	/** Latencies of the commits of this DAO */
+	private final LatencyHistogram commits;
+	/** SQL texts with the table name filled in, by template */
+	private final Map<String, String> sqls = new ConcurrentHashMap<>();
+	/** Inserts a row into the table */
+	private final String insert;
+	/** Inserts a row into the dead-letter table */
+	private final String insertDead;
+
+	/**
+	 * Creates a DAO of the given table.
+	 *
+	 * @param table   the table name
+	 * @param commits the histogram of commit latencies
+	 * @param columns the element columns, separated by commas
+	 * @param order   the order of the rows in SQL
+	 * @param heads   the table read in order, with the index to read it by
+	 * @param mapper  maps the element columns of the current row, the sequence
+	 *                id is expected in the first column
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	protected AbstractQueueDAO(String table, LatencyHistogram commits, String columns, String order, String heads,
+			ResultSetIterator.RowMapper<E> mapper) {
+		DBUtils.checkTableName(table);
+		this.table = table;
+		this.commits = commits;
+		this.columns = columns;
+		this.order = order;
+		this.heads = heads;
+		this.mapper = mapper;
+		this.columnCount = columns.split(",").length;
+		final String params = "?" + ",?".repeat(columnCount - 1);
+		this.insert = "insert into {table} (" + columns + ") values (" + params + ")";
+		this.insertDead = "insert into " + DEAD_LETTERS + " (" + columns + ", ATTEMPTS, FAILED_AT, REASON) values ("
+				+ params + ",?,?,?)";
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * Inserts a row, its element columns bound by the binder.
+	 */
+	protected <R> void insertRow(R row, RowBinder<? super R> binder) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		try {
+			final var psInsert = prepare(conn, insert);
+			binder.bind(psInsert, row);
+			psInsert.executeUpdate();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+	}
+
+	/**
+	 * Inserts the rows in one batch, their element columns bound by the binder.
+	 */
+	protected <R> void insertRows(Collection<? extends R> rows, RowBinder<? super R> binder) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		try {
+			final var psInsert = prepare(conn, insert);
+			for (R row : rows) {
+				binder.bind(psInsert, row);
+				psInsert.addBatch();
+			}
+			psInsert.executeBatch();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+	}
+
+	/**
+	 * Deletes the head row and returns its element, or {@code null} if there is
+	 * none. The row is claimed by a delete conditional on it still being there
+	 * and not leased, so of several processes taking the same head only one
+	 * gets it, the others retry with the next head.
+	 */
+	public E extract() throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		E result = null;
+
+		try {
+			// the head is the first row in order, read through the primary key or priority index
+			final var psQueryHead = prepare(conn, "select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order} fetch first 1 rows only");
+			final var psDelete = prepare(conn, "delete from {table} where SEQ_ID = ? and LEASE_OWNER is null");
+			do {
+				DBUtils.getInstance().close(rs);
+				rs = psQueryHead.executeQuery();
+				if (rs == null || !rs.next())
+					break;
+				psDelete.setLong(1, rs.getLong(1));
+				if (psDelete.executeUpdate() == 1)
+					result = mapper.map(rs);
+				commit(conn);
+			} while (result == null);
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes up to {@code max} head rows and returns their elements in order.
+	 * Rows claimed meanwhile by another process are left out, if all of them
+	 * were the next heads are read.
+	 */
+	public List<E> extractAll(int max) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		final var result = new ArrayList<E>();
+
+		try {
+			final var psQueryHead = prepare(conn, "select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order} fetch first ? rows only");
+			psQueryHead.setInt(1, max);
+			final var psDelete = prepare(conn, "delete from {table} where SEQ_ID = ? and LEASE_OWNER is null");
+			final var read = new ArrayList<E>();
+			do {
+				read.clear();
+				DBUtils.getInstance().close(rs);
+				rs = psQueryHead.executeQuery();
+				while (rs != null && rs.next()) {
+					read.add(mapper.map(rs));
+					psDelete.setLong(1, rs.getLong(1));
+					psDelete.addBatch();
+				}
+				if (read.isEmpty())
+					break;
+				final var deleted = psDelete.executeBatch();
+				for (int i = 0; i < deleted.length; i++) {
+					if (deleted[i] == 1)
+						result.add(read.get(i));
+				}
+				commit(conn);
+			} while (result.isEmpty());
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	public E itemAt(int i) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		E result = null;
+
+		try {
+			final var psQueryHead = prepare(conn, "select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order} offset ? rows fetch next 1 rows only");
+			psQueryHead.setInt(1, i);
+			rs = psQueryHead.executeQuery();
+			if (rs != null && rs.next()) {
+				result = mapper.map(rs);
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	public List<E> itemsAt(int from, int max) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		final var result = new ArrayList<E>();
+
+		try {
+			final var psQuery = prepare(conn, "select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order} offset ? rows fetch next ? rows only");
+			psQuery.setInt(1, from);
+			psQuery.setInt(2, max);
+			rs = psQuery.executeQuery();
+			while (rs != null && rs.next()) {
+				result.add(mapper.map(rs));
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	public CloseableIterator<E> cursor(int fetchSize) throws SQLException {
+		return cursor(fetchSize, mapper);
+	}
+
+	/**
+	 * Opens a cursor like {@link #cursor(int)} returning every row with its
+	 * sequence id, the key of {@link #remove(long)}.
+	 */
+	public CloseableIterator<Map.Entry<Long, E>> keyedCursor(int fetchSize) throws SQLException {
+		return cursor(fetchSize, rs -> Map.entry(rs.getLong(1), mapper.map(rs)));
+	}
+
+	private <T> CloseableIterator<T> cursor(int fetchSize, ResultSetIterator.RowMapper<T> rowMapper)
+			throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		PreparedStatement psQuery = null;
+
+		try {
+			psQuery = conn.prepareStatement(sql("select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order}"),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			psQuery.setFetchSize(fetchSize);
+			return new ResultSetIterator<>(conn, psQuery, rowMapper);
+		} catch (SQLException | RuntimeException e) {
+			try {
+				DBUtils.getInstance().close(psQuery);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+			throw e;
+		}
+	}
+
+	public int count() throws SQLException {
+		return count("select count(*) from {table} where LEASE_OWNER is null");
+	}
+
+	/**
+	 * Removes the row at the given position unless it was leased or removed
+	 * meanwhile.
+	 *
+	 * @return {@code true} if a row was removed
+	 */
+	public boolean removeItemAt(int i) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		int changed = 0;
+
+		try {
+			final var psQueryHead = prepare(conn, "select SEQ_ID from {heads} "
+					+ "where LEASE_OWNER is null order by {order} offset ? rows fetch next 1 rows only");
+			psQueryHead.setInt(1, i);
+			rs = psQueryHead.executeQuery();
+			if (rs != null && rs.next()) {
+				final var psDelete = prepare(conn, "delete from {table} where SEQ_ID = ? and LEASE_OWNER is null");
+				psDelete.setLong(1, rs.getLong(1));
+				changed = psDelete.executeUpdate();
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return changed == 1;
+	}
+
+	/**
+	 * Removes the row with the given sequence id unless it was leased or
+	 * removed meanwhile.
+	 *
+	 * @return {@code true} if the row was removed
+	 */
+	public boolean remove(long seqId) throws SQLException {
+		return executeKeyed("delete from {table} where SEQ_ID = ? and LEASE_OWNER is null", seqId);
+	}
+
+	/**
+	 * Removes the first {@code n} rows not leased in one statement, bounded by
+	 * the sequence id of the {@code n}-th row. Tables ordered by more than the
+	 * sequence id override this.
+	 */
+	public void removeHead(int n) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+
+		try {
+			// the n-th row bounds the head, everything up to its key goes
+			final var psQueryLast = prepare(conn, "select SEQ_ID from {heads} "
+					+ "where LEASE_OWNER is null order by {order} offset ? rows fetch next 1 rows only");
+			psQueryLast.setInt(1, n - 1);
+			rs = psQueryLast.executeQuery();
+			if (rs != null && rs.next()) {
+				final var psDelete = prepare(conn, "delete from {table} where SEQ_ID <= ? and LEASE_OWNER is null");
+				psDelete.setLong(1, rs.getLong(1));
+				psDelete.executeUpdate();
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+	}
+
+	/**
+	 * Marks the first row not leased yet as leased by the owner until the
+	 * deadline and returns its element, or {@code null} if there is none. Like
+	 * {@link #extract()} the row is claimed by a conditional update.
+	 */
+	public E lease(String owner, long deadline) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		E result = null;
+
+		try {
+			final var psQueryHead = prepare(conn, "select SEQ_ID, " + columns + " from {heads} "
+					+ "where LEASE_OWNER is null order by {order} fetch first 1 rows only");
+			final var psLease = prepare(conn, "update {table} "
+					+ "set LEASE_OWNER = ?, LEASE_DEADLINE = ? where SEQ_ID = ? and LEASE_OWNER is null");
+			do {
+				DBUtils.getInstance().close(rs);
+				rs = psQueryHead.executeQuery();
+				if (rs == null || !rs.next())
+					break;
+				psLease.setString(1, owner);
+				psLease.setLong(2, deadline);
+				psLease.setLong(3, rs.getLong(1));
+				if (psLease.executeUpdate() == 1)
+					result = mapper.map(rs);
+				commit(conn);
+			} while (result == null);
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the row leased by the owner.
+	 *
+	 * @return {@code false} if the owner holds no lease any more
+	 */
+	public boolean ack(String owner) throws SQLException {
+		return executeKeyed("delete from {table} where LEASE_OWNER = ?", owner);
+	}
+
+	/**
+	 * Releases the row leased by the owner, it becomes visible again at its
+	 * original position.
+	 *
+	 * @return {@code false} if the owner holds no lease any more
+	 */
+	public boolean nack(String owner) throws SQLException {
+		return executeKeyed("update {table} set LEASE_OWNER = null, LEASE_DEADLINE = null "
+				+ "where LEASE_OWNER = ?", owner);
+	}
+
+	/**
+	 * Releases all rows whose lease deadline is before {@code now}.
+	 *
+	 * @return the number of released rows
+	 */
+	public int releaseExpired(long now) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		int released = 0;
+
+		try {
+			final var psRelease = prepare(conn, "update {table} "
+					+ "set LEASE_OWNER = null, LEASE_DEADLINE = null "
+					+ "where LEASE_OWNER is not null and LEASE_DEADLINE < ?");
+			psRelease.setLong(1, now);
+			released = psRelease.executeUpdate();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+		return released;
+	}
+
+	public int countLeased() throws SQLException {
+		return count("select count(*) from {table} where LEASE_OWNER is not null");
+	}
+
+	/**
+	 * Counts a failed attempt to process the row leased by the owner.
+	 *
+	 * @return the failed attempts of the row so far, 0 if the owner holds no
+	 *         lease any more
+	 */
+	public int fail(String owner) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		int result = 0;
+
+		try {
+			final var psFail = prepare(conn, "update {table} set ATTEMPTS = ATTEMPTS + 1 where LEASE_OWNER = ?");
+			psFail.setString(1, owner);
+			if (psFail.executeUpdate() == 1) {
+				final var psQuery = prepare(conn, "select ATTEMPTS from {table} where LEASE_OWNER = ?");
+				psQuery.setString(1, owner);
+				rs = psQuery.executeQuery();
+				if (rs != null && rs.next()) {
+					result = rs.getInt(1);
+				}
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keeps the row leased by the owner hidden until {@code notBefore}, it is
+	 * then released like an expired lease.
+	 *
+	 * @return {@code false} if the owner holds no lease any more
+	 */
+	public boolean retry(String owner, long notBefore) throws SQLException {
+		return executeKeyed("update {table} set LEASE_DEADLINE = ? where LEASE_OWNER = ?", notBefore, owner);
+	}
+
+	/**
+	 * Moves the row leased by the owner to the dead-letter table in one
+	 * transaction.
+	 *
+	 * @return {@code false} if the owner holds no lease any more
+	 */
+	public boolean deadLetter(String owner, String reason, long failedAt) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		boolean moved = false;
+
+		try {
+			final var psCopy = prepare(conn, "insert into " + DEAD_LETTERS
+					+ " (" + columns + ", ATTEMPTS, FAILED_AT, REASON) "
+					+ "select " + columns + ", ATTEMPTS, cast(? as bigint), cast(? as varchar("
+					+ DBUtils.MAX_REASON_LENGTH + ")) from {table} where LEASE_OWNER = ?");
+			psCopy.setLong(1, failedAt);
+			psCopy.setString(2, reason);
+			psCopy.setString(3, owner);
+			if (psCopy.executeUpdate() == 1) {
+				final var psDelete = prepare(conn, "delete from {table} where LEASE_OWNER = ?");
+				psDelete.setString(1, owner);
+				moved = psDelete.executeUpdate() == 1;
+			}
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+		return moved;
+	}
+
+	/**
+	 * Adds a row taken from the table to the dead-letter table, its element
+	 * columns bound by the binder.
+	 */
+	protected <R> void insertDeadRow(R row, RowBinder<? super R> binder, int attempts, String reason, long failedAt)
+			throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		try {
+			final var psInsert = prepare(conn, insertDead);
+			binder.bind(psInsert, row);
+			psInsert.setInt(columnCount + 1, attempts);
+			psInsert.setLong(columnCount + 2, failedAt);
+			psInsert.setString(columnCount + 3, reason);
+			psInsert.executeUpdate();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+	}
+
+	public int countDeadLetters() throws SQLException {
+		return count("select count(*) from " + DEAD_LETTERS);
+	}
+
+	/**
+	 * Returns up to {@code max} of the oldest dead letters.
+	 */
+	public List<DeadLetter<E>> deadLetters(int max) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		final var result = new ArrayList<DeadLetter<E>>();
+
+		try {
+			final var psQuery = prepare(conn, "select SEQ_ID, " + columns + ", ATTEMPTS, REASON, FAILED_AT from "
+					+ DEAD_LETTERS + " order by SEQ_ID fetch first ? rows only");
+			psQuery.setInt(1, max);
+			rs = psQuery.executeQuery();
+			while (rs != null && rs.next()) {
+				result.add(new DeadLetter<>(rs.getLong(1), mapper.map(rs), rs.getInt("ATTEMPTS"),
+						rs.getString("REASON"), rs.getLong("FAILED_AT")));
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Moves up to {@code max} of the oldest dead letters back to the end of
+	 * the table in one transaction, with their attempts reset.
+	 *
+	 * @return the number of replayed dead letters
+	 */
+	public int replayDeadLetters(int max) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		int replayed = 0;
+
+		try {
+			final var psQuery = prepare(conn, "select SEQ_ID from " + DEAD_LETTERS
+					+ " order by SEQ_ID fetch first ? rows only");
+			psQuery.setInt(1, max);
+			final var psCopy = prepare(conn, "insert into {table} (" + columns + ") select " + columns + " from "
+					+ DEAD_LETTERS + " where SEQ_ID = ?");
+			final var psDelete = prepare(conn, "delete from " + DEAD_LETTERS + " where SEQ_ID = ?");
+			rs = psQuery.executeQuery();
+			while (rs != null && rs.next()) {
+				psCopy.setLong(1, rs.getLong(1));
+				psCopy.addBatch();
+				psDelete.setLong(1, rs.getLong(1));
+				psDelete.addBatch();
+				replayed++;
+			}
+			if (replayed > 0) {
+				psCopy.executeBatch();
+				psDelete.executeBatch();
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return replayed;
+	}
+
+	public void clearTable() throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		try {
+			prepare(conn, "delete from {table}").executeUpdate();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+	}
+
+	/**
+	 * Returns whether the query with the given key parameter finds any row.
+	 */
+	protected boolean exists(String sql, Object key) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		boolean result = false;
+
+		try {
+			final var psQuery = prepare(conn, sql);
+			psQuery.setObject(1, key);
+			rs = psQuery.executeQuery();
+			result = rs != null && rs.next();
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Executes a delete or update with the given key parameters and returns
+	 * whether it changed any row.
+	 */
+	protected boolean executeKeyed(String sql, Object... keys) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		int changed = 0;
+
+		try {
+			final var psUpdate = prepare(conn, sql);
+			for (int i = 0; i < keys.length; i++) {
+				psUpdate.setObject(i + 1, keys[i]);
+			}
+			changed = psUpdate.executeUpdate();
+			commit(conn);
+		} finally {
+			DBUtils.getInstance().release(conn);
+		}
+		return changed > 0;
+	}
+
+	/**
+	 * Returns the count read by the query, -1 if it returns no row.
+	 */
+	private int count(String sql) throws SQLException {
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+		int result = -1;
+
+		try {
+			final var psQuery = prepare(conn, sql);
+			rs = psQuery.executeQuery();
+			if (rs != null && rs.next()) {
+				result = rs.getInt(1);
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Commits the transaction of the connection, recording its latency.
+	 */
+	protected void commit(Connection conn) throws SQLException {
+		final long start = System.nanoTime();
+		conn.commit();
+		commits.recordSince(start);
+	}
+
+	/**
+	 * Returns the cached statement for the SQL template of this table.
+	 */
+	protected PreparedStatement prepare(Connection conn, String template) throws SQLException {
+		return DBUtils.getInstance().prepare(conn, sql(template));
+	}
+
+	private String sql(String template) {
+		return sqls.computeIfAbsent(template, t -> t.replace(HEADS, heads).replace(TABLE, table).replace(ORDER, order));
+	}
+}
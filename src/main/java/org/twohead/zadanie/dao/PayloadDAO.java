@@ -0,0 +1,150 @@
+package org.twohead.zadanie.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import org.twohead.zadanie.metrics.LatencyHistogram;
+import org.twohead.zadanie.persistance.DBUtils;
+
+/**
+ * Reads and writes encoded elements of one table with the layout created by
+ * {@link DBUtils#createPayloadTable(String)}, each row holding its sequence id
+ * and the element as a binary payload, and their dead letters. Rows are
+ * ordered by sequence id, or for a prioritized table by descending priority
+ * first.
+ */
+public class PayloadDAO extends AbstractQueueDAO<byte[]> {
+
+	private static final String COLUMNS = "PAYLOAD, PRIORITY";
+
+	/** Whether rows are ordered by priority first */
+	private final boolean prioritized;
+
+	/**
+	 * Creates a DAO of the given payload table.
+	 *
+	 * @param table the table name
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public PayloadDAO(String table) {
+		this(table, new LatencyHistogram());
+	}
+
+	/**
+	 * Creates a DAO of the given payload table recording the latencies of its
+	 * commits.
+	 *
+	 * @param table   the table name
+	 * @param commits the histogram of commit latencies
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public PayloadDAO(String table, LatencyHistogram commits) {
+		this(table, commits, false);
+	}
+
+	/**
+	 * Creates a DAO of the given payload table recording the latencies of its
+	 * commits.
+	 *
+	 * @param table       the table name
+	 * @param commits     the histogram of commit latencies
+	 * @param prioritized whether rows are taken in priority order, the table
+	 *                    then needs the index of
+	 *                    {@link DBUtils#createPayloadTable(String, boolean)}
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public PayloadDAO(String table, LatencyHistogram commits, boolean prioritized) {
+		// the optimizer would rather scan and sort than use the priority index for a single row
+		super(table, commits, COLUMNS, prioritized ? "PRIORITY desc, SEQ_ID" : "SEQ_ID",
+				prioritized ? table + " --DERBY-PROPERTIES index=" + table.toUpperCase() + "_PRIORITY\n" : table,
+				PayloadDAO::toPayload);
+		this.prioritized = prioritized;
+	}
+
+	public void insert(byte[] payload) throws SQLException {
+		insert(payload, 0);
+	}
+
+	public void insert(byte[] payload, int priority) throws SQLException {
+		insertRow(Map.entry(payload, priority), PayloadDAO::bind);
+	}
+
+	public void insertAll(Collection<byte[]> payloads) throws SQLException {
+		insertAll(payloads, null);
+	}
+
+	/**
+	 * Inserts the payloads with the priorities at the same positions, all of
+	 * priority 0 if {@code priorities} is {@code null}.
+	 */
+	public void insertAll(Collection<byte[]> payloads, int[] priorities) throws SQLException {
+		final var rows = new ArrayList<Map.Entry<byte[], Integer>>(payloads.size());
+		int i = 0;
+		for (byte[] payload : payloads) {
+			rows.add(Map.entry(payload, (priorities == null) ? 0 : priorities[i++]));
+		}
+		insertRows(rows, PayloadDAO::bind);
+	}
+
+	/**
+	 * Removes the first {@code n} rows not leased in one statement. In a
+	 * prioritized table the {@code n}-th row bounds them by its priority and
+	 * sequence id.
+	 */
+	@Override
+	public void removeHead(int n) throws SQLException {
+		if (!prioritized) {
+			super.removeHead(n);
+			return;
+		}
+		final var conn = DBUtils.getInstance().borrowConnection();
+		ResultSet rs = null;
+
+		try {
+			final var psQueryLast = prepare(conn, "select SEQ_ID, PRIORITY from {heads} "
+					+ "where LEASE_OWNER is null order by {order} offset ? rows fetch next 1 rows only");
+			psQueryLast.setInt(1, n - 1);
+			rs = psQueryLast.executeQuery();
+			if (rs != null && rs.next()) {
+				final var psDelete = prepare(conn, "delete from {table} where (PRIORITY > ? "
+						+ "or PRIORITY = ? and SEQ_ID <= ?) and LEASE_OWNER is null");
+				psDelete.setInt(1, rs.getInt(2));
+				psDelete.setInt(2, rs.getInt(2));
+				psDelete.setLong(3, rs.getLong(1));
+				psDelete.executeUpdate();
+			}
+			commit(conn);
+		} finally {
+			try {
+				DBUtils.getInstance().close(rs);
+			} finally {
+				DBUtils.getInstance().release(conn);
+			}
+		}
+	}
+
+	/**
+	 * Adds a payload taken from the table to the dead-letter table.
+	 */
+	public void insertDeadLetter(byte[] payload, int priority, int attempts, String reason, long failedAt)
+			throws SQLException {
+		insertDeadRow(Map.entry(payload, priority), PayloadDAO::bind, attempts, reason, failedAt);
+	}
+
+	private static void bind(PreparedStatement ps, Map.Entry<byte[], Integer> row) throws SQLException {
+		ps.setBytes(1, row.getKey());
+		ps.setInt(2, row.getValue());
+	}
+
+	/**
+	 * Returns the payload of the current row, the sequence id is expected in
+	 * the first column.
+	 */
+	private static byte[] toPayload(ResultSet rs) throws SQLException {
+		return rs.getBytes(2);
+	}
+}
@@ -3,137 +3,95 @@ package org.twohead.zadanie.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collection;
 
+import org.twohead.zadanie.metrics.LatencyHistogram;
 import org.twohead.zadanie.model.User;
 import org.twohead.zadanie.persistance.DBUtils;
 
-public class UserDAO {
+/**
+ * Reads and writes users of one table with the layout created by
+ * {@link DBUtils#createUserTable(String)}, and their dead letters. Rows are
+ * ordered by sequence id.
+ */
+public class UserDAO extends AbstractQueueDAO<User> {
+
+	private static final String COLUMNS = "user_ID, USER_GUID, USER_NAME";
+
+	/**
+	 * Creates a DAO of the default user table.
+	 */
+	public UserDAO() {
+		this(DBUtils.USER_TABLE);
+	}
+
+	/**
+	 * Creates a DAO of the given user table.
+	 *
+	 * @param table the table name
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public UserDAO(String table) {
+		this(table, new LatencyHistogram());
+	}
+
+	/**
+	 * Creates a DAO of the given user table recording the latencies of its
+	 * commits.
+	 *
+	 * @param table   the table name
+	 * @param commits the histogram of commit latencies
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public UserDAO(String table, LatencyHistogram commits) {
+		// the head is the lowest sequence id, read through the primary key index
+		super(table, commits, COLUMNS, "SEQ_ID", table, UserDAO::toUser);
+	}
+
 	public void insert(User user) throws SQLException {
-		
-		final var conn = DBUtils.getInstance().getConnection();
-
-		PreparedStatement psInsert = null;
-
-		try {
-			final var sb = new StringBuilder();
-			sb.append("insert into suser (user_ID,USER_GUID,USER_NAME) values (");
-			sb.append(user.getUserId());
-			sb.append(",'");
-			sb.append(user.getUserGuid());
-			sb.append("','");
-			sb.append(user.getName());
-			sb.append("')");
-
-			psInsert = conn.prepareStatement(sb.toString());
-			psInsert.executeUpdate();
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(psInsert);
-		}
+		insertRow(user, UserDAO::bind);
+	}
+
+	public void insertAll(Collection<? extends User> users) throws SQLException {
+		insertRows(users, UserDAO::bind);
 	}
 
-	public User extract() throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		PreparedStatement psQueryHead = null;
-		ResultSet rs = null;
-		User result = null;
-
-		try {
-			psQueryHead = conn.prepareStatement("select * from suser fetch next 1 rows only",
-					ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-			rs = psQueryHead.executeQuery();
-			if (rs != null && rs.next()) {
-				result = new User(rs.getLong(1), rs.getString(2), rs.getString(3));
-				rs.deleteRow();
-			}
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(rs);
-			DBUtils.getInstance().close(psQueryHead);
-		}
-		return result;
+	public boolean containsUserId(long userId) throws SQLException {
+		return exists("select 1 from {table} where user_ID = ? and LEASE_OWNER is null fetch first 1 rows only", userId);
 	}
-	
-	public User itemAt(int i) throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		PreparedStatement psQueryHead = null;
-		ResultSet rs = null;
-		User result = null;
-
-		try {
-			final var sb = new StringBuilder();
-			sb.append("select * from suser offset "); 
-			sb.append(i);
-			sb.append(" rows fetch next 1 rows only");
-			psQueryHead = conn.prepareStatement(sb.toString(),
-					ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-			rs = psQueryHead.executeQuery();
-			if (rs != null && rs.next()) {
-				result = new User(rs.getLong(1), rs.getString(2), rs.getString(3));
-			}
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(rs);
-			DBUtils.getInstance().close(psQueryHead);
-		}
-		return result;
+
+	public boolean containsUserGuid(String userGuid) throws SQLException {
+		return exists("select 1 from {table} where USER_GUID = ? and LEASE_OWNER is null fetch first 1 rows only", userGuid);
 	}
-	
-	public int count() throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		PreparedStatement psQueryHead = null;
-		ResultSet rs = null;
-		int result = -1;
-
-		try {
-			psQueryHead = conn.prepareStatement("select count(*) from suser",
-					ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-			rs = psQueryHead.executeQuery();
-			if (rs != null && rs.next()) {
-				result = rs.getInt(1);
-			}
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(rs);
-			DBUtils.getInstance().close(psQueryHead);
-		}
-		return result;
+
+	public boolean removeFirstByUserId(long userId) throws SQLException {
+		return executeKeyed("delete from {table} where SEQ_ID = "
+				+ "(select min(SEQ_ID) from {table} where user_ID = ? and LEASE_OWNER is null)", userId);
 	}
-	
-	public void removeItemAt(int i) throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		PreparedStatement psQueryHead = null;
-		ResultSet rs = null;
-
-		try {
-			final var sb = new StringBuilder();
-			sb.append("select * from suser offset "); 
-			sb.append(i);
-			sb.append(" rows fetch next 1 rows only");
-			psQueryHead = conn.prepareStatement(sb.toString(),
-					ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-			rs = psQueryHead.executeQuery();
-			System.out.println(sb);
-			if (rs != null && rs.next()) {
-				rs.deleteRow();
-			}
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(rs);
-			DBUtils.getInstance().close(psQueryHead);
-		}
+
+	public boolean removeFirstByUserGuid(String userGuid) throws SQLException {
+		return executeKeyed("delete from {table} where SEQ_ID = "
+				+ "(select min(SEQ_ID) from {table} where USER_GUID = ? and LEASE_OWNER is null)", userGuid);
 	}
-	
-	public void clearTable() throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		Statement stm = null;
-		try {
-			stm = conn.createStatement();
-			stm.executeUpdate("delete from suser");
-			conn.commit();
-		} finally {
-			DBUtils.getInstance().close(stm);
-		}
+
+	/**
+	 * Adds a user taken from the table to the dead-letter table.
+	 */
+	public void insertDeadLetter(User user, int attempts, String reason, long failedAt) throws SQLException {
+		insertDeadRow(user, UserDAO::bind, attempts, reason, failedAt);
+	}
+
+	private static void bind(PreparedStatement ps, User user) throws SQLException {
+		ps.setLong(1, user.getUserId());
+		ps.setString(2, user.getUserGuid());
+		ps.setString(3, user.getName());
+	}
+
+	/**
+	 * Maps the user columns of the current row, the sequence id is expected in
+	 * the first column.
+	 */
+	private static User toUser(ResultSet rs) throws SQLException {
+		return new User(rs.getLong(2), rs.getString(3), rs.getString(4));
 	}
 }
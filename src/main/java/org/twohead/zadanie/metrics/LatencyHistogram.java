@@ -0,0 +1,135 @@
+package org.twohead.zadanie.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in nanoseconds in log-linear buckets: every power of two
+ * is split into {@value #SUB_BUCKETS} buckets, so a percentile is off by at
+ * most 1/{@value #SUB_BUCKETS} of its value. Recording only increments
+ * preallocated counters and allocates nothing, percentiles are computed when
+ * read. Reads run concurrently with recording and see it partially.
+ */
+public class LatencyHistogram {
+
+	/** Number of buckets per power of two */
+	private static final int SUB_BUCKETS = 8;
+	/** log2 of SUB_BUCKETS */
+	private static final int SUB_BITS = 3;
+	/** Buckets of the values below SUB_BUCKETS, one per value, and of all larger powers of two */
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the time elapsed since {@code startNanos}, a value of
+	 * {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records a latency, negative values count as 0.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+			;
+	}
+
+	/**
+	 * Returns the number of recorded latencies.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean latency in nanoseconds, 0 if none was recorded.
+	 */
+	public double getMean() {
+		final long n = count.sum();
+		return (n == 0) ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the longest latency in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the latency in nanoseconds which the given fraction of the
+	 * recorded latencies do not exceed, as the upper bound of its bucket. 0 if
+	 * none was recorded.
+	 *
+	 * @param quantile the fraction, between 0 and 1
+	 * @throws IllegalArgumentException if {@code quantile} is out of range
+	 */
+	public long getPercentile(double quantile) {
+		if (!(quantile >= 0 && quantile <= 1))
+			throw new IllegalArgumentException();
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the count, mean and usual percentiles.
+	 */
+	public LatencySnapshot snapshot() {
+		return new LatencySnapshot(getCount(), getMean(), getPercentile(0.5), getPercentile(0.9),
+				getPercentile(0.99), getPercentile(0.999), getMax());
+	}
+
+	/**
+	 * Forgets all recorded latencies. Latencies recorded meanwhile may be
+	 * partially kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
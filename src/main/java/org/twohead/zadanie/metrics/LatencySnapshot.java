@@ -0,0 +1,65 @@
+package org.twohead.zadanie.metrics;
+
+/**
+ * Count, mean and percentiles of a {@link LatencyHistogram} at one point in
+ * time, in microseconds. Exposed over JMX as composite data.
+ */
+public final class LatencySnapshot {
+
+	private static final double NANOS_PER_MICRO = 1000.0;
+
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p90;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	/**
+	 * Creates a snapshot of latencies given in nanoseconds.
+	 */
+	public LatencySnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMicros() {
+		return mean / NANOS_PER_MICRO;
+	}
+
+	public double getP50Micros() {
+		return p50 / NANOS_PER_MICRO;
+	}
+
+	public double getP90Micros() {
+		return p90 / NANOS_PER_MICRO;
+	}
+
+	public double getP99Micros() {
+		return p99 / NANOS_PER_MICRO;
+	}
+
+	public double getP999Micros() {
+		return p999 / NANOS_PER_MICRO;
+	}
+
+	public double getMaxMicros() {
+		return max / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count,
+				getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+	}
+}
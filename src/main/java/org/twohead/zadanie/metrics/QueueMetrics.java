@@ -0,0 +1,253 @@
+package org.twohead.zadanie.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one queue, published over JMX once
+ * {@linkplain #register(String) registered}. Recording allocates nothing, so
+ * it can stay enabled on the hot path; rates and percentiles are computed
+ * when read.
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+
+	/** Domain of the registered names */
+	public static final String DOMAIN = "org.twohead.zadanie";
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	private final LongAdder puts = new LongAdder();
+	private final LongAdder takes = new LongAdder();
+	private final LatencyHistogram putLatency = new LatencyHistogram();
+	private final LatencyHistogram takeLatency = new LatencyHistogram();
+	private final LatencyHistogram peekLatency = new LatencyHistogram();
+	private final LatencyHistogram sizeLatency = new LatencyHistogram();
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final LatencyHistogram lockHold = new LatencyHistogram();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+	private final IntSupplier depth;
+	private final IntSupplier waitingTakers;
+
+	/** Time and counts of the last rate sample, guarded by this */
+	private long sampleNanos = System.nanoTime();
+	private long samplePuts;
+	private long sampleTakes;
+	private double putRate;
+	private double takeRate;
+
+	/** The registered name, guarded by this */
+	private ObjectName name;
+
+	/**
+	 * Creates metrics reading the current depth and waiting takers from the
+	 * queue.
+	 *
+	 * @param depth         returns the number of elements
+	 * @param waitingTakers returns the number of waiting takes
+	 */
+	public QueueMetrics(IntSupplier depth, IntSupplier waitingTakers) {
+		this.depth = depth;
+		this.waitingTakers = waitingTakers;
+	}
+
+	/**
+	 * Records a put of {@code n} elements which started at {@code startNanos}.
+	 */
+	public void recordPut(int n, long startNanos) {
+		putLatency.recordSince(startNanos);
+		puts.add(n);
+	}
+
+	/**
+	 * Records a take of {@code n} elements which started at
+	 * {@code startNanos}.
+	 */
+	public void recordTake(int n, long startNanos) {
+		takeLatency.recordSince(startNanos);
+		takes.add(n);
+	}
+
+	/**
+	 * Records a peek which started at {@code startNanos}.
+	 */
+	public void recordPeek(long startNanos) {
+		peekLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Records a size query which started at {@code startNanos}.
+	 */
+	public void recordSize(long startNanos) {
+		sizeLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Returns the histogram of the times spent waiting for the main lock.
+	 */
+	public LatencyHistogram getLockWaitHistogram() {
+		return lockWait;
+	}
+
+	/**
+	 * Returns the histogram of the times the main lock was held.
+	 */
+	public LatencyHistogram getLockHoldHistogram() {
+		return lockHold;
+	}
+
+	/**
+	 * Returns the histogram of commit latencies, filled by the DAO of the
+	 * queue.
+	 */
+	public LatencyHistogram getCommitHistogram() {
+		return commitLatency;
+	}
+
+	@Override
+	public long getPutCount() {
+		return puts.sum();
+	}
+
+	@Override
+	public long getTakeCount() {
+		return takes.sum();
+	}
+
+	@Override
+	public double getPutsPerSecond() {
+		sampleRates();
+		synchronized (this) {
+			return putRate;
+		}
+	}
+
+	@Override
+	public double getTakesPerSecond() {
+		sampleRates();
+		synchronized (this) {
+			return takeRate;
+		}
+	}
+
+	/**
+	 * Computes the rates since the last sample once it is a second old.
+	 */
+	private synchronized void sampleRates() {
+		final long now = System.nanoTime();
+		final long elapsed = now - sampleNanos;
+		if (elapsed < NANOS_PER_SECOND)
+			return;
+		final long p = puts.sum();
+		final long t = takes.sum();
+		putRate = (double) (p - samplePuts) * NANOS_PER_SECOND / elapsed;
+		takeRate = (double) (t - sampleTakes) * NANOS_PER_SECOND / elapsed;
+		samplePuts = p;
+		sampleTakes = t;
+		sampleNanos = now;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth.getAsInt();
+	}
+
+	@Override
+	public int getWaitingTakers() {
+		return waitingTakers.getAsInt();
+	}
+
+	@Override
+	public LatencySnapshot getPutLatency() {
+		return putLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getTakeLatency() {
+		return takeLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getPeekLatency() {
+		return peekLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getSizeLatency() {
+		return sizeLatency.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getLockWait() {
+		return lockWait.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getLockHold() {
+		return lockHold.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getCommitLatency() {
+		return commitLatency.snapshot();
+	}
+
+	@Override
+	public void reset() {
+		putLatency.reset();
+		takeLatency.reset();
+		peekLatency.reset();
+		sizeLatency.reset();
+		lockWait.reset();
+		lockHold.reset();
+		commitLatency.reset();
+		synchronized (this) {
+			sampleNanos = System.nanoTime();
+			samplePuts = puts.sum();
+			sampleTakes = takes.sum();
+			putRate = 0;
+			takeRate = 0;
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server as
+	 * {@code org.twohead.zadanie:type=QueueMetrics,name=<name>}, replacing
+	 * an earlier registration of them.
+	 *
+	 * @param name the queue name, unique among the registered queues
+	 * @return the registered name
+	 * @throws JMException if the name is malformed or taken by other metrics
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		final var named = new ObjectName(DOMAIN + ":type=QueueMetrics,name=" + name);
+		unregister();
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, named);
+		this.name = named;
+		return named;
+	}
+
+	/**
+	 * Removes the registration of these metrics, if any.
+	 *
+	 * @throws JMException if the registration was removed by someone else
+	 */
+	public synchronized void unregister() throws JMException {
+		if (name == null)
+			return;
+		final var registered = name;
+		name = null;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+	}
+
+	/**
+	 * Returns the registered name, {@code null} unless registered.
+	 */
+	public synchronized ObjectName getObjectName() {
+		return name;
+	}
+}
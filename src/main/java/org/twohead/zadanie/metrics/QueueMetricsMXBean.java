@@ -0,0 +1,50 @@
+package org.twohead.zadanie.metrics;
+
+/**
+ * Management interface of {@link QueueMetrics}. Latencies are given as
+ * composite data of {@link LatencySnapshot}, in microseconds.
+ */
+public interface QueueMetricsMXBean {
+
+	/** Returns the number of elements put so far */
+	long getPutCount();
+
+	/** Returns the number of elements taken so far, leased elements included */
+	long getTakeCount();
+
+	/** Returns the elements put per second, averaged since the previous rate reading at least a second ago */
+	double getPutsPerSecond();
+
+	/** Returns the elements taken per second, averaged like {@link #getPutsPerSecond()} */
+	double getTakesPerSecond();
+
+	/** Returns the number of elements as last counted by the queue */
+	int getDepth();
+
+	/** Returns the number of takes waiting for an element */
+	int getWaitingTakers();
+
+	/** Returns the latencies of puts, waits for room included */
+	LatencySnapshot getPutLatency();
+
+	/** Returns the latencies of takes and leases, waits for elements included */
+	LatencySnapshot getTakeLatency();
+
+	/** Returns the latencies of peeks */
+	LatencySnapshot getPeekLatency();
+
+	/** Returns the latencies of size queries */
+	LatencySnapshot getSizeLatency();
+
+	/** Returns the times spent waiting to acquire the main lock */
+	LatencySnapshot getLockWait();
+
+	/** Returns the times the main lock was held, waits on its conditions excluded */
+	LatencySnapshot getLockHold();
+
+	/** Returns the latencies of database commits, zero for queues not stored in a database */
+	LatencySnapshot getCommitLatency();
+
+	/** Forgets all recorded latencies and restarts the rates, the counts are kept */
+	void reset();
+}
@@ -0,0 +1,62 @@
+package org.twohead.zadanie.model;
+
+/**
+ * An element moved to the dead-letter table of its queue after processing it
+ * failed too often, with the number of failed attempts and the last failure.
+ *
+ * @param <E> the type of the element
+ */
+public class DeadLetter<E> {
+
+	private final long id;
+	private final E element;
+	private final int attempts;
+	private final String reason;
+	private final long failedAt;
+
+	public DeadLetter(long id, E element, int attempts, String reason, long failedAt) {
+		this.id = id;
+		this.element = element;
+		this.attempts = attempts;
+		this.reason = reason;
+		this.failedAt = failedAt;
+	}
+
+	/**
+	 * Returns the sequence id of the dead letter, ordering the dead-letter
+	 * table.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	public E getElement() {
+		return element;
+	}
+
+	/**
+	 * Returns the number of failed attempts to process the element.
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Returns the last failure, {@code null} if none was given.
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns the time of the last failure, in milliseconds since the epoch.
+	 */
+	public long getFailedAt() {
+		return failedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "DeadLetter [id=" + id + ", attempts=" + attempts + ", reason=" + reason + ", element=" + element + "]";
+	}
+}
@@ -0,0 +1,19 @@
+package org.twohead.zadanie.persistance;
+
+import java.util.Iterator;
+
+/**
+ * An iterator holding resources, typically an open cursor, until it is closed.
+ * Database failures while iterating are thrown as
+ * {@link UncheckedSQLException}.
+ *
+ * @param <E> the type of elements returned by this iterator
+ */
+public interface CloseableIterator<E> extends Iterator<E>, AutoCloseable {
+
+	/**
+	 * Releases the resources of this iterator, it returns no further elements.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,176 @@
+package org.twohead.zadanie.persistance;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections. At most {@code maxSize} connections are
+ * checked out at the same time, callers beyond that wait for a connection to
+ * be released. Connections are opened lazily, validated on checkout and rolled
+ * back on release, so every borrower starts with a clean transaction.
+ *
+ * <p>
+ * Each connection keeps its prepared statements in a statement cache of
+ * {@code statementCacheSize} entries, so repeated SQL is compiled once per
+ * connection rather than once per call. Statements dropped from a full cache
+ * are closed when the connection is released.
+ */
+public class ConnectionPool {
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+	private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+	private final String url;
+	private final Properties props;
+	private final int maxSize;
+	private final int statementCacheSize;
+
+	/** Released connections, the most recently used first */
+	private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+	/** One permit per connection that may be checked out */
+	private final Semaphore permits;
+	/** Statement caches of open connections */
+	private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+
+	private volatile boolean closed;
+
+	public ConnectionPool(String url, Properties props, int maxSize, int statementCacheSize) {
+		if (maxSize <= 0 || statementCacheSize <= 0)
+			throw new IllegalArgumentException();
+		this.url = url;
+		this.props = props;
+		this.maxSize = maxSize;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Checks out a connection, waiting if all of them are in use. The connection
+	 * has auto commit disabled and must be given back with
+	 * {@link #release(Connection)}.
+	 *
+	 * @throws SQLException if the pool is closed, the wait times out or a new
+	 *                      connection cannot be opened
+	 */
+	public Connection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed");
+		try {
+			if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				throw new SQLTimeoutException("Timed out waiting for a pooled connection");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a pooled connection", e);
+		}
+		try {
+			Connection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				if (isValid(conn)) {
+					return conn;
+				}
+				closeQuietly(conn);
+			}
+			return open();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the cached prepared statement of a borrowed connection for the SQL
+	 * text, preparing it on first use. The statement belongs to the cache and
+	 * must not be closed by the caller.
+	 *
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		return statementCaches.computeIfAbsent(conn, c -> new StatementCache(c, statementCacheSize)).prepare(sql);
+	}
+
+	/**
+	 * Gives a borrowed connection back to the pool. Uncommitted work is rolled
+	 * back, a connection that cannot be rolled back is discarded.
+	 */
+	public void release(Connection conn) {
+		if (conn == null)
+			return;
+		try {
+			if (closed || conn.isClosed()) {
+				closeQuietly(conn);
+				return;
+			}
+			conn.rollback();
+			final var cache = statementCaches.get(conn);
+			if (cache != null) {
+				cache.closeEvicted();
+			}
+			idle.offerFirst(conn);
+			if (closed && idle.remove(conn)) {
+				closeQuietly(conn);
+			}
+		} catch (SQLException e) {
+			closeQuietly(conn);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle connections and refuses further checkouts. Connections
+	 * still borrowed are closed when they are released.
+	 */
+	public void close() {
+		closed = true;
+		Connection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			closeQuietly(conn);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	private Connection open() throws SQLException {
+		final var conn = DriverManager.getConnection(url, props);
+		conn.setAutoCommit(false);
+		return conn;
+	}
+
+	private boolean isValid(Connection conn) {
+		try {
+			return !conn.isClosed() && conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void closeQuietly(Connection conn) {
+		final var cache = statementCaches.remove(conn);
+		if (cache != null) {
+			cache.close();
+		}
+		try {
+			if (!conn.isClosed()) {
+				conn.rollback();
+				conn.close();
+			}
+		} catch (SQLException e) {
+			// the connection is discarded either way
+		}
+	}
+}
@@ -1,78 +1,444 @@
 package org.twohead.zadanie.persistance;
 
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.derby.drda.NetworkServerControl;
 
 public class DBUtils {
 
 	private static DBUtils instance;
 
 	private static final String protocol = "jdbc:derby:";
+	private static final String clientProtocol = "jdbc:derby://";
 	private static final String defaultDbName = "derbyDB";
+	private static final int defaultPoolSize = Math.max(4, Runtime.getRuntime().availableProcessors());
 	private static String dbName = null;
+	private static final int defaultStatementCacheSize = 32;
+	private static int poolSize = defaultPoolSize;
+	private static int statementCacheSize = defaultStatementCacheSize;
+	/** Connection URL, embedded unless set by {@link #initClient} */
+	private static String url = null;
+	/** Whether the database is reached through a network server of another process */
+	private static boolean client = false;
+	/** Network server started by {@link #startServer(int)} */
+	private static NetworkServerControl server = null;
+	private static final int SERVER_PING_ATTEMPTS = 50;
+	private static final long SERVER_PING_INTERVAL_MILLIS = 100;
+
+	/** Name of the table of the default user queue */
+	public static final String USER_TABLE = "suser";
+	/** Maximum length in bytes of a payload stored by {@link #createPayloadTable(String)} */
+	public static final int MAX_PAYLOAD_LENGTH = 32672;
+	/** Name suffix of the dead-letter table of a queue table */
+	public static final String DEAD_LETTER_SUFFIX = "_dlq";
+	/** Maximum length of the failure kept with a dead letter */
+	public static final int MAX_REASON_LENGTH = 1000;
+	private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]{0,99}");
 
-	private Connection connection;
+	private ConnectionPool pool;
+	/** Upper case names of the queue tables created, guarded by this */
+	private final Set<String> queueTables = new LinkedHashSet<>();
 
 	public static synchronized void init(String dbName) throws SQLException {
+		init(dbName, defaultPoolSize);
+	}
+
+	/**
+	 * Initializes the database with a connection pool of the given size. Has no
+	 * effect once the database has been initialized.
+	 *
+	 * @param dbName   the database name
+	 * @param poolSize the maximum number of connections in use at the same time
+	 * @throws SQLException
+	 */
+	public static synchronized void init(String dbName, int poolSize) throws SQLException {
+		init(dbName, poolSize, defaultStatementCacheSize);
+	}
+
+	/**
+	 * Initializes the database with a connection pool of the given size, each
+	 * connection caching up to {@code statementCacheSize} prepared statements.
+	 * Has no effect once the database has been initialized.
+	 *
+	 * @param dbName             the database name
+	 * @param poolSize           the maximum number of connections in use at the
+	 *                           same time
+	 * @param statementCacheSize the maximum number of prepared statements cached
+	 *                           per connection
+	 * @throws SQLException
+	 */
+	public static synchronized void init(String dbName, int poolSize, int statementCacheSize) throws SQLException {
 		if (DBUtils.dbName != null) {
 			return;
 		}
+		if (poolSize <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		if (statementCacheSize <= 0) {
+			throw new IllegalArgumentException("Statement cache size must be positive");
+		}
 		DBUtils.dbName = dbName;
+		if (url == null) {
+			url = protocol + dbName + ";create=true";
+		}
+		DBUtils.poolSize = poolSize;
+		DBUtils.statementCacheSize = statementCacheSize;
 		getInstance();
 	}
 
+	/**
+	 * Initializes the database like {@link #init(String, int)} and serves it to
+	 * other processes with {@link #startServer(int)}. Has no effect once the
+	 * database has been initialized.
+	 *
+	 * @param dbName   the database name
+	 * @param poolSize the maximum number of connections in use at the same time
+	 * @param port     the port of the network server
+	 * @throws SQLException if the database cannot be opened or the server does
+	 *                      not start
+	 */
+	public static synchronized void initServer(String dbName, int poolSize, int port) throws SQLException {
+		if (DBUtils.dbName != null) {
+			return;
+		}
+		init(dbName, poolSize);
+		startServer(port);
+	}
+
+	/**
+	 * Serves the database of this process to other processes through a Derby
+	 * network server listening on the port of the local host, until
+	 * {@link #shutdown(boolean)}. The server is started and checked through
+	 * its control API, so unlike the {@code derby.drda} properties read when
+	 * the embedded engine boots, it also starts once the engine runs. Needs
+	 * derbynet on the class path.
+	 *
+	 * @param port the port of the network server
+	 * @throws SQLException if the server cannot bind the port or does not
+	 *                      answer
+	 * @throws IllegalStateException if the database is not initialized, is
+	 *                               reached as a client or is served already
+	 */
+	public static synchronized void startServer(int port) throws SQLException {
+		if (dbName == null || client) {
+			throw new IllegalStateException("No embedded database to serve");
+		}
+		if (server != null) {
+			throw new IllegalStateException("Network server already started");
+		}
+		final var console = new ServerConsole();
+		final NetworkServerControl control;
+		try {
+			control = new NetworkServerControl(InetAddress.getLoopbackAddress(), port);
+			control.start(new PrintWriter(console, true));
+		} catch (Exception e) {
+			throw new SQLException("Network server did not start on port " + port, e);
+		}
+		// the server reports binding the port, or failing to, before it is pinged:
+		// a ping of a port held by another program waits for an answer forever
+		for (int i = 0; i < SERVER_PING_ATTEMPTS && console.isEmpty(); i++) {
+			try {
+				Thread.sleep(SERVER_PING_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (console.toString().contains(BindException.class.getName())) {
+			// the server gave up, and a shutdown would go to the other program
+			throw new SQLException("Network server could not bind port " + port + ": " + console);
+		}
+		Exception failure = null;
+		if (!console.isEmpty()) {
+			try {
+				control.ping();
+				server = control;
+				return;
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+		stopServer(control);
+		throw new SQLException("Network server did not start on port " + port + ": " + console, failure);
+	}
+
+	private static synchronized void stopServer() {
+		if (server != null) {
+			stopServer(server);
+			server = null;
+		}
+	}
+
+	/**
+	 * Keeps the first messages of the network server, which tell whether it
+	 * bound its port.
+	 */
+	private static final class ServerConsole extends Writer {
+
+		private static final int MAX_LENGTH = 4096;
+
+		private final StringBuilder text = new StringBuilder();
+
+		@Override
+		public synchronized void write(char[] cbuf, int off, int len) {
+			text.append(cbuf, off, Math.min(len, Math.max(0, MAX_LENGTH - text.length())));
+		}
+
+		@Override
+		public void flush() {
+			// kept in memory
+		}
+
+		@Override
+		public void close() {
+			// kept in memory
+		}
+
+		synchronized boolean isEmpty() {
+			return text.length() == 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return text.toString().trim();
+		}
+	}
+
+	private static void stopServer(NetworkServerControl control) {
+		try {
+			control.shutdown();
+		} catch (Exception e) {
+			// not running, nothing to stop
+		}
+	}
+
+	/**
+	 * Initializes the database as a client of the network server started by
+	 * {@link #initServer(String, int, int)} in another process. Needs
+	 * derbyclient on the class path. Shutting down closes the connections but
+	 * leaves the server running. Has no effect once the database has been
+	 * initialized.
+	 *
+	 * @param dbName   the database name
+	 * @param host     the host of the network server
+	 * @param port     the port of the network server
+	 * @param poolSize the maximum number of connections in use at the same time
+	 * @throws SQLException
+	 */
+	public static synchronized void initClient(String dbName, String host, int port, int poolSize) throws SQLException {
+		if (DBUtils.dbName != null) {
+			return;
+		}
+		url = clientProtocol + host + ":" + port + "/" + dbName + ";create=true";
+		client = true;
+		try {
+			init(dbName, poolSize);
+		} catch (SQLException | RuntimeException e) {
+			url = null;
+			client = false;
+			DBUtils.dbName = null;
+			throw e;
+		}
+	}
+
 	private DBUtils() throws SQLException {
-		createConnection();
+		createPool();
 		createTables();
 	}
 
-	private void createConnection() {
+	private void createPool() {
 
 		final var props = new Properties();
 		props.put("user", "user1");
 		props.put("password", "user1");
 
-		try {
-			connection = DriverManager.getConnection(protocol + dbName + ";create=true", props);
-			connection.setAutoCommit(false);
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+		pool = new ConnectionPool(url, props, poolSize, statementCacheSize);
 	}
 
 	private void createTables() throws SQLException {
-		if (getConnection() != null) {
-			Statement s = null;
-			try {
-				if (isTableExist("SUSER")) {
-					return;
-				}
+		createUserTable(USER_TABLE);
+	}
 
-				s = getConnection().createStatement();
-				s.execute("create table suser(user_ID int, USER_GUID varchar(32), USER_NAME varchar(255))");
-				getConnection().commit();
-			} finally {
+	/**
+	 * Creates a table holding users with the layout of {@value #USER_TABLE}
+	 * unless it exists, and brings an existing one up to date. Its dead-letter
+	 * table, named by {@value #DEAD_LETTER_SUFFIX}, is created alike. The
+	 * tables are dropped with the others on {@link #shutdown(boolean)}.
+	 *
+	 * @param table the table name
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public synchronized void createUserTable(String table) throws SQLException {
+		checkTableName(table);
+		final var conn = borrowConnection();
+		Statement s = null;
+		try {
+			s = conn.createStatement();
+			if (!isTableExist(conn, table)) {
+				s.execute("create table " + table + "(SEQ_ID bigint generated always as identity, "
+						+ "user_ID int, USER_GUID varchar(32), USER_NAME varchar(255), "
+						+ "LEASE_OWNER varchar(36), LEASE_DEADLINE bigint, ATTEMPTS int default 0 not null, "
+						+ "constraint " + table + "_pk primary key (SEQ_ID))");
+			} else if (!isColumnExist(conn, table, "SEQ_ID")) {
+				// tables created before the sequence column existed, keep their rows
+				s.execute("alter table " + table + " add column SEQ_ID bigint generated always as identity");
+				s.execute("alter table " + table + " add constraint " + table + "_pk primary key (SEQ_ID)");
+			}
+			if (!isColumnExist(conn, table, "LEASE_OWNER")) {
+				s.execute("alter table " + table + " add column LEASE_OWNER varchar(36)");
+				s.execute("alter table " + table + " add column LEASE_DEADLINE bigint");
+			}
+			if (!isColumnExist(conn, table, "ATTEMPTS")) {
+				s.execute("alter table " + table + " add column ATTEMPTS int default 0 not null");
+			}
+			// lookup keys of UserQueue
+			if (!isIndexExist(conn, table, table + "_USER_ID")) {
+				s.execute("create index " + table + "_user_id on " + table + "(user_ID)");
+			}
+			if (!isIndexExist(conn, table, table + "_USER_GUID")) {
+				s.execute("create index " + table + "_user_guid on " + table + "(USER_GUID)");
+			}
+			// acknowledgements of leased rows
+			if (!isIndexExist(conn, table, table + "_LEASE_OWNER")) {
+				s.execute("create index " + table + "_lease_owner on " + table + "(LEASE_OWNER)");
+			}
+			final String dlq = table + DEAD_LETTER_SUFFIX;
+			if (!isTableExist(conn, dlq)) {
+				s.execute("create table " + dlq + "(SEQ_ID bigint generated always as identity, "
+						+ "user_ID int, USER_GUID varchar(32), USER_NAME varchar(255), "
+						+ "ATTEMPTS int not null, FAILED_AT bigint not null, "
+						+ "REASON varchar(" + MAX_REASON_LENGTH + "), "
+						+ "constraint " + dlq + "_pk primary key (SEQ_ID))");
+			}
+			conn.commit();
+			queueTables.add(table.toUpperCase());
+			queueTables.add(dlq.toUpperCase());
+		} finally {
+			try {
 				close(s);
+			} finally {
+				release(conn);
 			}
 		}
 	}
 
-	private void dropTables() throws SQLException {
-		if (getConnection() != null) {
-			Statement s = null;
+	/**
+	 * Creates a table holding encoded elements unless it exists: a sequence id
+	 * ordering the rows, the element as a binary payload of up to
+	 * {@value #MAX_PAYLOAD_LENGTH} bytes kept in the row, its priority, and
+	 * the lease and attempt columns of the user tables. Its dead-letter table
+	 * is created alike. The tables are dropped with the others on
+	 * {@link #shutdown(boolean)}.
+	 *
+	 * @param table the table name
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public void createPayloadTable(String table) throws SQLException {
+		createPayloadTable(table, false);
+	}
+
+	/**
+	 * Creates a payload table like {@link #createPayloadTable(String)}, for a
+	 * priority queue also indexed by descending priority and sequence id, so
+	 * the head of the highest priority is found without a scan.
+	 *
+	 * @param table       the table name
+	 * @param prioritized whether the rows are taken in priority order
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public synchronized void createPayloadTable(String table, boolean prioritized) throws SQLException {
+		checkTableName(table);
+		final var conn = borrowConnection();
+		Statement s = null;
+		try {
+			s = conn.createStatement();
+			if (!isTableExist(conn, table)) {
+				s.execute("create table " + table + "(SEQ_ID bigint generated always as identity, "
+						+ "PAYLOAD varchar(" + MAX_PAYLOAD_LENGTH + ") for bit data not null, "
+						+ "PRIORITY int default 0 not null, "
+						+ "LEASE_OWNER varchar(36), LEASE_DEADLINE bigint, ATTEMPTS int default 0 not null, "
+						+ "constraint " + table + "_pk primary key (SEQ_ID))");
+			}
+			if (!isColumnExist(conn, table, "ATTEMPTS")) {
+				s.execute("alter table " + table + " add column ATTEMPTS int default 0 not null");
+			}
+			if (!isColumnExist(conn, table, "PRIORITY")) {
+				s.execute("alter table " + table + " add column PRIORITY int default 0 not null");
+			}
+			if (!isIndexExist(conn, table, table + "_LEASE_OWNER")) {
+				s.execute("create index " + table + "_lease_owner on " + table + "(LEASE_OWNER)");
+			}
+			// heads of DBPriorityBlockingQueue
+			if (prioritized && !isIndexExist(conn, table, table + "_PRIORITY")) {
+				s.execute("create index " + table + "_priority on " + table + "(PRIORITY desc, SEQ_ID)");
+			}
+			final String dlq = table + DEAD_LETTER_SUFFIX;
+			if (!isTableExist(conn, dlq)) {
+				s.execute("create table " + dlq + "(SEQ_ID bigint generated always as identity, "
+						+ "PAYLOAD varchar(" + MAX_PAYLOAD_LENGTH + ") for bit data not null, "
+						+ "PRIORITY int default 0 not null, "
+						+ "ATTEMPTS int not null, FAILED_AT bigint not null, "
+						+ "REASON varchar(" + MAX_REASON_LENGTH + "), "
+						+ "constraint " + dlq + "_pk primary key (SEQ_ID))");
+			}
+			if (!isColumnExist(conn, dlq, "PRIORITY")) {
+				s.execute("alter table " + dlq + " add column PRIORITY int default 0 not null");
+			}
+			conn.commit();
+			queueTables.add(table.toUpperCase());
+			queueTables.add(dlq.toUpperCase());
+		} finally {
 			try {
-				if (isTableExist("SUSER")) {
-					s = getConnection().createStatement();
-					s.execute("drop table suser");
-					getConnection().commit();
-					System.out.println("suser dropped");
-				}
+				close(s);
 			} finally {
+				release(conn);
+			}
+		}
+	}
+
+	/**
+	 * Checks that a table name can be put into SQL text as it is.
+	 *
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public static void checkTableName(String table) {
+		if (table == null || !TABLE_NAME.matcher(table).matches())
+			throw new IllegalArgumentException("Invalid table name " + table);
+	}
+
+	private synchronized void dropTables() throws SQLException {
+		final var conn = borrowConnection();
+		Statement s = null;
+		try {
+			s = conn.createStatement();
+			for (String table : queueTables) {
+				if (isTableExist(conn, table)) {
+					s.execute("drop table " + table);
+					conn.commit();
+					System.out.println(table.toLowerCase() + " dropped");
+				}
+			}
+		} finally {
+			try {
 				close(s);
+			} finally {
+				release(conn);
 			}
 		}
 	}
@@ -96,7 +462,12 @@ public class DBUtils {
 			if (dropTables) {
 				getInstance().dropTables();
 			}
-			connection = null;
+			pool.close();
+			stopServer();
+			if (client) {
+				// the engine belongs to the server process
+				return;
+			}
 			DriverManager.getConnection("jdbc:derby:;shutdown=true");
 		} catch (SQLException se) {
 			if (((se.getErrorCode() == 50000) && ("XJ015".equals(se.getSQLState())))) {
@@ -113,8 +484,33 @@ public class DBUtils {
 		}
 	}
 
-	public Connection getConnection() {
-		return connection;
+	/**
+	 * Checks out a pooled connection with auto commit disabled, waiting if all
+	 * connections are in use. Every borrowed connection must be given back with
+	 * {@link #release(Connection)}, uncommitted work is rolled back then.
+	 *
+	 * @throws SQLException
+	 */
+	public Connection borrowConnection() throws SQLException {
+		return pool.borrow();
+	}
+
+	/**
+	 * Returns the cached prepared statement of a borrowed connection for the SQL
+	 * text. The statement is reused by later borrowers of the connection and
+	 * must not be closed.
+	 *
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		return pool.prepare(conn, sql);
+	}
+
+	/**
+	 * Gives a borrowed connection back to the pool.
+	 */
+	public void release(Connection conn) {
+		pool.release(conn);
 	}
 
 	public void close(Statement s) throws SQLException {
@@ -130,7 +526,25 @@ public class DBUtils {
 	}
 
 	public boolean isTableExist(String tablename) throws SQLException {
-		final var dbmd = getConnection().getMetaData();
+		final var conn = borrowConnection();
+		try {
+			return isTableExist(conn, tablename);
+		} finally {
+			release(conn);
+		}
+	}
+
+	public boolean isColumnExist(String tablename, String columnname) throws SQLException {
+		final var conn = borrowConnection();
+		try {
+			return isColumnExist(conn, tablename, columnname);
+		} finally {
+			release(conn);
+		}
+	}
+
+	private boolean isTableExist(Connection conn, String tablename) throws SQLException {
+		final var dbmd = conn.getMetaData();
 		final var rs = dbmd.getTables(null, null, tablename.toUpperCase(), null);
 		try {
 			if (rs.next()) {
@@ -142,4 +556,29 @@ public class DBUtils {
 			close(rs);
 		}
 	}
+
+	private boolean isIndexExist(Connection conn, String tablename, String indexname) throws SQLException {
+		final var dbmd = conn.getMetaData();
+		final var rs = dbmd.getIndexInfo(null, null, tablename.toUpperCase(), false, false);
+		try {
+			while (rs.next()) {
+				if (indexname.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			close(rs);
+		}
+	}
+
+	private boolean isColumnExist(Connection conn, String tablename, String columnname) throws SQLException {
+		final var dbmd = conn.getMetaData();
+		final var rs = dbmd.getColumns(null, null, tablename.toUpperCase(), columnname.toUpperCase());
+		try {
+			return rs.next();
+		} finally {
+			close(rs);
+		}
+	}
 }
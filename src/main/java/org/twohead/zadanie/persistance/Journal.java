@@ -0,0 +1,511 @@
+package org.twohead.zadanie.persistance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A write-ahead journal of the operations on a queue of byte records, for
+ * queues keeping their elements in memory. Operations are appended to a
+ * journal file, a checkpoint stores all records at a point in time so the
+ * journal before it can be deleted. Opening the journal recovers the records
+ * by loading the last checkpoint and replaying the journal files written
+ * after it.
+ *
+ * <p>
+ * Journal files are numbered by generation, a checkpoint of generation
+ * {@code g} holds the records before journal {@code g}. Each journal entry is
+ * its length and CRC followed by the operation, so an entry torn by a crash is
+ * detected and cut off when the journal is opened. The checkpoint is written
+ * to a temporary file and renamed over the previous one.
+ *
+ * <p>
+ * How often writes are forced to the disk is set by the {@link FsyncPolicy}.
+ * All methods are thread safe.
+ */
+public class Journal implements AutoCloseable {
+
+	/**
+	 * When journal writes are forced to the disk.
+	 */
+	public enum FsyncPolicy {
+		/** Every write is forced before it returns, surviving a system crash */
+		ALWAYS,
+		/** Writes are forced by a background thread at a fixed interval */
+		INTERVAL,
+		/** Writes are left to the operating system, surviving a process crash */
+		NEVER
+	}
+
+	/** Default interval between forced writes of the {@code INTERVAL} policy, in milliseconds */
+	public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+
+	private static final byte PUT = 1;
+	private static final byte TAKE = 2;
+	private static final byte REMOVE = 3;
+	private static final byte CLEAR = 4;
+	/** Length and CRC of an entry */
+	private static final int ENTRY_HEADER = 2 * Integer.BYTES;
+
+	private final Path dir;
+	private final FsyncPolicy policy;
+
+	/** Records recovered on opening, until taken */
+	private ArrayDeque<byte[]> recovered = new ArrayDeque<>();
+	/** Generation of the journal file written */
+	private long generation;
+	private FileChannel channel;
+	/** Bytes in the journal file written */
+	private long journalSize;
+	/** Whether there are writes not forced yet, guarded by this */
+	private boolean dirty;
+	/** Generation of the last checkpoint written, guarded by checkpointLock */
+	private long checkpointGeneration;
+	private final Object checkpointLock = new Object();
+	/** Forces writes under the {@code INTERVAL} policy */
+	private ScheduledExecutorService syncer;
+	private boolean closed;
+
+	/**
+	 * Opens the journal in the directory with the {@code INTERVAL} fsync policy.
+	 *
+	 * @see #Journal(Path, FsyncPolicy, long)
+	 */
+	public Journal(Path dir) throws IOException {
+		this(dir, FsyncPolicy.INTERVAL, DEFAULT_FSYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Opens the journal in the directory, creating it if needed, and recovers
+	 * its records.
+	 *
+	 * @param dir            the directory of the journal and checkpoint files
+	 * @param policy         when writes are forced to the disk
+	 * @param intervalMillis the interval between forced writes of the
+	 *                       {@code INTERVAL} policy, in milliseconds
+	 * @throws IOException if the files cannot be read or a checkpoint or a
+	 *                     journal other than the last is corrupt
+	 */
+	public Journal(Path dir, FsyncPolicy policy, long intervalMillis) throws IOException {
+		if (policy == FsyncPolicy.INTERVAL && intervalMillis <= 0)
+			throw new IllegalArgumentException();
+		this.dir = dir;
+		this.policy = policy;
+		Files.createDirectories(dir);
+		recover();
+		if (policy == FsyncPolicy.INTERVAL) {
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				final var t = new Thread(r, "db-queue-journal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(this::forceQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the records recovered when the journal was opened, in queue
+	 * order, and releases them. Later calls return an empty list.
+	 */
+	public synchronized List<byte[]> takeRecovered() {
+		final var records = new ArrayList<>(recovered);
+		recovered = new ArrayDeque<>();
+		return records;
+	}
+
+	/**
+	 * Journals a record added at the tail.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void put(byte[] record) throws IOException {
+		write(entry(PUT, record));
+	}
+
+	/**
+	 * Journals records added at the tail, written and forced together.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void putAll(List<byte[]> records) throws IOException {
+		final var entries = new ByteBuffer[records.size()];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = entry(PUT, records.get(i));
+		}
+		write(entries);
+	}
+
+	/**
+	 * Journals the removal of the first {@code n} records.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void take(int n) throws IOException {
+		write(entry(TAKE, n));
+	}
+
+	/**
+	 * Journals the removal of the record at the given position.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void remove(int i) throws IOException {
+		write(entry(REMOVE, i));
+	}
+
+	/**
+	 * Journals the removal of all records.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		write(entry(CLEAR, null));
+	}
+
+	/**
+	 * Continues the journal in a new file and returns its generation. A
+	 * checkpoint of the records at the time of the call is then passed to
+	 * {@link #checkpoint(long, List)} with that generation.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized long rotate() throws IOException {
+		checkOpen();
+		channel.force(false);
+		channel.close();
+		dirty = false;
+		openJournal(generation + 1);
+		journalSize = 0;
+		return generation;
+	}
+
+	/**
+	 * Writes a checkpoint holding the records before the journal of the given
+	 * generation, and deletes the journal files it covers. Has no effect if a
+	 * later checkpoint has been written.
+	 *
+	 * @param generation the generation returned by {@link #rotate()}
+	 * @param records    the records at the time of the rotation, in queue order
+	 * @throws IOException
+	 */
+	public void checkpoint(long generation, List<byte[]> records) throws IOException {
+		synchronized (checkpointLock) {
+			if (generation <= checkpointGeneration)
+				return;
+			final var temp = dir.resolve(CHECKPOINT_TEMP_FILE);
+			final var crc = new CRC32();
+			try (var out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)), crc))) {
+				out.writeLong(generation);
+				out.writeInt(records.size());
+				for (byte[] record : records) {
+					out.writeInt(record.length);
+					out.write(record);
+				}
+				out.flush();
+				// the CRC itself is not checked
+				out.writeInt((int) crc.getValue());
+			}
+			try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				file.force(true);
+			}
+			Files.move(temp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			checkpointGeneration = generation;
+			for (long g : journalGenerations()) {
+				if (g < generation)
+					Files.deleteIfExists(journalPath(g));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the journal file written, the journal
+	 * since the last rotation.
+	 */
+	public synchronized long getJournalSize() {
+		return journalSize;
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Forces all writes to the disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		checkOpen();
+		if (dirty) {
+			channel.force(false);
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Forces all writes to the disk and closes the journal file. Further writes
+	 * fail.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		if (syncer != null)
+			// not interrupted, that would close the channel under a running force
+			syncer.shutdown();
+		try {
+			force();
+		} finally {
+			closed = true;
+			channel.close();
+		}
+	}
+
+	/**
+	 * Forces the writes of the {@code INTERVAL} policy. The channel is forced
+	 * outside the monitor so that writes do not wait for the disk; writes made
+	 * meanwhile mark the journal dirty again for the next interval.
+	 */
+	private void forceQuietly() {
+		final FileChannel file;
+		synchronized (this) {
+			if (closed || !dirty)
+				return;
+			file = channel;
+			dirty = false;
+		}
+		try {
+			file.force(false);
+		} catch (ClosedChannelException e) {
+			// rotated or closed meanwhile, both force the file before closing it
+		} catch (IOException e) {
+			synchronized (this) {
+				if (channel == file)
+					dirty = true;
+			}
+			e.printStackTrace();
+		}
+	}
+
+	private void write(ByteBuffer... entries) throws IOException {
+		checkOpen();
+		long size = 0;
+		for (ByteBuffer entry : entries) {
+			size += entry.remaining();
+		}
+		for (long written = 0; written < size;) {
+			written += channel.write(entries);
+		}
+		journalSize += size;
+		if (policy == FsyncPolicy.ALWAYS) {
+			channel.force(false);
+		} else {
+			dirty = true;
+		}
+	}
+
+	private static ByteBuffer entry(byte type, byte[] record) {
+		final int length = 1 + ((record == null) ? 0 : record.length);
+		final var entry = ByteBuffer.allocate(ENTRY_HEADER + length);
+		entry.putInt(length);
+		entry.putInt(0);
+		entry.put(type);
+		if (record != null)
+			entry.put(record);
+		return seal(entry);
+	}
+
+	private static ByteBuffer entry(byte type, int n) {
+		final var entry = ByteBuffer.allocate(ENTRY_HEADER + 1 + Integer.BYTES);
+		entry.putInt(1 + Integer.BYTES);
+		entry.putInt(0);
+		entry.put(type);
+		entry.putInt(n);
+		return seal(entry);
+	}
+
+	/**
+	 * Sets the CRC of the operation and flips the entry for writing.
+	 */
+	private static ByteBuffer seal(ByteBuffer entry) {
+		entry.flip();
+		final var crc = new CRC32();
+		crc.update(entry.array(), ENTRY_HEADER, entry.limit() - ENTRY_HEADER);
+		entry.putInt(Integer.BYTES, (int) crc.getValue());
+		return entry;
+	}
+
+	private void recover() throws IOException {
+		final var checkpoint = dir.resolve(CHECKPOINT_FILE);
+		if (Files.exists(checkpoint)) {
+			checkpointGeneration = loadCheckpoint(checkpoint);
+		}
+		Files.deleteIfExists(dir.resolve(CHECKPOINT_TEMP_FILE));
+		final var generations = journalGenerations();
+		long last = checkpointGeneration;
+		for (long g : generations) {
+			if (g < checkpointGeneration) {
+				// covered by the checkpoint before the last run could delete it
+				Files.delete(journalPath(g));
+				continue;
+			}
+			final long valid = replay(journalPath(g));
+			final long size = Files.size(journalPath(g));
+			if (valid < size) {
+				if (g != generations.get(generations.size() - 1))
+					throw new IOException("Corrupt journal " + journalPath(g));
+				// torn by a crash while writing
+				try (FileChannel file = FileChannel.open(journalPath(g), StandardOpenOption.WRITE)) {
+					file.truncate(valid);
+				}
+			}
+			journalSize = valid;
+			last = g;
+		}
+		openJournal(last);
+	}
+
+	/**
+	 * Loads the records of the checkpoint and returns its generation.
+	 */
+	private long loadCheckpoint(Path checkpoint) throws IOException {
+		final var crc = new CRC32();
+		try (var in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(checkpoint)), crc))) {
+			final long g = in.readLong();
+			final int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				final var record = new byte[in.readInt()];
+				in.readFully(record);
+				recovered.addLast(record);
+			}
+			final var expected = (int) crc.getValue();
+			if (in.readInt() != expected)
+				throw new IOException("Corrupt checkpoint " + checkpoint);
+			return g;
+		} catch (EOFException e) {
+			throw new IOException("Corrupt checkpoint " + checkpoint, e);
+		}
+	}
+
+	/**
+	 * Applies the entries of the journal file to the recovered records and
+	 * returns the length of its valid entries.
+	 */
+	private long replay(Path journal) throws IOException {
+		final var crc = new CRC32();
+		final long size = Files.size(journal);
+		long valid = 0;
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+			while (true) {
+				final int length;
+				final int expected;
+				final byte[] op;
+				try {
+					length = in.readInt();
+					expected = in.readInt();
+					if (length <= 0 || length > size - valid - ENTRY_HEADER)
+						return valid;
+					op = new byte[length];
+					in.readFully(op);
+				} catch (EOFException e) {
+					return valid;
+				}
+				crc.reset();
+				crc.update(op);
+				if ((int) crc.getValue() != expected)
+					return valid;
+				apply(op);
+				valid += ENTRY_HEADER + length;
+			}
+		}
+	}
+
+	private void apply(byte[] op) {
+		final var buffer = ByteBuffer.wrap(op);
+		switch (buffer.get()) {
+		case PUT:
+			final var bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			recovered.addLast(bytes);
+			break;
+		case TAKE:
+			for (int n = buffer.getInt(); n > 0 && !recovered.isEmpty(); n--) {
+				recovered.pollFirst();
+			}
+			break;
+		case REMOVE:
+			final Iterator<byte[]> it = recovered.iterator();
+			for (int i = buffer.getInt(); it.hasNext(); i--) {
+				it.next();
+				if (i == 0) {
+					it.remove();
+					break;
+				}
+			}
+			break;
+		case CLEAR:
+			recovered.clear();
+			break;
+		default:
+			throw new IllegalStateException("Unknown journal entry " + op[0]);
+		}
+	}
+
+	private void openJournal(long generation) throws IOException {
+		channel = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		this.generation = generation;
+	}
+
+	private List<Long> journalGenerations() throws IOException {
+		final var generations = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, JOURNAL_PREFIX + "*")) {
+			for (Path file : files) {
+				generations.add(Long.parseLong(file.getFileName().toString().substring(JOURNAL_PREFIX.length())));
+			}
+		}
+		generations.sort(null);
+		return generations;
+	}
+
+	private Path journalPath(long generation) {
+		return dir.resolve(String.format("%s%020d", JOURNAL_PREFIX, generation));
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed)
+			throw new IOException("Journal is closed");
+	}
+}
@@ -0,0 +1,91 @@
+package org.twohead.zadanie.persistance;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+/**
+ * A forward-only iterator over the rows of a query. It owns the borrowed
+ * connection and the statement, both are released once the rows are exhausted
+ * or the iterator is closed.
+ *
+ * @param <E> the type of elements the rows are mapped to
+ */
+public class ResultSetIterator<E> implements CloseableIterator<E> {
+
+	/**
+	 * Maps the current row of a result set.
+	 */
+	@FunctionalInterface
+	public interface RowMapper<E> {
+		E map(ResultSet rs) throws SQLException;
+	}
+
+	private final DBUtils dbUtils;
+	private final Connection conn;
+	private final PreparedStatement ps;
+	private final ResultSet rs;
+	private final RowMapper<E> mapper;
+
+	private E next;
+	private boolean closed;
+
+	/**
+	 * Executes the query, the statement and connection are closed and released
+	 * by this iterator from now on.
+	 *
+	 * @throws SQLException
+	 */
+	public ResultSetIterator(Connection conn, PreparedStatement ps, RowMapper<E> mapper) throws SQLException {
+		this.dbUtils = DBUtils.getInstance();
+		this.conn = conn;
+		this.ps = ps;
+		this.mapper = mapper;
+		this.rs = ps.executeQuery();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		if (closed)
+			return false;
+		try {
+			if (rs.next()) {
+				next = mapper.map(rs);
+				return true;
+			}
+		} catch (SQLException e) {
+			close();
+			throw new UncheckedSQLException(e);
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public E next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		final E x = next;
+		next = null;
+		return x;
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			dbUtils.close(rs);
+			dbUtils.close(ps);
+		} catch (SQLException e) {
+			// the connection is rolled back on release either way
+		} finally {
+			dbUtils.release(conn);
+		}
+	}
+}
@@ -0,0 +1,588 @@
+package org.twohead.zadanie.persistance;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An append-only log of byte records kept in fixed-size segment files mapped
+ * into memory. Records are appended at the tail and consumed from the head, a
+ * segment file is deleted once the head has moved past it. The head and tail
+ * positions are kept in a mapped index file, so a reopened log continues
+ * where it stopped; records appended after the last persisted tail are
+ * recovered by scanning the last segment.
+ *
+ * <p>
+ * Each record is an {@code int} header followed by its bytes. The header is
+ * the record length plus one, negated once the record is removed out of
+ * order, and 0 where nothing has been written yet. The header is written
+ * after the bytes, so a record is complete once its header is seen.
+ *
+ * <p>
+ * Writes reach the files when the operating system flushes the mapped pages,
+ * they survive a crash of the process but not of the system unless the log
+ * forces every write. All methods are thread safe.
+ */
+public class SegmentLog implements AutoCloseable {
+
+	/** Default size of a segment file in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_FILE = "index";
+	private static final int HEADER = Integer.BYTES;
+	/** Head segment id, head offset, tail segment id, tail offset */
+	private static final int INDEX_SIZE = 2 * (Long.BYTES + Integer.BYTES);
+
+	private final Path dir;
+	private final int segmentSize;
+	private final boolean force;
+
+	/** Mapped segments, head first, with consecutive ids */
+	private final List<Segment> segments = new ArrayList<>();
+	private final MappedByteBuffer index;
+	/** Offset of the first record not consumed in the head segment */
+	private int headOffset;
+	/** Offset after the last record in the tail segment */
+	private int tailOffset;
+	/** Number of records not consumed nor removed */
+	private int count;
+	private boolean closed;
+
+	/**
+	 * A mapped segment file.
+	 */
+	private static final class Segment {
+		final long id;
+		final Path path;
+		final MappedByteBuffer buffer;
+
+		Segment(long id, Path path, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A record position, the segment as its index in {@link #segments}.
+	 */
+	private static final class Position {
+		int segment;
+		int offset;
+
+		Position(int segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Opens the log in the directory, creating it if needed. Records are not
+	 * forced to the disk.
+	 *
+	 * @param dir the directory of the segment and index files
+	 * @throws IOException
+	 */
+	public SegmentLog(Path dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Opens the log in the directory, creating it if needed.
+	 *
+	 * @param dir         the directory of the segment and index files
+	 * @param segmentSize the size of a segment file in bytes, bounding the size
+	 *                    of a record; ignored for existing segments
+	 * @param force       if {@code true} every write is forced to the disk
+	 * @throws IOException
+	 * @throws IllegalArgumentException if {@code segmentSize} cannot hold a
+	 *                                  record
+	 */
+	public SegmentLog(Path dir, int segmentSize, boolean force) throws IOException {
+		if (segmentSize <= HEADER)
+			throw new IllegalArgumentException();
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.force = force;
+		Files.createDirectories(dir);
+		index = map(dir.resolve(INDEX_FILE), INDEX_SIZE);
+		open();
+	}
+
+	private void open() throws IOException {
+		final long headId = index.getLong(0);
+		final long tailId = index.getLong(Long.BYTES + Integer.BYTES);
+		final var ids = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				final var name = file.getFileName().toString();
+				ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		ids.sort(null);
+		for (long id : ids) {
+			if (id < headId) {
+				// consumed before the last run could delete it
+				Files.delete(segmentPath(id));
+			} else {
+				final var path = segmentPath(id);
+				segments.add(new Segment(id, path, map(path, (int) Files.size(path))));
+			}
+		}
+		if (segments.isEmpty()) {
+			addSegment(headId);
+			headOffset = 0;
+		} else if (segments.get(0).id != headId) {
+			// the head segment is lost, continue with the next one
+			headOffset = 0;
+		} else {
+			headOffset = index.getInt(Long.BYTES);
+		}
+		// records appended after the tail was last persisted are complete once their header is set
+		final var last = segments.get(segments.size() - 1);
+		tailOffset = (last.id == tailId) ? index.getInt(2 * Long.BYTES + Integer.BYTES) : 0;
+		int header;
+		while (tailOffset + HEADER <= last.buffer.capacity() && (header = last.buffer.getInt(tailOffset)) != 0) {
+			tailOffset += HEADER + Math.abs(header) - 1;
+		}
+		final var pos = head();
+		while (next(pos)) {
+			count++;
+			skip(pos);
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Appends a record at the tail.
+	 *
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the record does not fit into a segment
+	 */
+	public synchronized void append(byte[] record) throws IOException {
+		checkOpen();
+		write(record);
+		sync();
+	}
+
+	/**
+	 * Appends the records at the tail, forced to the disk together.
+	 *
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a record does not fit into a segment
+	 */
+	public synchronized void appendAll(List<byte[]> records) throws IOException {
+		checkOpen();
+		// the records may fill the tail segment and roll over to new ones
+		final int first = segments.size() - 1;
+		for (byte[] record : records) {
+			write(record);
+		}
+		sync(first);
+	}
+
+	/**
+	 * Removes the head record and returns it, or {@code null} if the log is
+	 * empty.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized byte[] poll() throws IOException {
+		checkOpen();
+		final var pos = head();
+		if (!next(pos))
+			return null;
+		final var record = read(pos);
+		skip(pos);
+		moveHead(pos, 1);
+		return record;
+	}
+
+	/**
+	 * Removes up to {@code max} head records and returns them in order.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized List<byte[]> pollAll(int max) throws IOException {
+		checkOpen();
+		final var records = new ArrayList<byte[]>();
+		final var pos = head();
+		while (records.size() < max && next(pos)) {
+			records.add(read(pos));
+			skip(pos);
+		}
+		if (!records.isEmpty())
+			moveHead(pos, records.size());
+		return records;
+	}
+
+	/**
+	 * Returns the record at the given position, or {@code null} if there is
+	 * none.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized byte[] get(int i) throws IOException {
+		final var records = list(i, 1);
+		return records.isEmpty() ? null : records.get(0);
+	}
+
+	/**
+	 * Returns up to {@code max} records starting at the given position.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized List<byte[]> list(int from, int max) throws IOException {
+		checkOpen();
+		final var records = new ArrayList<byte[]>();
+		final var pos = seek(from);
+		while (records.size() < max && next(pos)) {
+			records.add(read(pos));
+			skip(pos);
+		}
+		return records;
+	}
+
+	/**
+	 * Removes the first {@code n} records.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void removeHead(int n) throws IOException {
+		checkOpen();
+		final var pos = head();
+		int removed = 0;
+		while (removed < n && next(pos)) {
+			skip(pos);
+			removed++;
+		}
+		if (removed > 0)
+			moveHead(pos, removed);
+	}
+
+	/**
+	 * Removes the record at the given position. Records behind the head are
+	 * marked removed in place, their space is freed with their segment.
+	 *
+	 * @return {@code false} if there is no record at the position
+	 * @throws IOException
+	 */
+	public synchronized boolean remove(int i) throws IOException {
+		if (i == 0) {
+			return poll() != null;
+		}
+		checkOpen();
+		final var pos = seek(i);
+		if (!next(pos))
+			return false;
+		final var buffer = segments.get(pos.segment).buffer;
+		buffer.putInt(pos.offset, -buffer.getInt(pos.offset));
+		count--;
+		if (force)
+			buffer.force();
+		return true;
+	}
+
+	/**
+	 * Removes all records, deleting all segments but a new empty one.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		checkOpen();
+		final long nextId = segments.get(segments.size() - 1).id + 1;
+		addSegment(nextId);
+		moveHead(new Position(segments.size() - 1, 0), count);
+		tailOffset = 0;
+		writeIndex();
+		sync();
+	}
+
+	/**
+	 * Returns the number of records.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns an iterator over the records from the head, reading
+	 * {@code fetchSize} records at a time. The iterator is weakly consistent:
+	 * it continues at the head if the records it reached were consumed
+	 * meanwhile. Failures while iterating are thrown as
+	 * {@link UncheckedIOException}.
+	 */
+	public CloseableIterator<byte[]> cursor(int fetchSize) {
+		if (fetchSize <= 0)
+			throw new IllegalArgumentException();
+		return new Cursor(fetchSize);
+	}
+
+	/**
+	 * Forces all writes to the disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		checkOpen();
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		index.force();
+	}
+
+	/**
+	 * Forces all writes to the disk and unmaps the files. Further calls fail.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		force();
+		closed = true;
+		for (Segment segment : segments) {
+			unmap(segment.buffer);
+		}
+		segments.clear();
+		unmap(index);
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	private final class Cursor implements CloseableIterator<byte[]> {
+
+		private final int fetchSize;
+		private final List<byte[]> fetched = new ArrayList<>();
+		private int fetchIndex;
+		/** Segment id and offset after the last fetched record */
+		private long segmentId = -1;
+		private int offset;
+		private boolean done;
+
+		Cursor(int fetchSize) {
+			this.fetchSize = fetchSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (fetchIndex < fetched.size())
+				return true;
+			if (done)
+				return false;
+			try {
+				fetch();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (fetched.isEmpty())
+				done = true;
+			return !done;
+		}
+
+		@Override
+		public byte[] next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return fetched.get(fetchIndex++);
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			fetched.clear();
+		}
+
+		private void fetch() throws IOException {
+			synchronized (SegmentLog.this) {
+				checkOpen();
+				fetched.clear();
+				fetchIndex = 0;
+				final var first = segments.get(0).id;
+				final var pos = (segmentId < first || (segmentId == first && offset < headOffset)) ? head()
+						: new Position((int) (segmentId - first), offset);
+				while (fetched.size() < fetchSize && SegmentLog.this.next(pos)) {
+					fetched.add(read(pos));
+					skip(pos);
+				}
+				segmentId = first + pos.segment;
+				offset = pos.offset;
+			}
+		}
+	}
+
+	private Position head() {
+		return new Position(0, headOffset);
+	}
+
+	/**
+	 * Returns the position of the {@code i}-th record.
+	 */
+	private Position seek(int i) {
+		final var pos = head();
+		for (int j = 0; j < i && next(pos); j++) {
+			skip(pos);
+		}
+		return pos;
+	}
+
+	/**
+	 * Moves the position to the next record not removed, if any.
+	 *
+	 * @return {@code false} if there is none
+	 */
+	private boolean next(Position pos) {
+		while (true) {
+			final var segment = segments.get(pos.segment);
+			final int header = (pos.offset + HEADER <= segment.buffer.capacity()) ? segment.buffer.getInt(pos.offset)
+					: 0;
+			if (header > 0)
+				return true;
+			if (header < 0) {
+				pos.offset += HEADER - header - 1;
+			} else if (pos.segment == segments.size() - 1) {
+				return false;
+			} else {
+				pos.segment++;
+				pos.offset = 0;
+			}
+		}
+	}
+
+	/**
+	 * Moves the position past the record at it.
+	 */
+	private void skip(Position pos) {
+		pos.offset += HEADER + segments.get(pos.segment).buffer.getInt(pos.offset) - 1;
+	}
+
+	private byte[] read(Position pos) {
+		final var buffer = segments.get(pos.segment).buffer;
+		final var record = new byte[buffer.getInt(pos.offset) - 1];
+		buffer.get(pos.offset + HEADER, record);
+		return record;
+	}
+
+	private void write(byte[] record) throws IOException {
+		final int size = HEADER + record.length;
+		if (size > segmentSize)
+			throw new IllegalArgumentException("Record of " + record.length + " bytes exceeds the segment size");
+		var tail = segments.get(segments.size() - 1);
+		if (tailOffset + size > tail.buffer.capacity()) {
+			tail = addSegment(tail.id + 1);
+			tailOffset = 0;
+		}
+		tail.buffer.put(tailOffset + HEADER, record);
+		tail.buffer.putInt(tailOffset, record.length + 1);
+		tailOffset += size;
+		count++;
+		index.putLong(Long.BYTES + Integer.BYTES, tail.id);
+		index.putInt(2 * Long.BYTES + Integer.BYTES, tailOffset);
+	}
+
+	/**
+	 * Makes the position the head after consuming {@code n} records, deleting
+	 * the segments before it.
+	 */
+	private void moveHead(Position pos, int n) throws IOException {
+		headOffset = pos.offset;
+		count -= n;
+		final var consumed = new ArrayList<>(segments.subList(0, pos.segment));
+		segments.subList(0, pos.segment).clear();
+		writeIndex();
+		if (force)
+			index.force();
+		for (Segment segment : consumed) {
+			unmap(segment.buffer);
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	private Segment addSegment(long id) throws IOException {
+		final var path = segmentPath(id);
+		final var segment = new Segment(id, path, map(path, segmentSize));
+		segments.add(segment);
+		return segment;
+	}
+
+	private void writeIndex() {
+		index.putLong(0, segments.get(0).id);
+		index.putInt(Long.BYTES, headOffset);
+		index.putLong(Long.BYTES + Integer.BYTES, segments.get(segments.size() - 1).id);
+		index.putInt(2 * Long.BYTES + Integer.BYTES, tailOffset);
+	}
+
+	private void sync() {
+		sync(segments.size() - 1);
+	}
+
+	/**
+	 * Forces the segments from the {@code first} one to the tail and the index,
+	 * if every write is forced.
+	 */
+	private void sync(int first) {
+		if (force) {
+			for (int i = first; i < segments.size(); i++) {
+				segments.get(i).buffer.force();
+			}
+			index.force();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed)
+			throw new IOException("Segment log is closed");
+	}
+
+	private Path segmentPath(long id) {
+		return dir.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+	}
+
+	private static MappedByteBuffer map(Path path, int size) throws IOException {
+		// the mapping stays valid once the channel is closed
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * Releases the mapping at once where the JDK allows it, otherwise when the
+	 * buffer is garbage collected. Deleting a mapped file fails on some systems.
+	 */
+	private static void unmap(ByteBuffer buffer) {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// left to the garbage collector
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.twohead.zadanie.persistance;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepared statements of one connection, by SQL text. Holds at most
+ * {@code maxSize} statements and drops the least recently used one beyond
+ * that. A dropped statement may still be executing or have its result set
+ * read by the borrower, so it is closed only by {@link #closeEvicted()} when
+ * the connection is released. Not thread safe, a connection is used by one
+ * borrower at a time.
+ */
+class StatementCache {
+
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	/** Statements dropped from the cache during the current borrow */
+	private final List<PreparedStatement> evicted = new ArrayList<>();
+
+	StatementCache(Connection conn, int maxSize) {
+		this.conn = conn;
+		this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= maxSize)
+					return false;
+				evicted.add(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for the SQL text, preparing it on first use.
+	 * The statement stays open, callers must not close it.
+	 *
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		var ps = statements.get(sql);
+		if (ps == null || ps.isClosed()) {
+			ps = conn.prepareStatement(sql);
+			statements.put(sql, ps);
+		}
+		return ps;
+	}
+
+	/**
+	 * Closes the statements dropped from the cache since the last call, once
+	 * the borrower is done with them.
+	 */
+	void closeEvicted() {
+		evicted.forEach(StatementCache::closeQuietly);
+		evicted.clear();
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	void close() {
+		closeEvicted();
+		statements.values().forEach(StatementCache::closeQuietly);
+		statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			// the statement is dropped either way
+		}
+	}
+}
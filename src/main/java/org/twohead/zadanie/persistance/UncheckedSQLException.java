@@ -0,0 +1,21 @@
+package org.twohead.zadanie.persistance;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps an {@link SQLException} with an unchecked exception, for database
+ * access from iterators and streams which cannot throw checked exceptions.
+ */
+public class UncheckedSQLException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedSQLException(SQLException cause) {
+		super(cause);
+	}
+
+	@Override
+	public synchronized SQLException getCause() {
+		return (SQLException) super.getCause();
+	}
+}
@@ -1,6 +1,7 @@
 package org.twohead.zadanie.producer;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -29,17 +30,33 @@ public class AbstractProducer<E> implements Runnable {
 		this.load = load;
 	}
 
+	/**
+	 * Puts the load, in chunks of at most the queue capacity when it does not
+	 * fit a bounded queue at once. Each chunk waits for room, so the producer
+	 * is held back while consumers fall behind.
+	 */
 	@Override
 	public void run() {
 		if (load != null) {
-			for (E e : load) {
-				try {
-					sharedQueue.put(e);
-				} catch (InterruptedException ex) {
-					ex.printStackTrace();
-				} catch (SQLException ex1) {
-					ex1.printStackTrace();
+			try {
+				final int capacity = sharedQueue.getCapacity();
+				if (load.size() <= capacity) {
+					sharedQueue.putAll(load);
+				} else {
+					final var chunk = new ArrayList<E>(capacity);
+					for (E e : load) {
+						chunk.add(e);
+						if (chunk.size() == capacity) {
+							sharedQueue.putAll(chunk);
+							chunk.clear();
+						}
+					}
+					sharedQueue.putAll(chunk);
 				}
+			} catch (InterruptedException ex) {
+				ex.printStackTrace();
+			} catch (SQLException ex1) {
+				ex1.printStackTrace();
 			}
 		}
 	}
@@ -0,0 +1,43 @@
+package org.twohead.zadanie.queue;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays between polls of a table for elements put by other processes. The
+ * delay doubles from the minimum up to the maximum while polls come back empty
+ * and drops back to the minimum after a successful one. Each delay is drawn
+ * from the upper half of the current one, so pollers of several processes
+ * drift apart instead of hitting the table together. Not thread safe.
+ */
+class AdaptiveBackoff {
+
+	private final long minDelayNanos;
+	private final long maxDelayNanos;
+	private long delayNanos;
+
+	AdaptiveBackoff(long minDelay, long maxDelay, TimeUnit unit) {
+		if (minDelay <= 0 || maxDelay < minDelay)
+			throw new IllegalArgumentException();
+		this.minDelayNanos = unit.toNanos(minDelay);
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.delayNanos = minDelayNanos;
+	}
+
+	/**
+	 * Returns the delay before the next poll and backs off further.
+	 */
+	long nextDelayNanos() {
+		final long delay = delayNanos;
+		delayNanos = Math.min(maxDelayNanos, delay * 2);
+		final long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+
+	/**
+	 * Drops the delay back to the minimum after a successful poll.
+	 */
+	void reset() {
+		delayNanos = minDelayNanos;
+	}
+}
@@ -0,0 +1,23 @@
+package org.twohead.zadanie.queue;
+
+/**
+ * Turns the elements of a queue into bytes and back, for queues storing
+ * elements as binary payloads instead of one column per field. Encoding an
+ * element and decoding the result must give an equal element.
+ *
+ * @param <E> the type of elements encoded
+ */
+public interface Codec<E> {
+
+	/**
+	 * Returns the bytes of the element.
+	 */
+	byte[] encode(E element);
+
+	/**
+	 * Returns the element of the bytes.
+	 *
+	 * @throws IllegalArgumentException if the bytes are not an encoded element
+	 */
+	E decode(byte[] bytes);
+}
@@ -1,10 +1,40 @@
 package org.twohead.zadanie.queue;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.twohead.zadanie.metrics.QueueMetrics;
+import org.twohead.zadanie.model.DeadLetter;
+import org.twohead.zadanie.persistance.CloseableIterator;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.persistance.UncheckedSQLException;
 
 /**
  * A queue backed by database. This queue orders elements 
@@ -14,15 +44,151 @@ import java.util.concurrent.locks.ReentrantLock;
  * the shortest time. New elements are inserted at the tail of the queue,
  * and the queue retrieval operations obtain elements at the head of the queue.
  *
+ * <p>
+ * The number of elements is kept in memory. It is loaded from the table on
+ * first use and updated by every operation afterwards, so waiting and sizing
+ * never count rows. The table must therefore be modified only through this
+ * queue.
+ *
+ * <p>
+ * The queue may be bounded by a capacity, puts then wait for room while it is
+ * full and so apply backpressure to producers instead of letting the table
+ * grow without limit.
+ *
+ * <p>
+ * Elements may be taken under a {@linkplain #lease(long, TimeUnit) lease}
+ * instead, their rows then stay in the table until acknowledged and expired
+ * leases are delivered again. Leased elements are not counted by
+ * {@link #size()} nor seen by iteration, but still take up capacity.
+ *
+ * <p>
+ * Several processes may share the table through a Derby network server once
+ * takes {@linkplain #setPolling(long, long, TimeUnit) poll} it. Elements put
+ * by another process are then found by polling with adaptive backoff, while
+ * puts of this process still wake takes at once. Rows are claimed with
+ * conditional deletes and updates, so no row is taken twice.
+ *
+ * <p>
+ * {@link #putAsync(Object)}, {@link #takeAsync()} and
+ * {@link #takeBatchAsync(int)} return futures instead of blocking the caller.
+ * They are served in request order by a few threads of the queue, and
+ * pending takes and puts do not hold a thread while they wait.
+ * {@link #publisher()} streams the elements to reactive subscribers, taking
+ * only as many as they request.
+ *
+ * <p>
+ * Every queue records counters and latencies of its operations, its main
+ * lock and its commits, readable through {@link #getMetrics()} and
+ * publishable over JMX.
+ *
  * @param <E> the type of elements held in this collection
  */
 public abstract class DBBlockingQueue<E> {
 
-	/** Main lock guarding all access */
-	final ReentrantLock lock;
+	/** Default number of rows fetched per round trip when iterating */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+	/** Default maximum number of elements written with one group commit */
+	public static final int DEFAULT_GROUP_COMMIT_SIZE = 256;
+	/** Default time a group commit waits for further puts to join, in microseconds */
+	public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 1000;
+	/** Default interval between releases of expired leases, in milliseconds */
+	public static final long DEFAULT_LEASE_REAP_INTERVAL_MILLIS = 1000;
+	/** Number of threads serving the asynchronous puts and takes of a queue */
+	public static final int ASYNC_THREADS = 2;
+
+	/** Lock held by take, poll, etc; the main lock guarding all access unless locks are split */
+	final ReentrantLock takeLock;
 	/** Condition for waiting takes */
 	private final Condition notEmpty;
+	/** Lock held by put, offer, etc; the same lock as takeLock unless locks are split */
+	final ReentrantLock putLock;
 	/** Condition for waiting puts */
+	private final Condition notFull;
+
+	/** The capacity bound, or Integer.MAX_VALUE if none */
+	private final int capacity;
+	/** Current number of elements, authoritative once loaded from the table */
+	private final AtomicInteger itemCount = new AtomicInteger();
+	/** Number of elements admitted by puts but not yet committed and counted */
+	private final AtomicInteger reserved = new AtomicInteger();
+	/** Number of leased elements, loaded with itemCount */
+	private final AtomicInteger leasedCount = new AtomicInteger();
+	/** Whether itemCount has been loaded from the table */
+	private volatile boolean itemCountLoaded;
+	/** Number of takes waiting for an element, changed under takeLock */
+	private final AtomicInteger waitingTakers = new AtomicInteger();
+	/** Threads to wake from their next wait for an element, guarded by takeLock */
+	private final Set<Thread> wakeups = Collections.newSetFromMap(new WeakHashMap<>());
+
+	/** Counters and latencies of this queue */
+	private final QueueMetrics metrics;
+
+	/** Number of rows fetched per round trip when iterating */
+	private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+
+	/** Number of head elements read ahead into memory, 0 when disabled */
+	private volatile int prefetchSize;
+	/** Buffer size at or below which a refill is scheduled */
+	private int prefetchLowWatermark;
+	/** Head elements read ahead, guarded by takeLock */
+	private final ArrayDeque<E> prefetched = new ArrayDeque<>();
+	/** Number of taken elements whose rows are not deleted yet, guarded by takeLock */
+	private int pendingDeletes;
+	/** Changes whenever the table positions of prefetched elements may have shifted, guarded by takeLock */
+	private long prefetchEpoch;
+	/** Whether a refill is scheduled, guarded by takeLock */
+	private boolean refillScheduled;
+	/** Runs refills, created when prefetching is first enabled */
+	private ExecutorService prefetchExecutor;
+
+	/** Asynchronous takes waiting for elements, in request order, removed under takeLock */
+	private final ConcurrentLinkedQueue<PendingTake<?>> pendingTakes = new ConcurrentLinkedQueue<>();
+	/** Whether a dispatch of pending takes is scheduled or running */
+	private final AtomicBoolean takeDispatchScheduled = new AtomicBoolean();
+	/** Whether a poll for pending takes is scheduled, guarded by takeLock */
+	private boolean takePollScheduled;
+	/** Asynchronous puts waiting to be admitted, in request order, removed under putLock */
+	private final ConcurrentLinkedQueue<PendingPut<E>> pendingPuts = new ConcurrentLinkedQueue<>();
+	/** Whether a dispatch of pending puts is scheduled or running */
+	private final AtomicBoolean putDispatchScheduled = new AtomicBoolean();
+	/** Runs asynchronous puts and takes, created on first use */
+	private volatile ScheduledExecutorService asyncExecutor;
+
+	/** Delays between polls for elements put by other processes, null unless polling; used under takeLock */
+	private volatile AdaptiveBackoff backoff;
+	/** Delays between polls for room freed by other processes, null unless polling; used under putLock */
+	private AdaptiveBackoff putBackoff;
+	/** Whether a poll for room is scheduled for pending asynchronous puts; guarded by putLock */
+	private boolean putPollScheduled;
+
+	/** Writes the puts unless durability is SYNC */
+	private volatile GroupCommitter<E> committer;
+	/** Current durability mode */
+	private volatile Durability durability = Durability.SYNC;
+
+	/** When failed leases are delivered again or dead-lettered */
+	private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	/** Interval between releases of expired leases, guarded by this */
+	private long leaseReapIntervalMillis = DEFAULT_LEASE_REAP_INTERVAL_MILLIS;
+	/** Releases expired leases, created when leases are first seen, guarded by this */
+	private ScheduledExecutorService leaseReaper;
+	/** The scheduled release of expired leases, guarded by this */
+	private ScheduledFuture<?> leaseReap;
+
+	/**
+	 * Elements of an asynchronous put, waiting for room.
+	 */
+	private static final class PendingPut<E> {
+		final List<E> elements;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		/** Time the put was requested, a value of System.nanoTime() */
+		final long startNanos = System.nanoTime();
+
+		PendingPut(List<E> elements) {
+			this.elements = elements;
+		}
+	}
 
 	/**
 	 * Throws NullPointerException if argument is null.
@@ -34,6 +200,36 @@ public abstract class DBBlockingQueue<E> {
 			throw new NullPointerException();
 	}
 
+	/**
+	 * Throws UnsupportedOperationException unless the queue supports leases.
+	 */
+	/**
+	 * Throws NullPointerException if the key is null, IllegalArgumentException
+	 * if the queue declares no such lookup key.
+	 */
+	private void checkKey(String key) {
+		checkNotNull(key);
+		if (!keyNames().contains(key))
+			throw new IllegalArgumentException("Unknown lookup key " + key);
+	}
+
+	/**
+	 * Throws UnsupportedOperationException unless the queue supports leases.
+	 */
+	private void checkLeaseSupported() {
+		if (!isLeaseSupported())
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support leases");
+	}
+
+	/**
+	 * Throws UnsupportedOperationException unless the queue supports dead
+	 * letters.
+	 */
+	private void checkDeadLetterSupported() {
+		if (!isDeadLetterSupported())
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " has no dead-letter table");
+	}
+
 	
 	/**
 	 * Inserts element into its database table.
@@ -41,6 +237,13 @@ public abstract class DBBlockingQueue<E> {
 	 * @throws SQLException
 	 */
 	protected abstract void insertItem(E element) throws SQLException;
+
+	/**
+	 * Inserts all elements into its database table in a single transaction.
+	 * 
+	 * @throws SQLException
+	 */
+	protected abstract void insertItems(Collection<? extends E> elements) throws SQLException;
 	
 	/**
 	 * Returns the first element from its table and deletes it.
@@ -49,6 +252,15 @@ public abstract class DBBlockingQueue<E> {
 	 * @throws SQLException
 	 */
 	protected abstract E extractItem() throws SQLException;
+
+	/**
+	 * Returns up to {@code max} first elements from its table and deletes them
+	 * in a single transaction.
+	 * 
+	 * @param max the maximum number of elements to extract
+	 * @throws SQLException
+	 */
+	protected abstract List<E> extractItems(int max) throws SQLException;
 	
 	/**
 	 * Returns the element at the given position of its table.
@@ -69,9 +281,37 @@ public abstract class DBBlockingQueue<E> {
 	/**
 	 * Removes element at the given position of its table.
 	 *  
+	 * @return {@code true} if an element was removed
 	 * @throws SQLException  
 	 */
-	protected abstract void removeItemAt(int i) throws SQLException;
+	protected abstract boolean removeItemAt(int i) throws SQLException;
+
+	/**
+	 * Removes the first element equal to the given one from its table. The
+	 * default implementation scans the table and removes the element at the
+	 * position found, queues whose table is shared override it to remove the
+	 * matched row itself.
+	 * 
+	 * @param fetchSize the number of rows to fetch per round trip
+	 * @return {@code true} if an element was removed
+	 * @throws SQLException
+	 */
+	protected boolean removeItem(Object o, int fetchSize) throws SQLException {
+		int i = -1;
+		try (CloseableIterator<E> it = openCursor(fetchSize)) {
+			int j = 0;
+			while (it.hasNext()) {
+				if (o.equals(it.next())) {
+					i = j;
+					break;
+				}
+				j++;
+			}
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+		return i >= 0 && removeItemAt(i);
+	}
 	
 	/**
 	 * Removes all elements from their table.
@@ -81,68 +321,1632 @@ public abstract class DBBlockingQueue<E> {
 	protected abstract void clearTable() throws SQLException;
 
 	/**
-	 * Inserts element at the end and signals. Call only when holding lock.
+	 * Opens a forward-only cursor over all elements of its table in queue order,
+	 * backed by a single result set.
+	 * 
+	 * @param fetchSize the number of rows to fetch per round trip
+	 * @throws SQLException
+	 */
+	protected abstract CloseableIterator<E> openCursor(int fetchSize) throws SQLException;
+
+	/**
+	 * Returns the names of the lookup keys this queue declares, the key names
+	 * of {@link #lookupKeys(Object)}. Queues declaring keys override both.
+	 * Declares no keys by default.
+	 */
+	protected Set<String> keyNames() {
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Returns the lookup keys of the element, by key name. Queues backing keys
+	 * with an index override this together with
+	 * {@link #containsItemKey(String, Object)} and
+	 * {@link #removeItemKey(String, Object)}. Declares no keys by default.
+	 * 
+	 * @param element the element
+	 */
+	protected Map<String, Object> lookupKeys(E element) {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Returns whether its table holds an element with the given key value. The
+	 * default implementation scans the table.
+	 * 
+	 * @throws SQLException
+	 */
+	protected boolean containsItemKey(String key, Object value) throws SQLException {
+		try (CloseableIterator<E> it = openCursor(fetchSize)) {
+			while (it.hasNext()) {
+				if (value.equals(lookupKeys(it.next()).get(key)))
+					return true;
+			}
+			return false;
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Removes the first element with the given key value from its table. The
+	 * default implementation scans the table.
+	 * 
+	 * @return {@code true} if an element was removed
+	 * @throws SQLException
+	 */
+	protected boolean removeItemKey(String key, Object value) throws SQLException {
+		int i = -1;
+		try (CloseableIterator<E> it = openCursor(fetchSize)) {
+			int j = 0;
+			while (it.hasNext()) {
+				if (value.equals(lookupKeys(it.next()).get(key))) {
+					i = j;
+					break;
+				}
+				j++;
+			}
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+		return i >= 0 && removeItemAt(i);
+	}
+
+	/**
+	 * Returns up to {@code max} elements starting at the given position of its
+	 * table, read with a single query.
+	 * 
+	 * @param from the position of the first element
+	 * @param max  the maximum number of elements to return
+	 * @throws SQLException
+	 */
+	protected abstract List<E> itemsAt(int from, int max) throws SQLException;
+
+	/**
+	 * Removes the first {@code n} elements from their table in a single
+	 * transaction.
+	 * 
+	 * @param n the number of elements to remove
+	 * @throws SQLException
+	 */
+	protected abstract void removeHead(int n) throws SQLException;
+
+	/**
+	 * Marks the first element of its table not leased yet as leased by the
+	 * owner until the deadline and returns it, or {@code null} if there is
+	 * none. Leased elements are skipped by all other hooks except
+	 * {@link #clearTable()}. Queues supporting leases override this together
+	 * with {@link #ackItem(String)}, {@link #nackItem(String)},
+	 * {@link #releaseExpiredItems(long)}, {@link #countLeased()} and
+	 * {@link #isLeaseSupported()}.
+	 * 
+	 * @param owner    the token identifying the lease
+	 * @param deadline the time the lease expires, in milliseconds since the epoch
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support leases
+	 */
+	protected E leaseItem(String owner, long deadline) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Deletes the element leased by the owner from its table.
+	 * 
+	 * @return {@code false} if the owner holds no lease
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support leases
+	 */
+	protected boolean ackItem(String owner) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases the element leased by the owner, keeping its position.
+	 * 
+	 * @return {@code false} if the owner holds no lease
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support leases
+	 */
+	protected boolean nackItem(String owner) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases all elements whose lease expired before {@code now}.
+	 * 
+	 * @param now the current time in milliseconds since the epoch
+	 * @return the number of released elements
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support leases
+	 */
+	protected int releaseExpiredItems(long now) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns the count of leased elements in their table, 0 unless the queue
+	 * supports leases.
+	 * 
+	 * @throws SQLException
+	 */
+	protected int countLeased() throws SQLException {
+		return 0;
+	}
+
+	/**
+	 * Counts a failed attempt to process the element leased by the owner.
+	 * Queues supporting dead letters override this together with
+	 * {@link #retryItem(String, long)}, {@link #deadLetterItem(String, String, long)},
+	 * {@link #insertDeadItem(Object, int, String, long)},
+	 * {@link #countDeadItems()}, {@link #deadItems(int)},
+	 * {@link #replayDeadItems(int)} and {@link #isDeadLetterSupported()}.
+	 * 
+	 * @return the failed attempts of the element so far, 0 if the owner holds
+	 *         no lease
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected int failItem(String owner) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Keeps the element leased by the owner hidden until {@code notBefore},
+	 * it is then released by {@link #releaseExpiredItems(long)}.
+	 * 
+	 * @return {@code false} if the owner holds no lease
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected boolean retryItem(String owner, long notBefore) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Moves the element leased by the owner to the dead-letter table.
+	 * 
+	 * @param reason   the last failure, {@code null} if unknown
+	 * @param failedAt the time of the failure in milliseconds since the epoch
+	 * @return {@code false} if the owner holds no lease
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected boolean deadLetterItem(String owner, String reason, long failedAt) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Adds an element no longer in the queue to the dead-letter table.
+	 * 
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected void insertDeadItem(E element, int attempts, String reason, long failedAt) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns the count of elements in the dead-letter table, 0 unless the
+	 * queue supports dead letters.
+	 * 
+	 * @throws SQLException
+	 */
+	protected int countDeadItems() throws SQLException {
+		return 0;
+	}
+
+	/**
+	 * Returns up to {@code max} of the oldest dead letters.
+	 * 
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected List<DeadLetter<E>> deadItems(int max) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Moves up to {@code max} of the oldest dead letters back to the end of
+	 * its table in one transaction.
+	 * 
+	 * @return the number of moved elements
+	 * @throws SQLException
+	 * @throws UnsupportedOperationException if the queue does not support dead letters
+	 */
+	protected int replayDeadItems(int max) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Inserts element at the end. Call only when holding putLock. Returns the
+	 * count before the insertion, the caller signals waiting takes when it was
+	 * zero.
 	 * @throws SQLException 
 	 */
-	private void insert(E x) throws SQLException {
+	private int insert(E x) throws SQLException {
 		insertItem(x);
-		notEmpty.signal();
+		return itemCount.getAndIncrement();
+	}
+
+	/**
+	 * Inserts all elements at the end. Call only when holding putLock. Returns
+	 * like {@link #insert(Object)}.
+	 * @throws SQLException 
+	 */
+	private int insertAll(Collection<? extends E> c) throws SQLException {
+		insertItems(c);
+		return itemCount.getAndAdd(c.size());
+	}
+
+	/**
+	 * Writes a batch collected by the group committer and makes it visible to
+	 * takes.
+	 * @throws SQLException 
+	 */
+	private void commitBatch(List<E> batch) throws SQLException {
+		loadCount();
+		int n = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lock();
+		try {
+			n = insertAll(batch);
+		} finally {
+			reserved.addAndGet(-batch.size());
+			putLock.unlock();
+			if (n == -1)
+				signalNotFull();
+		}
+		if (n == 0)
+			signalNotEmpty();
+	}
+
+	/**
+	 * Hands elements to the group committer and waits for their commit unless
+	 * it is asynchronous. Returns {@code false} when the durability is SYNC and
+	 * the caller writes them itself.
+	 * @throws SQLException if the commit failed
+	 */
+	private boolean commitGrouped(Collection<? extends E> c) throws SQLException {
+		for (;;) {
+			final GroupCommitter<E> gc = committer;
+			if (gc == null)
+				return false;
+			final var done = gc.submit(c);
+			// a closed committer has just been replaced, retry with the current one
+			if (done != null) {
+				if (!gc.isAsync())
+					awaitCommit(done);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether there is room for {@code n} more elements. Call only when
+	 * holding putLock.
+	 */
+	private boolean hasRoom(int n) {
+		return itemCount.get() + reserved.get() + leasedCount.get() + n <= capacity;
+	}
+
+	/**
+	 * Returns whether there is room for {@code n} more elements like
+	 * {@link #hasRoom(int)}. When polling and the bound is reached, the counts
+	 * are read again from the table first: takes of other processes free room
+	 * without lowering the counts of this one. Call only when holding putLock.
+	 * @throws SQLException 
+	 */
+	private boolean hasSharedRoom(int n) throws SQLException {
+		if (hasRoom(n))
+			return true;
+		final AdaptiveBackoff b = putBackoff;
+		if (b == null)
+			return false;
+		itemCount.set(count());
+		leasedCount.set(countLeased());
+		if (!hasRoom(n))
+			return false;
+		b.reset();
+		return true;
+	}
+
+	/**
+	 * Waits until there is room for {@code n} more elements, up to
+	 * {@code nanos} if timed. Returns {@code false} if the time elapsed first.
+	 * When polling, the counts are read again after each poll delay. Call only
+	 * when holding putLock.
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException 
+	 */
+	private boolean awaitRoom(int n, boolean timed, long nanos) throws InterruptedException, SQLException {
+		while (!hasSharedRoom(n)) {
+			final AdaptiveBackoff b = putBackoff;
+			if (!timed) {
+				if (b == null)
+					notFull.await();
+				else
+					notFull.awaitNanos(b.nextDelayNanos());
+			} else {
+				if (nanos <= 0)
+					return false;
+				if (b == null) {
+					nanos = notFull.awaitNanos(nanos);
+				} else {
+					final long delay = Math.min(nanos, b.nextDelayNanos());
+					nanos = nanos - delay + notFull.awaitNanos(delay);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Admits elements there is room for. Inserts them when the durability is
+	 * SYNC and returns the count before the insertion, otherwise reserves room
+	 * for them and returns -1, the caller then writes them with
+	 * {@link #writeAdmitted(Collection, int)}. Call only when holding putLock.
+	 * @throws SQLException 
+	 */
+	private int admit(Collection<? extends E> c) throws SQLException {
+		final int before;
+		final GroupCommitter<E> gc = committer;
+		if (gc != null) {
+			throwFailure(gc);
+			reserved.addAndGet(c.size());
+			before = -1;
+		} else {
+			before = (c.size() == 1) ? insert(c.iterator().next()) : insertAll(c);
+		}
+		if (hasRoom(1))
+			notFull.signal();
+		return before;
+	}
+
+	/**
+	 * Completes a put after {@link #admit(Collection)} returned, without
+	 * holding putLock: writes reserved elements and signals waiting takes.
+	 * @throws SQLException 
+	 */
+	private void writeAdmitted(Collection<? extends E> c, int before) throws SQLException {
+		if (before == -1 && !commitGrouped(c)) {
+			// the durability became SYNC meanwhile, write the reserved elements here
+			final ReentrantLock putLock = this.putLock;
+			putLock.lock();
+			try {
+				before = insertAll(c);
+			} finally {
+				reserved.addAndGet(-c.size());
+				putLock.unlock();
+				if (before == -1)
+					signalNotFull();
+			}
+		}
+		if (before == 0)
+			signalNotEmpty();
+	}
+
+	/**
+	 * Waits for a group commit. The wait is not interruptible, the elements are
+	 * committed whether the caller waits or not; an interrupt is kept pending.
+	 * @throws SQLException if the commit failed
+	 */
+	private static void awaitCommit(CompletableFuture<Void> done) throws SQLException {
+		try {
+			done.join();
+		} catch (CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	/**
+	 * Waits for writes of the committer like
+	 * {@link #awaitCommit(CompletableFuture)}. An asynchronous committer throws
+	 * its first failure not reported yet instead, so that each failure is
+	 * thrown once.
+	 * @throws SQLException if a write failed
+	 */
+	private static void awaitWritten(GroupCommitter<?> gc, CompletableFuture<Void> done) throws SQLException {
+		if (!gc.isAsync()) {
+			awaitCommit(done);
+			return;
+		}
+		done.exceptionally(ex -> null).join();
+		throwFailure(gc);
+	}
+
+	/**
+	 * Throws the first failure of an asynchronous committer not reported yet.
+	 * @throws SQLException if a write failed
+	 */
+	private static void throwFailure(GroupCommitter<?> gc) throws SQLException {
+		final Exception e = gc.takeFailure();
+		if (e instanceof SQLException)
+			throw (SQLException) e;
+		if (e != null)
+			throw (RuntimeException) e;
+	}
+
+	/**
+	 * Extracts the first element. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private E extract() throws SQLException {
+		E x = (prefetchSize > 0) ? extractPrefetched() : extractItem();
+		if (x == null)
+			polledEmpty();
+		else if (decrementCount(1) > 1)
+			wakeTakers();
+		return x;
+	}
+
+	/**
+	 * Extracts up to max first elements. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private List<E> extractAll(int max) throws SQLException {
+		final List<E> x;
+		if (prefetchSize > 0) {
+			x = new ArrayList<>();
+			final int limit = Math.min(max, itemCount.get());
+			E e;
+			while (x.size() < limit && (e = extractPrefetched()) != null)
+				x.add(e);
+		} else {
+			x = extractItems(max);
+		}
+		final int n = x.size();
+		if (n == 0)
+			polledEmpty();
+		else if (decrementCount(n) > n)
+			wakeTakers();
+		return x;
+	}
+
+	/**
+	 * Returns the number of elements. When polling, the count covers only
+	 * this process, so at least one element is assumed to make takes poll the
+	 * table. Call only when holding takeLock.
+	 */
+	private int available() {
+		final int n = itemCount.get();
+		return (n == 0 && backoff != null) ? 1 : n;
+	}
+
+	/**
+	 * Subtracts taken elements from the count and returns the count before.
+	 * When polling, elements put by other processes are taken as well, the
+	 * count then stays at zero. Call only when holding takeLock.
+	 */
+	private int decrementCount(int n) {
+		final AdaptiveBackoff b = backoff;
+		if (b == null)
+			return itemCount.getAndAdd(-n);
+		b.reset();
+		return itemCount.getAndUpdate(c -> Math.max(0, c - n));
+	}
+
+	/**
+	 * Records that the table held no element to take, possible only when
+	 * polling: elements put by this process were taken by another one. Call
+	 * only when holding takeLock.
+	 */
+	private void polledEmpty() {
+		if (backoff != null)
+			itemCount.set(0);
+	}
+
+	/**
+	 * Throws if the current thread was woken by {@link #wakeTaker(Thread)}.
+	 * Call only when holding takeLock.
+	 */
+	private void checkWoken() throws InterruptedException {
+		if (!wakeups.isEmpty() && wakeups.remove(Thread.currentThread()))
+			throw new InterruptedException("Woken");
+	}
+
+	/**
+	 * Waits for a put of this process to signal, when polling at most until
+	 * the next poll is due. Call only when holding takeLock.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void awaitNotEmpty() throws InterruptedException {
+		checkWoken();
+		final AdaptiveBackoff b = backoff;
+		waitingTakers.incrementAndGet();
+		try {
+			if (b == null)
+				notEmpty.await();
+			else
+				notEmpty.awaitNanos(b.nextDelayNanos());
+		} finally {
+			waitingTakers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Waits like {@link #awaitNotEmpty()}, at most {@code nanos}, and returns
+	 * the time left. Call only when holding takeLock.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private long awaitNotEmpty(long nanos) throws InterruptedException {
+		checkWoken();
+		final AdaptiveBackoff b = backoff;
+		waitingTakers.incrementAndGet();
+		try {
+			if (b == null)
+				return notEmpty.awaitNanos(nanos);
+			final long delay = Math.min(nanos, b.nextDelayNanos());
+			return nanos - delay + notEmpty.awaitNanos(delay);
+		} finally {
+			waitingTakers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes the head from the prefetch buffer, reading ahead when the buffer
+	 * is empty. The row of the taken element is deleted later, in order with
+	 * the rows taken before it. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private E extractPrefetched() throws SQLException {
+		if (pendingDeletes >= prefetchSize)
+			flushDeletes();
+		if (prefetched.isEmpty())
+			fillPrefetch();
+		final E x = prefetched.pollFirst();
+		if (x == null)
+			return null;
+		pendingDeletes++;
+		if (prefetched.size() <= prefetchLowWatermark)
+			scheduleRefill();
+		return x;
+	}
+
+	/**
+	 * Returns the head without removing it, from the prefetch buffer when
+	 * enabled. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private E head() throws SQLException {
+		if (prefetchSize == 0)
+			return itemAt(0);
+		if (prefetched.isEmpty())
+			fillPrefetch();
+		return prefetched.peekFirst();
+	}
+
+	/**
+	 * Reads ahead up to the prefetch size. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private void fillPrefetch() throws SQLException {
+		final int wanted = prefetchSize - prefetched.size();
+		if (wanted <= 0)
+			return;
+		prefetchEpoch++;
+		prefetched.addAll(itemsAt(pendingDeletes + prefetched.size(), wanted));
+	}
+
+	/**
+	 * Deletes the rows of taken prefetched elements. Call only when holding
+	 * takeLock.
+	 * @throws SQLException 
+	 */
+	private void flushDeletes() throws SQLException {
+		if (pendingDeletes == 0)
+			return;
+		removeHead(pendingDeletes);
+		pendingDeletes = 0;
+		prefetchEpoch++;
+	}
+
+	/**
+	 * Deletes the rows of taken prefetched elements and drops the buffer,
+	 * before the head rows are changed other than by taking. Call only when
+	 * holding takeLock.
+	 * @throws SQLException 
+	 */
+	private void resetPrefetch() throws SQLException {
+		flushDeletes();
+		prefetched.clear();
+		prefetchEpoch++;
+	}
+
+	/**
+	 * Schedules an asynchronous refill unless one is pending. Call only when
+	 * holding takeLock.
+	 */
+	private void scheduleRefill() {
+		if (refillScheduled)
+			return;
+		refillScheduled = true;
+		prefetchExecutor.execute(this::refillPrefetch);
+	}
+
+	/**
+	 * Deletes the rows of taken elements and reads ahead up to the prefetch
+	 * size. The read runs without the lock, its result is dropped when the
+	 * buffered positions changed in the meantime.
+	 */
+	private void refillPrefetch() {
+		final ReentrantLock takeLock = this.takeLock;
+		int from;
+		int wanted;
+		long epoch;
+		takeLock.lock();
+		try {
+			refillScheduled = false;
+			flushDeletes();
+			wanted = prefetchSize - prefetched.size();
+			if (wanted <= 0)
+				return;
+			from = pendingDeletes + prefetched.size();
+			epoch = prefetchEpoch;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			takeLock.unlock();
+		}
+
+		try {
+			final List<E> items = itemsAt(from, wanted);
+			takeLock.lock();
+			try {
+				if (epoch == prefetchEpoch)
+					prefetched.addAll(items);
+			} finally {
+				takeLock.unlock();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Leases the first element. Leasing changes the head rows, so the prefetch
+	 * buffer is dropped. Call only when holding takeLock.
+	 * @throws SQLException 
+	 */
+	private Lease<E> leaseHead(long visibility, TimeUnit unit) throws SQLException {
+		resetPrefetch();
+		final String owner = UUID.randomUUID().toString();
+		final long deadline = System.currentTimeMillis() + unit.toMillis(visibility);
+		final E x = leaseItem(owner, deadline);
+		if (x == null) {
+			polledEmpty();
+			return null;
+		}
+		leasedCount.incrementAndGet();
+		if (decrementCount(1) > 1)
+			wakeTakers();
+		return new Lease<>(this, owner, x, deadline);
+	}
+
+	/**
+	 * Deletes the row of an acknowledged lease.
+	 * @throws SQLException 
+	 */
+	boolean ack(Lease<E> lease) throws SQLException {
+		if (!ackItem(lease.getOwner()))
+			return false;
+		leasedCount.decrementAndGet();
+		signalNotFull();
+		return true;
+	}
+
+	/**
+	 * Puts the element of a released lease back at its position.
+	 * @throws SQLException 
+	 */
+	boolean nack(Lease<E> lease) throws SQLException {
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			resetPrefetch();
+			if (!nackItem(lease.getOwner()))
+				return false;
+			itemCount.getAndIncrement();
+			leasedCount.decrementAndGet();
+			wakeTakers();
+			return true;
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Delivers the element of a failed lease again once the retry policy
+	 * allows, or moves it to the dead-letter table after too many failures.
+	 * @throws SQLException 
+	 */
+	boolean fail(Lease<E> lease, Throwable cause) throws SQLException {
+		checkDeadLetterSupported();
+		final int attempts = failItem(lease.getOwner());
+		if (attempts == 0)
+			return false;
+		final RetryPolicy policy = retryPolicy;
+		final long now = System.currentTimeMillis();
+		if (attempts < policy.getMaxAttempts()) {
+			// stays leased until the delay passed, then released like an expired lease
+			if (!retryItem(lease.getOwner(), now + policy.getDelayMillis(attempts)))
+				return false;
+			startLeaseReaper();
+			return true;
+		}
+		if (!deadLetterItem(lease.getOwner(), reasonOf(cause), now))
+			return false;
+		leasedCount.decrementAndGet();
+		signalNotFull();
+		return true;
+	}
+
+	/**
+	 * Returns the failure kept with a dead letter, cut to the column length.
+	 */
+	private static String reasonOf(Throwable cause) {
+		if (cause == null)
+			return null;
+		final String reason = cause.toString();
+		return reason.length() <= DBUtils.MAX_REASON_LENGTH ? reason
+				: reason.substring(0, DBUtils.MAX_REASON_LENGTH);
+	}
+
+	/**
+	 * Releases expired leases, their elements become available again.
+	 */
+	private void reapLeases() {
+		if (leasedCount.get() == 0)
+			return;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			resetPrefetch();
+			final int n = releaseExpiredItems(System.currentTimeMillis());
+			if (n > 0) {
+				itemCount.getAndAdd(n);
+				leasedCount.addAndGet(-n);
+				wakeTakers();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Schedules the release of expired leases unless it is scheduled.
+	 */
+	private synchronized void startLeaseReaper() {
+		if (leaseReap != null)
+			return;
+		if (leaseReaper == null) {
+			leaseReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+				final var t = new Thread(r, "db-queue-lease-reaper");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		leaseReap = leaseReaper.scheduleWithFixedDelay(this::reapLeases, leaseReapIntervalMillis,
+				leaseReapIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Signals a waiting take. Called only from put/offer (which do not
+	 * otherwise ordinarily lock takeLock.)
+	 */
+	private void signalNotEmpty() {
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			wakeTakers();
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Signals a waiting take and dispatches pending asynchronous takes. Call
+	 * only when holding takeLock.
+	 */
+	private void wakeTakers() {
+		notEmpty.signal();
+		if (!pendingTakes.isEmpty())
+			scheduleTakeDispatch();
+	}
+
+	/**
+	 * Signals all waiting puts and dispatches pending asynchronous puts. Call
+	 * only when holding putLock.
+	 */
+	private void wakePutters() {
+		notFull.signalAll();
+		if (!pendingPuts.isEmpty())
+			schedulePutDispatch();
+	}
+
+	/**
+	 * Signals waiting puts that room became available. Called only from
+	 * take/poll and failed writes, which do not otherwise ordinarily lock
+	 * putLock. All of them are woken, a put of several elements may not fit
+	 * where a single one does. Does nothing when the queue is unbounded.
+	 */
+	private void signalNotFull() {
+		if (capacity == Integer.MAX_VALUE)
+			return;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lock();
+		try {
+			wakePutters();
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the executor of asynchronous puts and takes, creating it on
+	 * first use.
+	 */
+	private ScheduledExecutorService asyncExecutor() {
+		ScheduledExecutorService executor = asyncExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				executor = asyncExecutor;
+				if (executor == null) {
+					final var threads = new AtomicInteger();
+					executor = Executors.newScheduledThreadPool(ASYNC_THREADS, r -> {
+						final var t = new Thread(r, "db-queue-async-" + threads.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+					asyncExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Schedules a dispatch of pending takes unless one is scheduled or
+	 * running. Does not block.
+	 */
+	private void scheduleTakeDispatch() {
+		if (takeDispatchScheduled.compareAndSet(false, true))
+			asyncExecutor().execute(this::dispatchTakes);
+	}
+
+	/**
+	 * Schedules the next poll for pending takes unless one is scheduled. Call
+	 * only when holding takeLock.
+	 */
+	private void scheduleTakePoll(long delayNanos) {
+		if (takePollScheduled)
+			return;
+		takePollScheduled = true;
+		asyncExecutor().schedule(() -> {
+			final ReentrantLock takeLock = this.takeLock;
+			takeLock.lock();
+			try {
+				takePollScheduled = false;
+			} finally {
+				takeLock.unlock();
+			}
+			scheduleTakeDispatch();
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Adds an asynchronous take and dispatches it. A take cancelled or timed
+	 * out by the caller leaves the pending takes as it completes, rather than
+	 * when a dispatch finds an element for it.
+	 */
+	private void addPendingTake(PendingTake<?> take) {
+		pendingTakes.add(take);
+		take.whenComplete((x, e) -> {
+			if (!take.delivered())
+				pendingTakes.remove(take);
+		});
+		scheduleTakeDispatch();
+	}
+
+	/**
+	 * Serves pending asynchronous takes in request order while elements are
+	 * available. Only one dispatch runs at a time. The elements are taken
+	 * under takeLock and the futures completed after it is released. When
+	 * polling, the next poll is scheduled while takes remain pending.
+	 */
+	@SuppressWarnings("unchecked")
+	private void dispatchTakes() {
+		try {
+			loadCount();
+		} catch (SQLException e) {
+			takeDispatchScheduled.set(false);
+			PendingTake<?> take;
+			while ((take = pendingTakes.poll()) != null)
+				take.completeExceptionally(e);
+			return;
+		}
+		final var served = new ArrayList<PendingTake<?>>();
+		Runnable cancelled = null;
+		boolean taken = false;
+		boolean polledEmpty = false;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			for (;;) {
+				PendingTake<?> take;
+				while (!polledEmpty && (take = pendingTakes.peek()) != null && available() > 0) {
+					if (!take.claim()) {
+						// completed or cancelled by the caller
+						pendingTakes.poll();
+						continue;
+					}
+					int n = 0;
+					try {
+						if (take.max == 0) {
+							final E x = extract();
+							if (x != null) {
+								((PendingTake<E>) take).taken(x);
+								n = 1;
+							}
+						} else {
+							final List<E> x = extractAll(take.max);
+							if (!x.isEmpty()) {
+								((PendingTake<List<E>>) take).taken(x);
+								n = x.size();
+							}
+						}
+					} catch (SQLException | RuntimeException e) {
+						take.failed(e);
+						pendingTakes.poll();
+						served.add(take);
+						continue;
+					}
+					if (n == 0) {
+						// the elements were taken by another process
+						polledEmpty = true;
+						cancelled = take.release();
+						if (cancelled != null)
+							pendingTakes.poll();
+						break;
+					}
+					pendingTakes.poll();
+					served.add(take);
+					metrics.recordTake(n, take.startNanos);
+					taken = true;
+				}
+				takeDispatchScheduled.set(false);
+				// a take requested meanwhile found this dispatch still running
+				if (polledEmpty || pendingTakes.isEmpty() || available() == 0
+						|| !takeDispatchScheduled.compareAndSet(false, true))
+					break;
+			}
+			final AdaptiveBackoff b = backoff;
+			if (b != null && !pendingTakes.isEmpty())
+				scheduleTakePoll(b.nextDelayNanos());
+		} finally {
+			takeLock.unlock();
+		}
+		if (taken)
+			signalNotFull();
+		for (PendingTake<?> take : served)
+			take.deliver();
+		if (cancelled != null)
+			cancelled.run();
+	}
+
+	/**
+	 * Schedules a dispatch of pending puts unless one is scheduled or
+	 * running. Does not block.
+	 */
+	private void schedulePutDispatch() {
+		if (putDispatchScheduled.compareAndSet(false, true))
+			asyncExecutor().execute(this::dispatchPuts);
+	}
+
+	/**
+	 * Schedules the next poll for room for pending puts unless one is
+	 * scheduled. Call only when holding putLock.
+	 */
+	private void schedulePutPoll(long delayNanos) {
+		if (putPollScheduled)
+			return;
+		putPollScheduled = true;
+		asyncExecutor().schedule(() -> {
+			final ReentrantLock putLock = this.putLock;
+			putLock.lock();
+			try {
+				putPollScheduled = false;
+			} finally {
+				putLock.unlock();
+			}
+			schedulePutDispatch();
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Admits pending asynchronous puts in request order while there is room
+	 * for them. Only one dispatch runs at a time. When polling, the next poll
+	 * for room is scheduled while puts remain pending.
+	 */
+	private void dispatchPuts() {
+		try {
+			loadCount();
+		} catch (SQLException e) {
+			putDispatchScheduled.set(false);
+			PendingPut<E> put;
+			while ((put = pendingPuts.poll()) != null)
+				put.done.completeExceptionally(e);
+			return;
+		}
+		final ReentrantLock putLock = this.putLock;
+		for (;;) {
+			PendingPut<E> put;
+			int before = -1;
+			Exception failure = null;
+			putLock.lock();
+			try {
+				// a put completed by the caller is dropped, one admitted is still written
+				while ((put = pendingPuts.peek()) != null && put.done.isDone())
+					pendingPuts.poll();
+				try {
+					if (put == null || !hasSharedRoom(put.elements.size())) {
+						putDispatchScheduled.set(false);
+						// a put requested meanwhile found this dispatch still running
+						put = pendingPuts.peek();
+						if (put == null || !hasRoom(put.elements.size())
+								|| !putDispatchScheduled.compareAndSet(false, true)) {
+							final AdaptiveBackoff b = putBackoff;
+							if (b != null && put != null)
+								schedulePutPoll(b.nextDelayNanos());
+							return;
+						}
+						continue;
+					}
+					pendingPuts.poll();
+					before = admit(put.elements);
+				} catch (SQLException | RuntimeException e) {
+					failure = e;
+					pendingPuts.remove(put);
+				}
+			} finally {
+				putLock.unlock();
+			}
+			if (failure != null) {
+				put.done.completeExceptionally(failure);
+				continue;
+			}
+			final PendingPut<E> admitted = put;
+			writeAdmittedAsync(put.elements, before).whenComplete((v, ex) -> {
+				if (ex != null) {
+					admitted.done.completeExceptionally(ex);
+				} else {
+					metrics.recordPut(admitted.elements.size(), admitted.startNanos);
+					admitted.done.complete(null);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Completes an asynchronous put after {@link #admit(Collection)} returned,
+	 * like {@link #writeAdmitted(Collection, int)} but without waiting for a
+	 * group commit: the returned future completes with it.
+	 */
+	private CompletableFuture<Void> writeAdmittedAsync(Collection<? extends E> c, int before) {
+		if (before == -1) {
+			final GroupCommitter<E> gc = committer;
+			final CompletableFuture<Void> done = (gc == null) ? null : gc.submit(c);
+			if (done != null)
+				return gc.isAsync() ? CompletableFuture.completedFuture(null) : done;
+		}
+		try {
+			writeAdmitted(c, before);
+			return CompletableFuture.completedFuture(null);
+		} catch (SQLException | RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Locks to prevent both puts and takes.
+	 */
+	void fullyLock() {
+		putLock.lock();
+		takeLock.lock();
+	}
+
+	/**
+	 * Unlocks to allow both puts and takes.
+	 */
+	void fullyUnlock() {
+		takeLock.unlock();
+		putLock.unlock();
+	}
+
+	/**
+	 * Loads the element count from the table on first use.
+	 * @throws SQLException 
+	 */
+	private void loadCount() throws SQLException {
+		if (itemCountLoaded)
+			return;
+		fullyLock();
+		try {
+			if (!itemCountLoaded) {
+				itemCount.set(count());
+				leasedCount.set(countLeased());
+				itemCountLoaded = true;
+			}
+		} finally {
+			fullyUnlock();
+		}
+		// leases left over by an earlier run are delivered again once expired
+		if (leasedCount.get() > 0)
+			startLeaseReaper();
+	}
+
+	/**
+	 * Records an element removed from the table other than by a take. Call
+	 * only when holding both locks.
+	 */
+	private void removed() {
+		decrementCount(1);
+		wakePutters();
+	}
+
+	/**
+	 * Enables reading ahead of the head rows. Up to {@code size} head elements
+	 * are loaded with a single query and kept in memory, {@code take} and
+	 * {@code peek} are served from them, and the buffer is refilled
+	 * asynchronously once it holds {@code lowWatermark} or fewer elements.
+	 *
+	 * <p>
+	 * Rows of taken elements are deleted in order but later, in batches, by the
+	 * refill or once {@code size} of them are pending. A crash therefore never
+	 * loses an element, but may deliver again up to {@code size} elements that
+	 * were taken before it. Taken elements no longer count against the
+	 * capacity, so the table of a bounded queue may meanwhile hold up to
+	 * {@code size} rows more than the capacity.
+	 *
+	 * @param size         the number of head elements to read ahead, 0 disables
+	 *                     prefetching
+	 * @param lowWatermark the buffer size at or below which a refill starts
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if {@code size} is negative or
+	 *                                  {@code lowWatermark} is not below it
+	 * @throws IllegalStateException if takes poll the table
+	 */
+	public void setPrefetch(int size, int lowWatermark) throws SQLException {
+		if (size < 0 || (size > 0 && (lowWatermark < 0 || lowWatermark >= size)))
+			throw new IllegalArgumentException();
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			if (size > 0 && backoff != null)
+				throw new IllegalStateException("Prefetching is not supported while polling");
+			resetPrefetch();
+			if (size > 0 && prefetchExecutor == null) {
+				prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+					final var t = new Thread(r, "db-queue-prefetch");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			prefetchLowWatermark = lowWatermark;
+			prefetchSize = size;
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets when puts return relative to the commit of their elements, with the
+	 * default group commit size and window.
+	 *
+	 * @param durability the durability mode
+	 * @throws SQLException if writing the elements of asynchronous puts made
+	 *                      before failed
+	 * @see #setDurability(Durability, int, long, TimeUnit)
+	 */
+	public void setDurability(Durability durability) throws SQLException {
+		setDurability(durability, DEFAULT_GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_WINDOW_MICROS,
+				TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Sets when puts return relative to the commit of their elements.
+	 *
+	 * <p>
+	 * With {@link Durability#SYNC} every put commits its own transaction. With
+	 * {@link Durability#GROUP} and {@link Durability#ASYNC} puts are handed to a
+	 * committer thread which writes the puts arriving within {@code window} of
+	 * the first one, up to {@code maxBatch} elements, with a single commit, in
+	 * the order they were made. A log flush is then shared by all producers of
+	 * a batch instead of being paid by each of them.
+	 *
+	 * <p>
+	 * Elements of asynchronous puts made before are written before the mode
+	 * changes.
+	 *
+	 * @param durability the durability mode
+	 * @param maxBatch   the maximum number of elements written with one commit
+	 * @param window     how long a batch waits for further puts, in units of
+	 *                   {@code unit}; 0 batches only the puts already waiting
+	 * @param unit       a {@code TimeUnit} determining how to interpret the
+	 *                   {@code window} parameter
+	 * @throws SQLException if writing the elements of asynchronous puts made
+	 *                      before failed
+	 * @throws IllegalArgumentException if {@code maxBatch} is not positive or
+	 *                                  {@code window} is negative
+	 */
+	public void setDurability(Durability durability, int maxBatch, long window, TimeUnit unit) throws SQLException {
+		checkNotNull(durability);
+		if (maxBatch <= 0 || window < 0)
+			throw new IllegalArgumentException();
+		final GroupCommitter<E> previous;
+		synchronized (this) {
+			previous = committer;
+			committer = (durability == Durability.SYNC) ? null
+					: new GroupCommitter<>(this::commitBatch, maxBatch, unit.toNanos(window),
+							durability == Durability.ASYNC);
+			this.durability = durability;
+		}
+		if (previous != null)
+			awaitWritten(previous, previous.close());
+	}
+
+	/**
+	 * Returns when puts return relative to the commit of their elements.
+	 *
+	 * @return the durability mode
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Waits until the elements of all puts made so far are committed. Returns
+	 * at once unless the durability is {@link Durability#ASYNC}.
+	 *
+	 * @throws SQLException if writing the elements of asynchronous puts failed
+	 *                      since a failure was last thrown
+	 */
+	public void flush() throws SQLException {
+		final GroupCommitter<E> gc = committer;
+		if (gc != null)
+			awaitWritten(gc, gc.lastSubmitted());
+	}
+
+	/**
+	 * Sets the number of rows fetched per round trip when iterating.
+	 *
+	 * @param fetchSize the number of rows, positive
+	 * @throws IllegalArgumentException if {@code fetchSize} is not positive
+	 */
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize <= 0)
+			throw new IllegalArgumentException();
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Makes takes poll the table for elements put by other processes sharing
+	 * it through a Derby network server. While the queue looks empty, takes
+	 * wait for a put of this process or the next poll, the delay between polls
+	 * doubling from {@code minDelay} to {@code maxDelay} while they find
+	 * nothing. The capacity bound then covers the elements of all processes:
+	 * whenever it is reached the counts are read again from the table, and
+	 * puts waiting for room read them again after each poll delay.
+	 *
+	 * @param minDelay the delay after a successful poll, 0 disables polling
+	 * @param maxDelay the longest delay between polls
+	 * @param unit     a {@code TimeUnit} determining how to interpret the
+	 *                 delays
+	 * @throws IllegalArgumentException if {@code minDelay} is negative or
+	 *                                  {@code maxDelay} is below it
+	 * @throws IllegalStateException if elements are prefetched
+	 */
+	public void setPolling(long minDelay, long maxDelay, TimeUnit unit) {
+		if (minDelay < 0)
+			throw new IllegalArgumentException();
+		final AdaptiveBackoff b = (minDelay == 0) ? null : new AdaptiveBackoff(minDelay, maxDelay, unit);
+		fullyLock();
+		try {
+			if (b != null && prefetchSize > 0)
+				throw new IllegalStateException("Polling is not supported while prefetching");
+			backoff = b;
+			putBackoff = (b == null) ? null : new AdaptiveBackoff(minDelay, maxDelay, unit);
+			notEmpty.signalAll();
+			notFull.signalAll();
+			if (!pendingTakes.isEmpty())
+				scheduleTakeDispatch();
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	/**
+	 * Returns the counters and latencies of this queue. They are published
+	 * over JMX once {@linkplain QueueMetrics#register(String) registered}.
+	 *
+	 * @return the metrics of this queue
+	 */
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets when the elements of {@linkplain Lease#fail(Throwable) failed}
+	 * leases are delivered again, and after how many failures they are moved
+	 * to the dead-letter table instead. A retried element is delivered up to
+	 * the {@linkplain #setLeaseReapInterval(long, TimeUnit) lease reap
+	 * interval} after its delay.
+	 *
+	 * @param policy the retry policy, {@link RetryPolicy#DEFAULT} initially
+	 * @throws NullPointerException if {@code policy} is null
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		checkNotNull(policy);
+		retryPolicy = policy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets how often expired leases are released. An expired lease is
+	 * delivered again up to this interval after its deadline.
+	 *
+	 * @param interval the interval, positive
+	 * @param unit     a {@code TimeUnit} determining how to interpret the
+	 *                 {@code interval} parameter
+	 * @throws IllegalArgumentException if {@code interval} is not positive
+	 */
+	public synchronized void setLeaseReapInterval(long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException();
+		leaseReapIntervalMillis = Math.max(1, unit.toMillis(interval));
+		if (leaseReap != null) {
+			leaseReap.cancel(false);
+			leaseReap = null;
+			startLeaseReaper();
+		}
+	}
+
+	/**
+	 * Creates an {@code DBArrayBlockingQueue} with default access policy.
+	 *
+	 */
+	public DBBlockingQueue() {
+		this(true);
+	}
+
+	/**
+	 * Creates an {@code ArrayBlockingQueue} with specified access policy.
+	 *
+	 * @param fair     if {@code true} then queue accesses for threads blocked on
+	 *                 insertion or removal, are processed in FIFO order; if
+	 *                 {@code false} the access order is unspecified.
+	 */
+	public DBBlockingQueue(boolean fair) {
+		this(fair, false);
+	}
+
+	/**
+	 * Creates a {@code DBBlockingQueue} with specified access policy and locking
+	 * mode.
+	 *
+	 * <p>
+	 * With split locks, puts and takes are guarded by separate locks in the
+	 * manner of {@link java.util.concurrent.LinkedBlockingQueue}: inserts at the
+	 * tail and deletes at the head run concurrently, coordinated through the
+	 * atomic element count. Operations touching the whole queue hold both locks.
+	 *
+	 * @param fair       if {@code true} then queue accesses for threads blocked
+	 *                   on insertion or removal, are processed in FIFO order; if
+	 *                   {@code false} the access order is unspecified.
+	 * @param splitLocks if {@code true} puts and takes use separate locks,
+	 *                   otherwise a single lock guards all access
+	 */
+	public DBBlockingQueue(boolean fair, boolean splitLocks) {
+		this(Integer.MAX_VALUE, fair, splitLocks);
+	}
+
+	/**
+	 * Creates a {@code DBBlockingQueue} with the given (fixed) capacity,
+	 * specified access policy and locking mode.
+	 *
+	 * @param capacity   the capacity of this queue
+	 * @param fair       if {@code true} then queue accesses for threads blocked
+	 *                   on insertion or removal, are processed in FIFO order; if
+	 *                   {@code false} the access order is unspecified.
+	 * @param splitLocks if {@code true} puts and takes use separate locks,
+	 *                   otherwise a single lock guards all access
+	 * @throws IllegalArgumentException if {@code capacity} is not greater than
+	 *                                  zero
+	 * @see #DBBlockingQueue(boolean, boolean)
+	 */
+	public DBBlockingQueue(int capacity, boolean fair, boolean splitLocks) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		metrics = new QueueMetrics(this::estimatedSize, waitingTakers::get);
+		takeLock = new InstrumentedLock(fair, metrics.getLockWaitHistogram(), metrics.getLockHoldHistogram());
+		notEmpty = takeLock.newCondition();
+		putLock = splitLocks ? new ReentrantLock(fair) : takeLock;
+		notFull = putLock.newCondition();
+	}
+
+
+	/**
+	 * Inserts the specified element at the tail of this queue, waiting if
+	 * necessary for space to become available. Returns once the element is
+	 * committed, or earlier with {@link Durability#ASYNC}.
+	 *
+	 * @throws InterruptedException {@inheritDoc}
+	 * @throws SQLException if the element cannot be written, or writing the
+	 *                      elements of asynchronous puts made before failed
+	 * @throws NullPointerException {@inheritDoc}
+	 * @see #setDurability(Durability, int, long, TimeUnit)
+	 */
+	public void put(E e) throws InterruptedException, SQLException {
+		checkNotNull(e);
+		final long start = System.nanoTime();
+		loadCount();
+		final var c = Collections.singletonList(e);
+		int before = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lockInterruptibly();
+		try {
+			awaitRoom(1, false, 0);
+			before = admit(c);
+		} finally {
+			putLock.unlock();
+		}
+		writeAdmitted(c, before);
+		metrics.recordPut(1, start);
 	}
 
 	/**
-	 * Extracts the first element.
+	 * Inserts the specified element at the tail of this queue if it is
+	 * possible to do so immediately without exceeding the queue's capacity,
+	 * returning {@code true} upon success and {@code false} if this queue is
+	 * full.
+	 *
+	 * @param e the element to add
+	 * @return {@code true} if the element was added to this queue, else
+	 *         {@code false}
 	 * @throws SQLException 
+	 * @throws NullPointerException if the specified element is null
 	 */
-	private E extract() throws SQLException {
-		E x = extractItem();
-		return x;
+	public boolean offer(E e) throws SQLException {
+		checkNotNull(e);
+		final long start = System.nanoTime();
+		loadCount();
+		final var c = Collections.singletonList(e);
+		int before = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lock();
+		try {
+			if (!hasSharedRoom(1))
+				return false;
+			before = admit(c);
+		} finally {
+			putLock.unlock();
+		}
+		writeAdmitted(c, before);
+		metrics.recordPut(1, start);
+		return true;
 	}
 
 	/**
-	 * Deletes item at position i. Call only when holding lock.
+	 * Inserts the specified element at the tail of this queue, waiting if
+	 * necessary up to the specified wait time for space to become available.
+	 *
+	 * @param e       the element to add
+	 * @param timeout how long to wait before giving up, in units of
+	 *                {@code unit}
+	 * @param unit    a {@code TimeUnit} determining how to interpret the
+	 *                {@code timeout} parameter
+	 * @return {@code true} if successful, or {@code false} if the specified
+	 *         waiting time elapses before space is available
+	 * @throws InterruptedException if interrupted while waiting
 	 * @throws SQLException 
+	 * @throws NullPointerException if the specified element is null
 	 */
-	void removeAt(int i) throws SQLException {
-		removeItemAt(i);
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+		checkNotNull(e);
+		final long start = System.nanoTime();
+		long nanos = unit.toNanos(timeout);
+		loadCount();
+		final var c = Collections.singletonList(e);
+		int before = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lockInterruptibly();
+		try {
+			if (!awaitRoom(1, true, nanos))
+				return false;
+			before = admit(c);
+		} finally {
+			putLock.unlock();
+		}
+		writeAdmitted(c, before);
+		metrics.recordPut(1, start);
+		return true;
 	}
 
 	/**
-	 * Creates an {@code DBArrayBlockingQueue} with default access policy.
+	 * Inserts all elements of the specified collection at the tail of this
+	 * queue, in the collection's iteration order. The elements are written
+	 * with one batch and one commit, so either all of them or none are added.
+	 * With group commit they are written together within one group. Waits if
+	 * necessary until there is space for all of them.
 	 *
+	 * @param c the elements to add
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException 
+	 * @throws NullPointerException if the collection or any of its elements is null
+	 * @throws IllegalArgumentException if the collection is this queue or holds
+	 *                                  more elements than the capacity
 	 */
-	public DBBlockingQueue() {
-		this(true);
+	public void putAll(Collection<? extends E> c) throws InterruptedException, SQLException {
+		checkNotNull(c);
+		if (c == this)
+			throw new IllegalArgumentException();
+		for (E e : c)
+			checkNotNull(e);
+		if (c.isEmpty())
+			return;
+		if (c.size() > capacity)
+			throw new IllegalArgumentException("More elements than the capacity " + capacity);
+		final long start = System.nanoTime();
+		loadCount();
+		final var elements = new ArrayList<E>(c);
+		int before = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lockInterruptibly();
+		try {
+			awaitRoom(elements.size(), false, 0);
+			before = admit(elements);
+		} finally {
+			putLock.unlock();
+		}
+		writeAdmitted(elements, before);
+		metrics.recordPut(elements.size(), start);
 	}
 
 	/**
-	 * Creates an {@code ArrayBlockingQueue} with specified access policy.
+	 * Inserts the specified element at the tail of this queue asynchronously.
+	 * The calling thread never blocks: the element is written by one of the
+	 * {@value #ASYNC_THREADS} threads of the queue, and while the queue is
+	 * full the put waits for room without holding a thread. Asynchronous puts
+	 * are written in request order. The returned future completes like
+	 * {@link #put(Object)} returns, on a thread of the queue, so dependent
+	 * actions should be quick or run asynchronously.
 	 *
-	 * @param fair     if {@code true} then queue accesses for threads blocked on
-	 *                 insertion or removal, are processed in FIFO order; if
-	 *                 {@code false} the access order is unspecified.
-	 */
-	public DBBlockingQueue(boolean fair) {
-		lock = new ReentrantLock(fair);
-		notEmpty = lock.newCondition();
-	}
-
-
-	/**
-	 * Inserts the specified element at the tail of this queue.
+	 * <p>
+	 * Cancelling the future drops a put still waiting for room, once admitted
+	 * the element is written regardless.
 	 *
-	 * @throws InterruptedException {@inheritDoc}
-	 * @throws SQLException 
-	 * @throws NullPointerException {@inheritDoc}
+	 * @param e the element to add
+	 * @return a future completed once the element is added, or exceptionally
+	 *         with the {@code SQLException} of a failed write
+	 * @throws NullPointerException if the specified element is null
 	 */
-	public void put(E e) throws InterruptedException, SQLException {
+	public CompletableFuture<Void> putAsync(E e) {
 		checkNotNull(e);
-		final ReentrantLock lock = this.lock;
-		lock.lockInterruptibly();
-		try {
-			insert(e);
-		} finally {
-			lock.unlock();
-		}
+		final var put = new PendingPut<E>(Collections.singletonList(e));
+		pendingPuts.add(put);
+		schedulePutDispatch();
+		return put.done;
 	}
 
     /**
@@ -154,15 +1958,20 @@ public abstract class DBBlockingQueue<E> {
      * @throws SQLException 
      */
 	public E take() throws InterruptedException, SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lockInterruptibly();
+		final long start = System.nanoTime();
+		loadCount();
+		E x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
 		try {
-			while (count() == 0)
-				notEmpty.await();
-			return extract();
+			while ((x = (available() > 0) ? extract() : null) == null)
+				awaitNotEmpty();
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
+		signalNotFull();
+		metrics.recordTake(1, start);
+		return x;
 	}
 
     /**
@@ -179,21 +1988,346 @@ public abstract class DBBlockingQueue<E> {
      * @throws SQLException 
      */
 	public E take(long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+		final long start = System.nanoTime();
 		long nanos = unit.toNanos(timeout);
-		final ReentrantLock lock = this.lock;
-		lock.lockInterruptibly();
+		loadCount();
+		E x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
 		try {
-			while (count() == 0) {
+			while ((x = (available() > 0) ? extract() : null) == null) {
 				if (nanos <= 0)
 					return null;
-				nanos = notEmpty.awaitNanos(nanos);
+				nanos = awaitNotEmpty(nanos);
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		signalNotFull();
+		metrics.recordTake(1, start);
+		return x;
+	}
+	
+    /**
+     * Retrieves and removes up to {@code max} elements from the head of this
+     * queue in a single transaction, waiting if necessary until at least one
+     * element becomes available.
+     *
+     * @param max the maximum number of elements to take
+     * @return the taken elements in queue order, never empty
+     * @throws InterruptedException if interrupted while waiting
+     * @throws SQLException 
+     * @throws IllegalArgumentException if {@code max} is not positive
+     */
+	public List<E> takeBatch(int max) throws InterruptedException, SQLException {
+		if (max <= 0)
+			throw new IllegalArgumentException();
+		final long start = System.nanoTime();
+		loadCount();
+		List<E> x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
+		try {
+			while ((x = (available() > 0) ? extractAll(max) : Collections.emptyList()).isEmpty())
+				awaitNotEmpty();
+		} finally {
+			takeLock.unlock();
+		}
+		signalNotFull();
+		metrics.recordTake(x.size(), start);
+		return x;
+	}
+
+    /**
+     * Retrieves and removes up to {@code max} elements from the head of this
+     * queue in a single transaction, waiting up to the specified wait time if
+     * necessary for at least one element to become available. Returns as soon
+     * as any element is available, it does not wait for {@code max} of them.
+     *
+     * @param max the maximum number of elements to take
+     * @param timeout how long to wait before giving up, in units of
+     *        {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the
+     *        {@code timeout} parameter
+     * @return the taken elements in queue order, or an empty list if the
+     *         specified waiting time elapses before an element is available
+     * @throws InterruptedException if interrupted while waiting
+     * @throws SQLException 
+     * @throws IllegalArgumentException if {@code max} is not positive
+     */
+	public List<E> takeBatch(int max, long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+		if (max <= 0)
+			throw new IllegalArgumentException();
+		final long start = System.nanoTime();
+		long nanos = unit.toNanos(timeout);
+		loadCount();
+		List<E> x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
+		try {
+			while ((x = (available() > 0) ? extractAll(max) : Collections.emptyList()).isEmpty()) {
+				if (nanos <= 0)
+					return x;
+				nanos = awaitNotEmpty(nanos);
 			}
-			return extract();
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+		}
+		signalNotFull();
+		metrics.recordTake(x.size(), start);
+		return x;
+	}
+
+	/**
+	 * Wakes a thread waiting for an element in a take or lease of this queue:
+	 * the wait throws {@code InterruptedException}, but the thread is not
+	 * interrupted. Unlike an interrupt, it does not disturb a statement the
+	 * take is running, the thread is woken only once it waits. If the thread
+	 * does not wait, its next wait on this queue is woken instead.
+	 *
+	 * @param t the thread to wake
+	 */
+	public void wakeTaker(Thread t) {
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			wakeups.add(t);
+			notEmpty.signalAll();
+		} finally {
+			takeLock.unlock();
 		}
 	}
+
+	/**
+	 * Retrieves and removes the head of this queue asynchronously. The
+	 * calling thread never blocks and no thread waits for an element:
+	 * asynchronous takes are pending in request order and completed by the
+	 * {@value #ASYNC_THREADS} threads of the queue as elements arrive, so
+	 * dependent actions should be quick or run asynchronously. Blocking takes
+	 * compete with them for each element.
+	 *
+	 * <p>
+	 * The future may be cancelled or given a timeout, e.g. with
+	 * {@link CompletableFuture#orTimeout(long, TimeUnit)}. If an element is
+	 * being taken for it at the same time, the element is delivered and the
+	 * cancellation or timeout has no effect, so no element is lost.
+	 *
+	 * @return a future of the head of this queue, completed exceptionally with
+	 *         the {@code SQLException} of a failed read
+	 */
+	public CompletableFuture<E> takeAsync() {
+		final var take = new PendingTake<E>(0);
+		addPendingTake(take);
+		return take;
+	}
+
+	/**
+	 * Retrieves and removes up to {@code max} elements from the head of this
+	 * queue in a single transaction, asynchronously like {@link #takeAsync()}.
+	 * The future completes as soon as any element is available, it does not
+	 * wait for {@code max} of them.
+	 *
+	 * @param max the maximum number of elements to take
+	 * @return a future of the taken elements in queue order, never empty
+	 * @throws IllegalArgumentException if {@code max} is not positive
+	 */
+	public CompletableFuture<List<E>> takeBatchAsync(int max) {
+		if (max <= 0)
+			throw new IllegalArgumentException();
+		final var take = new PendingTake<List<E>>(max);
+		addPendingTake(take);
+		return take;
+	}
+
+	/**
+	 * Returns a publisher of the elements of this queue, taking them in
+	 * batches sized to the demand of its subscribers. See
+	 * {@link QueuePublisher}.
+	 *
+	 * @return a publisher taking up to {@value QueuePublisher#DEFAULT_MAX_BATCH}
+	 *         elements at once
+	 */
+	public Flow.Publisher<E> publisher() {
+		return new QueuePublisher<>(this);
+	}
 	
+	/**
+	 * Returns whether this queue supports {@linkplain #lease(long, TimeUnit)
+	 * leases}. The lease methods of a queue without support throw
+	 * {@code UnsupportedOperationException}.
+	 */
+	public boolean isLeaseSupported() {
+		return false;
+	}
+
+	/**
+	 * Returns whether this queue has a dead-letter table. The dead-letter
+	 * methods of a queue without one throw
+	 * {@code UnsupportedOperationException}, except
+	 * {@link #deadLetterCount()}.
+	 */
+	public boolean isDeadLetterSupported() {
+		return false;
+	}
+
+    /**
+     * Retrieves the head of this queue under a lease, waiting if necessary
+     * until an element becomes available. The element stays in the table,
+     * hidden from other takes, until the lease is acknowledged or released.
+     * A lease not settled within {@code visibility} expires and the element
+     * is delivered again, so every element is delivered at least once.
+     *
+     * @param visibility how long the element stays hidden, in units of
+     *        {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the
+     *        {@code visibility} parameter
+     * @return the lease of the head of this queue
+     * @throws InterruptedException if interrupted while waiting
+     * @throws SQLException 
+     * @throws IllegalArgumentException if {@code visibility} is not positive
+     * @throws UnsupportedOperationException if the queue does not support leases
+     */
+	public Lease<E> lease(long visibility, TimeUnit unit) throws InterruptedException, SQLException {
+		if (visibility <= 0)
+			throw new IllegalArgumentException();
+		checkLeaseSupported();
+		final long start = System.nanoTime();
+		loadCount();
+		startLeaseReaper();
+		Lease<E> x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
+		try {
+			while ((x = (available() > 0) ? leaseHead(visibility, unit) : null) == null)
+				awaitNotEmpty();
+		} finally {
+			takeLock.unlock();
+		}
+		metrics.recordTake(1, start);
+		return x;
+	}
+
+    /**
+     * Retrieves the head of this queue under a lease, waiting up to the
+     * specified wait time if necessary for an element to become available.
+     *
+     * @param visibility how long the element stays hidden, in units of
+     *        {@code unit}
+     * @param timeout how long to wait before giving up, in units of
+     *        {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the
+     *        {@code visibility} and {@code timeout} parameters
+     * @return the lease of the head of this queue, or {@code null} if the
+     *         specified waiting time elapses before an element is available
+     * @throws InterruptedException if interrupted while waiting
+     * @throws SQLException 
+     * @throws IllegalArgumentException if {@code visibility} is not positive
+     * @throws UnsupportedOperationException if the queue does not support leases
+     * @see #lease(long, TimeUnit)
+     */
+	public Lease<E> lease(long visibility, long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+		if (visibility <= 0)
+			throw new IllegalArgumentException();
+		checkLeaseSupported();
+		final long start = System.nanoTime();
+		long nanos = unit.toNanos(timeout);
+		loadCount();
+		startLeaseReaper();
+		Lease<E> x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lockInterruptibly();
+		try {
+			while ((x = (available() > 0) ? leaseHead(visibility, unit) : null) == null) {
+				if (nanos <= 0)
+					return null;
+				nanos = awaitNotEmpty(nanos);
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		metrics.recordTake(1, start);
+		return x;
+	}
+
+	/**
+	 * Moves an element taken from this queue whose processing failed to the
+	 * dead-letter table, as failed once. Elements taken under a lease are
+	 * {@linkplain Lease#fail(Throwable) failed} instead, which retries them.
+	 *
+	 * @param e     the failed element
+	 * @param cause the failure, {@code null} if unknown
+	 * @throws SQLException
+	 * @throws NullPointerException if the specified element is null
+	 * @throws UnsupportedOperationException if the queue has no dead-letter table
+	 */
+	public void deadLetter(E e, Throwable cause) throws SQLException {
+		checkNotNull(e);
+		checkDeadLetterSupported();
+		insertDeadItem(e, 1, reasonOf(cause), System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the number of elements in the dead-letter table, 0 if the queue
+	 * has none.
+	 *
+	 * @throws SQLException
+	 */
+	public int deadLetterCount() throws SQLException {
+		return countDeadItems();
+	}
+
+	/**
+	 * Returns up to {@code max} of the oldest dead letters, without removing
+	 * them.
+	 *
+	 * @param max the maximum number of dead letters to return
+	 * @return the dead letters in the order they failed
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if {@code max} is not positive
+	 * @throws UnsupportedOperationException if the queue has no dead-letter table
+	 */
+	public List<DeadLetter<E>> deadLetters(int max) throws SQLException {
+		if (max <= 0)
+			throw new IllegalArgumentException();
+		checkDeadLetterSupported();
+		return deadItems(max);
+	}
+
+	/**
+	 * Moves up to {@code max} of the oldest dead letters back to the tail of
+	 * this queue, with their failed attempts reset, as far as there is room.
+	 * Does not wait for room.
+	 *
+	 * @param max the maximum number of dead letters to replay
+	 * @return the number of replayed elements
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if {@code max} is not positive
+	 * @throws UnsupportedOperationException if the queue has no dead-letter table
+	 */
+	public int replayDeadLetters(int max) throws SQLException {
+		if (max <= 0)
+			throw new IllegalArgumentException();
+		checkDeadLetterSupported();
+		loadCount();
+		int before = -1;
+		final ReentrantLock putLock = this.putLock;
+		putLock.lock();
+		try {
+			if (!hasSharedRoom(1))
+				return 0;
+			final int room = capacity - itemCount.get() - reserved.get() - leasedCount.get();
+			final int n = replayDeadItems(Math.min(max, room));
+			if (n == 0)
+				return 0;
+			before = itemCount.getAndAdd(n);
+			return n;
+		} finally {
+			putLock.unlock();
+			if (before == 0)
+				signalNotEmpty();
+		}
+	}
+
 	/**
      * Retrieves, but does not remove, the head of this queue,
      * or returns {@code null} if this queue is empty.
@@ -202,29 +2336,88 @@ public abstract class DBBlockingQueue<E> {
 	 * @throws SQLException 
      */
 	public E peek() throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		final long start = System.nanoTime();
+		loadCount();
+		final E x;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
 		try {
-			return (count() == 0) ? null : itemAt(0);
+			x = (available() == 0) ? null : head();
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
+		metrics.recordPeek(start);
+		return x;
 	}
 
 	/**
-	 * Returns the number of elements in this queue.
+	 * Returns the number of elements in this queue. When polling, the rows
+	 * are counted, so that elements put by other processes are included.
 	 *
 	 * @return the number of elements in this queue
 	 * @throws SQLException 
 	 */
 	public int size() throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try {
-			return count();
-		} finally {
-			lock.unlock();
+		final long start = System.nanoTime();
+		final int n;
+		if (backoff != null) {
+			n = count();
+		} else {
+			loadCount();
+			n = itemCount.get();
+		}
+		metrics.recordSize(start);
+		return n;
+	}
+
+	/**
+	 * Returns the number of elements in this queue as last counted, without
+	 * locking and without querying the table, except for the first call on a
+	 * queue not used yet, which counts the table. Puts and takes in progress
+	 * may not be reflected yet, and it is 0 if that count fails.
+	 *
+	 * @return the estimated number of elements in this queue
+	 */
+	public int estimatedSize() {
+		if (!itemCountLoaded) {
+			try {
+				loadCount();
+			} catch (SQLException e) {
+				// reported by the next operation counting the table
+			}
 		}
+		return itemCount.get();
+	}
+
+	/**
+	 * Returns the number of additional elements that this queue can ideally
+	 * (in the absence of memory or resource constraints) accept without
+	 * blocking. This is always equal to the initial capacity of this queue less
+	 * the current {@code size} of this queue, the leased elements and the
+	 * elements of puts not yet committed.
+	 *
+	 * <p>
+	 * Note that you <em>cannot</em> always tell if an attempt to insert an
+	 * element will succeed by inspecting {@code remainingCapacity} because it
+	 * may be the case that another thread is about to insert or remove an
+	 * element.
+	 *
+	 * @return the remaining capacity
+	 * @throws SQLException 
+	 */
+	public int remainingCapacity() throws SQLException {
+		loadCount();
+		return capacity - itemCount.get() - reserved.get() - leasedCount.get();
+	}
+
+	/**
+	 * Returns the capacity of this queue, {@code Integer.MAX_VALUE} if it is
+	 * unbounded.
+	 *
+	 * @return the capacity of this queue
+	 */
+	public int getCapacity() {
+		return capacity;
 	}
 
 	/**
@@ -247,19 +2440,69 @@ public abstract class DBBlockingQueue<E> {
 	public boolean remove(Object o) throws SQLException {
 		if (o == null)
 			return false;
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		loadCount();
+		fullyLock();
 		try {
-			final int count = count();
-			for (int i = 0; i < count; i++) {
-				if (o.equals(itemAt(i))) {
-					removeAt(i);
-					return true;
-				}
-			}
-			return false;
+			resetPrefetch();
+			if (!removeItem(o, fetchSize))
+				return false;
+			removed();
+			return true;
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	/**
+	 * Removes the element that has been on the queue the longest time among
+	 * those with the given lookup key value. Queues backing the key with an
+	 * index do this with a single statement.
+	 *
+	 * @param key   the name of a lookup key declared by this queue
+	 * @param value the key value
+	 * @return {@code true} if an element was removed
+	 * @throws SQLException 
+	 * @throws NullPointerException if the key or value is null
+	 * @throws IllegalArgumentException if the queue declares no such key
+	 */
+	public boolean removeByKey(String key, Object value) throws SQLException {
+		checkKey(key);
+		checkNotNull(value);
+		loadCount();
+		fullyLock();
+		try {
+			resetPrefetch();
+			if (!removeItemKey(key, value))
+				return false;
+			removed();
+			return true;
+		} finally {
+			fullyUnlock();
+		}
+	}
+
+	/**
+	 * Returns {@code true} if this queue contains an element with the given
+	 * lookup key value. Queues backing the key with an index do this with a
+	 * single statement.
+	 *
+	 * @param key   the name of a lookup key declared by this queue
+	 * @param value the key value
+	 * @return {@code true} if this queue contains such an element
+	 * @throws SQLException 
+	 * @throws NullPointerException if the key or value is null
+	 * @throws IllegalArgumentException if the queue declares no such key
+	 */
+	public boolean containsKey(String key, Object value) throws SQLException {
+		checkKey(key);
+		checkNotNull(value);
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
+		try {
+			flushDeletes();
+			return containsItemKey(key, value);
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
@@ -275,18 +2518,10 @@ public abstract class DBBlockingQueue<E> {
 	public boolean contains(Object o) throws SQLException {
 		if (o == null)
 			return false;
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try {
-			final int count = count();
-			for (int i = 0; i < count; i++) {
-				if (o.equals(itemAt(i))) {
-					return true;
-				}
-			}
-			return false;
-		} finally {
-			lock.unlock();
+		try (Stream<E> stream = stream()) {
+			return stream.anyMatch(o::equals);
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
 		}
 	}
 
@@ -306,20 +2541,50 @@ public abstract class DBBlockingQueue<E> {
 	 * @throws SQLException 
 	 */
 	public Object[] toArray() throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		return toArray(new Object[0]);
+	}
+
+	/**
+	 * Returns a forward-only iterator over the elements in this queue in proper
+	 * sequence, backed by a single cursor which fetches
+	 * {@linkplain #setFetchSize(int) fetch size} rows per round trip.
+	 *
+	 * <p>
+	 * The iterator is weakly consistent: no queue lock is held while it is
+	 * traversed, so elements put or taken meanwhile may or may not be reflected.
+	 * It holds a pooled connection until it is exhausted or closed and must be
+	 * closed when it is not traversed to the end. Database failures while
+	 * traversing are thrown as {@link UncheckedSQLException}.
+	 *
+	 * @return an iterator over the elements in this queue
+	 * @throws SQLException 
+	 */
+	public CloseableIterator<E> iterator() throws SQLException {
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
 		try {
-			final int count = this.count();
-			Object[] a = new Object[count];
-			for (int i = 0; i < count; i++) {
-				a[i] = itemAt(i);
-			}
-			return a;
+			flushDeletes();
+			return openCursor(fetchSize);
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
 		}
 	}
 
+	/**
+	 * Returns a sequential stream over the elements in this queue in proper
+	 * sequence, backed by {@link #iterator()}. The stream must be closed to
+	 * release its cursor.
+	 *
+	 * @return a stream over the elements in this queue
+	 * @throws SQLException 
+	 */
+	public Stream<E> stream() throws SQLException {
+		final CloseableIterator<E> it = iterator();
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(it::close);
+	}
+
 	/**
 	 * Prints all elements to the standard output.
 	 * @throws SQLException 
@@ -327,19 +2592,34 @@ public abstract class DBBlockingQueue<E> {
 	 */
 
 	public void printAll() throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
 		try {
-			System.out.println("- print all -------------------------------");
-			final int count = this.count();
-			for (int i = 0; i < count; i++) {
-				System.out.println(itemAt(i));
+			printAll(System.out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Prints all elements to the given output, one per line, streaming them
+	 * from the table without holding the queue locks. The output is weakly
+	 * consistent like {@link #iterator()}.
+	 *
+	 * @param out the output to print to
+	 * @throws SQLException 
+	 * @throws IOException if appending to the output fails
+	 */
+	public void printAll(Appendable out) throws SQLException, IOException {
+		final String nl = System.lineSeparator();
+		out.append("- print all -------------------------------").append(nl);
+		try (CloseableIterator<E> it = iterator()) {
+			while (it.hasNext()) {
+				out.append(String.valueOf(it.next())).append(nl);
 			}
-			System.out.println("-------------------------------------------");
-			System.out.println();
-		} finally {
-			lock.unlock();
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
 		}
+		out.append("-------------------------------------------").append(nl);
+		out.append(nl);
 	}
 
 	/**
@@ -384,63 +2664,71 @@ public abstract class DBBlockingQueue<E> {
 	 */
 	@SuppressWarnings("unchecked")
 	public <T> T[] toArray(T[] a) throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		loadCount();
+		fullyLock();
 		try {
-			final int count = this.count();
+			flushDeletes();
+			final int count = (backoff != null) ? count() : available();
 			final int len = a.length;
 			if (len < count) {
 				a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), count);
 			}
-			for (int i = 0; i < count; i++) {
-				a[i] = (T) itemAt(i);
+			int i = 0;
+			try (CloseableIterator<E> it = openCursor(fetchSize)) {
+				while (i < count && it.hasNext()) {
+					a[i++] = (T) it.next();
+				}
+			} catch (UncheckedSQLException e) {
+				throw e.getCause();
 			}
-			if (len > count) {
-				a[count] = null;
+			if (a.length > i) {
+				a[i] = null;
 			}
 			return a;
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 	}
 
 	@Override
 	public String toString() {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try {
-			int count = count();
-			if (count == 0)
+		try (CloseableIterator<E> it = iterator()) {
+			if (!it.hasNext())
 				return "[]";
 
 			StringBuilder sb = new StringBuilder();
 			sb.append('[');
-			for (int i = 0; i < count; i++) {
-				Object e = itemAt(i);
+			for (;;) {
+				Object e = it.next();
 				sb.append(e == this ? "(this Collection)" : e);
+				if (!it.hasNext())
+					return sb.append(']').toString();
 				sb.append(',').append(' ');
 			}
-			return sb.append(']').toString();
-		} catch (SQLException e1) {
+		} catch (SQLException | UncheckedSQLException e1) {
 			e1.printStackTrace();
 			return "[]";
-		} finally {
-			lock.unlock();
 		}
 	}
 
 	/**
-	 * Atomically removes all of the elements from this queue. The queue will be
-	 * empty after this call returns.
+	 * Atomically removes all of the elements from this queue, leased elements
+	 * included. The queue will be empty after this call returns.
 	 * @throws SQLException 
 	 */
 	public void clear() throws SQLException {
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		loadCount();
+		fullyLock();
 		try {
 			clearTable();
+			pendingDeletes = 0;
+			prefetched.clear();
+			prefetchEpoch++;
+			itemCount.set(0);
+			leasedCount.set(0);
+			wakePutters();
 		} finally {
-			lock.unlock();
+			fullyUnlock();
 		}
 	}
 
@@ -472,17 +2760,26 @@ public abstract class DBBlockingQueue<E> {
 		checkNotNull(c);
 		if (c == this)
 			throw new IllegalArgumentException();
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		final long start = System.nanoTime();
+		loadCount();
+		int count = 0;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
 		try {
 
-			final var count = count();
-			for (int i = 0; i < count; i++) {
-				c.add(extractItem());
+			final var max = available();
+			E x;
+			while (count < max && (x = extract()) != null) {
+				c.add(x);
+				count++;
 			}
 			return count;
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+			if (count > 0) {
+				signalNotFull();
+				metrics.recordTake(count, start);
+			}
 		}
 	}
 
@@ -516,18 +2813,27 @@ public abstract class DBBlockingQueue<E> {
 			throw new IllegalArgumentException();
 		if (maxElements <= 0)
 			return 0;
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		final long start = System.nanoTime();
+		loadCount();
+		int n = 0;
+		final ReentrantLock takeLock = this.takeLock;
+		takeLock.lock();
 		try {
-			final var count = count();
+			final var count = available();
 			final var max = (maxElements < count) ? maxElements : count;
 
-			for (int i = 0; i < max; i++) {
-				c.add(extractItem());
+			E x;
+			while (n < max && (x = extract()) != null) {
+				c.add(x);
+				n++;
 			}
-			return max;
+			return n;
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+			if (n > 0) {
+				signalNotFull();
+				metrics.recordTake(n, start);
+			}
 		}
 	}
 
@@ -0,0 +1,92 @@
+package org.twohead.zadanie.queue;
+
+import java.sql.SQLException;
+import java.util.function.ToIntFunction;
+
+import org.twohead.zadanie.persistance.DBUtils;
+
+/**
+ * A {@code DBBlockingQueue} ordering its elements by priority, highest
+ * first, and elements of equal priority FIFO. The <em>head</em> is the
+ * oldest element of the highest priority; {@code take}, {@code peek},
+ * {@code drainTo}, iteration and leases all follow this order.
+ *
+ * <p>
+ * Elements are stored like in a {@link PayloadQueue}, with the priority
+ * returned by the priority function in an indexed column. The index on
+ * descending priority and sequence id leads every head query to its first
+ * entry, so finding the head takes the same index lookup as in a FIFO queue
+ * instead of a scan or a sort.
+ *
+ * <p>
+ * The priority of an element is computed once when it is put and is not
+ * updated afterwards. Prefetching is not supported, an element put with a
+ * higher priority would have to overtake the heads read ahead.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class DBPriorityBlockingQueue<E> extends PayloadQueue<E> {
+
+	private final ToIntFunction<? super E> priority;
+
+	/**
+	 * Returns an unbounded priority queue over the payload table, created
+	 * unless it exists.
+	 *
+	 * @param table    the table name
+	 * @param codec    the codec of the elements
+	 * @param priority returns the priority of an element, higher is taken
+	 *                 first
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 * @see PayloadQueue#forTable(String, Codec)
+	 */
+	public static <E> DBPriorityBlockingQueue<E> forTable(String table, Codec<E> codec,
+			ToIntFunction<? super E> priority) throws SQLException {
+		return forTable(table, codec, priority, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Returns a priority queue over the payload table, created unless it
+	 * exists.
+	 *
+	 * @see #forTable(String, Codec, ToIntFunction)
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public static <E> DBPriorityBlockingQueue<E> forTable(String table, Codec<E> codec,
+			ToIntFunction<? super E> priority, int capacity, boolean fair, boolean splitLocks) throws SQLException {
+		DBUtils.getInstance().createPayloadTable(table, true);
+		return new DBPriorityBlockingQueue<>(table, codec, priority, capacity, fair, splitLocks);
+	}
+
+	/**
+	 * Creates a priority queue over the given payload table, which must exist
+	 * with the index of {@link DBUtils#createPayloadTable(String, boolean)}.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	protected DBPriorityBlockingQueue(String table, Codec<E> codec, ToIntFunction<? super E> priority,
+			int capacity, boolean fair, boolean splitLocks) {
+		super(table, codec, true, capacity, fair, splitLocks);
+		if (priority == null)
+			throw new NullPointerException();
+		this.priority = priority;
+	}
+
+	@Override
+	int priorityOf(E element) {
+		return priority.applyAsInt(element);
+	}
+
+	/**
+	 * Prefetching is not supported by priority queues, like while polling.
+	 *
+	 * @throws IllegalStateException if {@code size} is not 0
+	 */
+	@Override
+	public void setPrefetch(int size, int lowWatermark) throws SQLException {
+		if (size != 0)
+			throw new IllegalStateException("Prefetching is not supported by priority queues");
+		super.setPrefetch(size, lowWatermark);
+	}
+}
@@ -0,0 +1,28 @@
+package org.twohead.zadanie.queue;
+
+/**
+ * When a put returns relative to the commit of its element.
+ *
+ * @see DBBlockingQueue#setDurability(Durability, int, long, java.util.concurrent.TimeUnit)
+ */
+public enum Durability {
+
+	/** Every put commits its own transaction before it returns */
+	SYNC,
+
+	/**
+	 * Puts of concurrent producers are written with one transaction, a put
+	 * returns once the transaction holding its element is committed. A put may
+	 * wait up to the group commit window for other puts to join.
+	 */
+	GROUP,
+
+	/**
+	 * Puts return as soon as their element is handed to the committer and are
+	 * written like with {@link #GROUP} in the background. Elements not yet
+	 * committed are lost on a crash, and are not counted or visible to takes
+	 * until they are committed. The first failed write is thrown by the next
+	 * put, {@code flush} or {@code setDurability}.
+	 */
+	ASYNC
+}
@@ -0,0 +1,171 @@
+package org.twohead.zadanie.queue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the puts of concurrent producers and writes them with one
+ * transaction per batch. A batch starts with the first pending put and takes
+ * the puts arriving within the commit window, up to {@code maxBatch}
+ * elements. Batches are written in submission order by a single thread.
+ *
+ * @param <E> the type of elements written
+ */
+class GroupCommitter<E> {
+
+	/**
+	 * Writes a batch of elements with a single commit.
+	 */
+	@FunctionalInterface
+	interface BatchWriter<E> {
+		void write(List<E> batch) throws SQLException;
+	}
+
+	/**
+	 * Elements of one put, completed once they are committed.
+	 */
+	private static final class Pending<E> {
+		final Collection<? extends E> elements;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Pending(Collection<? extends E> elements) {
+			this.elements = elements;
+		}
+	}
+
+	/** Marks the end of submissions */
+	private final Pending<E> closeMarker = new Pending<>(null);
+
+	private final LinkedBlockingQueue<Pending<E>> pending = new LinkedBlockingQueue<>();
+	private final BatchWriter<E> writer;
+	private final int maxBatch;
+	private final long windowNanos;
+	/** Whether no put waits for its commit, so failures are kept until reported */
+	private final boolean async;
+	private final Thread flusher;
+
+	/** Guarded by this */
+	private boolean closed;
+	/** The latest submission, guarded by this */
+	private CompletableFuture<Void> lastSubmitted = CompletableFuture.completedFuture(null);
+	/** The first failed write not reported yet when async, guarded by this */
+	private Exception failure;
+
+	GroupCommitter(BatchWriter<E> writer, int maxBatch, long windowNanos, boolean async) {
+		this.writer = writer;
+		this.maxBatch = maxBatch;
+		this.windowNanos = windowNanos;
+		this.async = async;
+		this.flusher = new Thread(this::run, "db-queue-commit");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Hands elements over to be written in order with the elements submitted
+	 * before them.
+	 *
+	 * @return completes when the elements are committed, or {@code null} if the
+	 *         committer is closed
+	 */
+	synchronized CompletableFuture<Void> submit(Collection<? extends E> elements) {
+		if (closed)
+			return null;
+		final var p = new Pending<E>(elements);
+		pending.add(p);
+		lastSubmitted = p.done;
+		return p.done;
+	}
+
+	boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Returns a future completing when all elements submitted so far are
+	 * written.
+	 */
+	synchronized CompletableFuture<Void> lastSubmitted() {
+		return lastSubmitted;
+	}
+
+	/**
+	 * Returns the first failed write not reported yet and forgets it, or
+	 * {@code null} if there is none. Only an asynchronous committer keeps
+	 * failures, puts waiting for their commit get them from their futures.
+	 */
+	synchronized Exception takeFailure() {
+		final Exception e = failure;
+		failure = null;
+		return e;
+	}
+
+	/**
+	 * Refuses further submissions. Elements submitted before are still written,
+	 * the returned future completes when they are.
+	 */
+	synchronized CompletableFuture<Void> close() {
+		if (!closed) {
+			closed = true;
+			pending.add(closeMarker);
+		}
+		return lastSubmitted;
+	}
+
+	private void run() {
+		final var batch = new ArrayList<Pending<E>>();
+		final var elements = new ArrayList<E>();
+		boolean done = false;
+		while (!done) {
+			try {
+				Pending<E> p = pending.take();
+				final long deadline = System.nanoTime() + windowNanos;
+				while (p != null) {
+					if (p == closeMarker) {
+						done = true;
+						break;
+					}
+					batch.add(p);
+					elements.addAll(p.elements);
+					if (elements.size() >= maxBatch)
+						break;
+					p = pending.poll();
+					if (p == null) {
+						final long nanos = deadline - System.nanoTime();
+						if (nanos > 0)
+							p = pending.poll(nanos, TimeUnit.NANOSECONDS);
+					}
+				}
+			} catch (InterruptedException e) {
+				// the committer thread is never interrupted by this class, write what is collected
+				done = true;
+			}
+			if (!batch.isEmpty())
+				write(batch, elements);
+			batch.clear();
+			elements.clear();
+		}
+	}
+
+	private void write(List<Pending<E>> batch, List<E> elements) {
+		try {
+			writer.write(elements);
+			for (Pending<E> p : batch)
+				p.done.complete(null);
+		} catch (SQLException | RuntimeException e) {
+			if (async) {
+				synchronized (this) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			for (Pending<E> p : batch)
+				p.done.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package org.twohead.zadanie.queue;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.twohead.zadanie.metrics.LatencyHistogram;
+
+/**
+ * A {@code ReentrantLock} recording how long threads wait to acquire it and
+ * how long they hold it. A hold lasts from the outermost acquisition to the
+ * matching release; waiting on a condition ends it and returning from the
+ * wait starts a new one. Recording allocates nothing.
+ */
+class InstrumentedLock extends ReentrantLock {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient LatencyHistogram waits;
+	private final transient LatencyHistogram holds;
+	/** Start of the current hold, written and read only by the owner */
+	private long acquiredNanos;
+
+	InstrumentedLock(boolean fair, LatencyHistogram waits, LatencyHistogram holds) {
+		super(fair);
+		this.waits = waits;
+		this.holds = holds;
+	}
+
+	@Override
+	public void lock() {
+		final long start = System.nanoTime();
+		super.lock();
+		acquired(start);
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		final long start = System.nanoTime();
+		super.lockInterruptibly();
+		acquired(start);
+	}
+
+	@Override
+	public boolean tryLock() {
+		if (!super.tryLock())
+			return false;
+		if (getHoldCount() == 1)
+			acquiredNanos = System.nanoTime();
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+		final long start = System.nanoTime();
+		if (!super.tryLock(timeout, unit))
+			return false;
+		acquired(start);
+		return true;
+	}
+
+	@Override
+	public void unlock() {
+		if (getHoldCount() == 1)
+			holds.recordSince(acquiredNanos);
+		super.unlock();
+	}
+
+	@Override
+	public Condition newCondition() {
+		return new InstrumentedCondition(super.newCondition());
+	}
+
+	/**
+	 * Records the wait for an outermost acquisition and starts its hold.
+	 */
+	private void acquired(long start) {
+		if (getHoldCount() != 1)
+			return;
+		final long now = System.nanoTime();
+		waits.record(now - start);
+		acquiredNanos = now;
+	}
+
+	/**
+	 * Ends the current hold, before a condition wait releases the lock.
+	 */
+	private void suspendHold() {
+		holds.recordSince(acquiredNanos);
+	}
+
+	/**
+	 * Starts a new hold, after a condition wait acquired the lock again.
+	 */
+	private void resumeHold() {
+		acquiredNanos = System.nanoTime();
+	}
+
+	/**
+	 * A condition of the lock ending the hold while waiting.
+	 */
+	private final class InstrumentedCondition implements Condition {
+
+		private final Condition condition;
+
+		InstrumentedCondition(Condition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		public void await() throws InterruptedException {
+			suspendHold();
+			try {
+				condition.await();
+			} finally {
+				resumeHold();
+			}
+		}
+
+		@Override
+		public void awaitUninterruptibly() {
+			suspendHold();
+			try {
+				condition.awaitUninterruptibly();
+			} finally {
+				resumeHold();
+			}
+		}
+
+		@Override
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			suspendHold();
+			try {
+				return condition.awaitNanos(nanosTimeout);
+			} finally {
+				resumeHold();
+			}
+		}
+
+		@Override
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			suspendHold();
+			try {
+				return condition.await(time, unit);
+			} finally {
+				resumeHold();
+			}
+		}
+
+		@Override
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			suspendHold();
+			try {
+				return condition.awaitUntil(deadline);
+			} finally {
+				resumeHold();
+			}
+		}
+
+		@Override
+		public void signal() {
+			condition.signal();
+		}
+
+		@Override
+		public void signalAll() {
+			condition.signalAll();
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package org.twohead.zadanie.queue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.twohead.zadanie.persistance.CloseableIterator;
+import org.twohead.zadanie.persistance.Journal;
+
+/**
+ * A {@code DBBlockingQueue} keeping its elements in memory, made durable by a
+ * write-ahead {@link Journal}. Every change is journaled before it is applied,
+ * so takes, peeks and counts are served from memory while a restarted queue
+ * recovers its elements from the last checkpoint and the journal after it.
+ * Elements are turned into records by a {@link Codec}.
+ *
+ * <p>
+ * Checkpoints are written by {@link #checkpoint()}, periodically once
+ * {@linkplain #setCheckpointInterval(long, TimeUnit) scheduled} and on
+ * {@link #close()}; they bound the journal replayed on restart. A checkpoint
+ * encodes the elements outside the queue locks, so elements must not change
+ * once put. Leases are not supported. Failures of the journal are thrown as
+ * {@link SQLException} like those of a table, with the {@link IOException} as
+ * cause.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class JournaledQueue<E> extends DBBlockingQueue<E> {
+
+	/** SQL state of I/O errors */
+	private static final String IO_ERROR = "58030";
+
+	private final Journal journal;
+	private final Codec<E> codec;
+	/** The elements, guarded by itself */
+	private final ArrayDeque<E> items = new ArrayDeque<>();
+	/** Whether the recovered records have been decoded into items, guarded by items */
+	private boolean loaded;
+
+	/** Writes checkpoints, created when first scheduled, guarded by this */
+	private ScheduledExecutorService checkpointer;
+	/** The scheduled checkpoint, guarded by this */
+	private ScheduledFuture<?> checkpointTask;
+
+	/**
+	 * Creates an unbounded queue over the journal, holding the elements it
+	 * recovered.
+	 */
+	public JournaledQueue(Journal journal, Codec<E> codec) {
+		this(journal, codec, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Creates a queue over the journal, holding the elements it recovered.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public JournaledQueue(Journal journal, Codec<E> codec, int capacity, boolean fair, boolean splitLocks) {
+		super(capacity, fair, splitLocks);
+		this.journal = journal;
+		this.codec = codec;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	public Codec<E> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Writes a checkpoint of the elements and deletes the journal it covers.
+	 *
+	 * @throws SQLException if the checkpoint cannot be written
+	 */
+	public void checkpoint() throws SQLException {
+		final List<E> snapshot;
+		final long generation;
+		try {
+			synchronized (items) {
+				load();
+				snapshot = new ArrayList<>(items);
+				generation = journal.rotate();
+			}
+			final var records = new ArrayList<byte[]>(snapshot.size());
+			for (E element : snapshot) {
+				records.add(codec.encode(element));
+			}
+			journal.checkpoint(generation, records);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	/**
+	 * Sets how often checkpoints are written.
+	 *
+	 * @param interval the interval between checkpoints, 0 disables them
+	 * @param unit     a {@code TimeUnit} determining how to interpret the
+	 *                 {@code interval} parameter
+	 * @throws IllegalArgumentException if {@code interval} is negative
+	 */
+	public synchronized void setCheckpointInterval(long interval, TimeUnit unit) {
+		if (interval < 0)
+			throw new IllegalArgumentException();
+		if (checkpointTask != null) {
+			checkpointTask.cancel(false);
+			checkpointTask = null;
+		}
+		if (interval == 0)
+			return;
+		if (checkpointer == null) {
+			checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+				final var t = new Thread(r, "db-queue-checkpoint");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		checkpointTask = checkpointer.scheduleWithFixedDelay(() -> {
+			try {
+				checkpoint();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops the scheduled checkpoints, writes a last checkpoint and closes the
+	 * journal.
+	 *
+	 * @throws SQLException if the checkpoint cannot be written
+	 */
+	public void close() throws SQLException {
+		synchronized (this) {
+			if (checkpointer != null) {
+				checkpointer.shutdownNow();
+				checkpointer = null;
+				checkpointTask = null;
+			}
+		}
+		checkpoint();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected void insertItem(E element) throws SQLException {
+		final var record = codec.encode(element);
+		synchronized (items) {
+			load();
+			try {
+				journal.put(record);
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			items.addLast(element);
+		}
+	}
+
+	@Override
+	protected void insertItems(Collection<? extends E> elements) throws SQLException {
+		final var records = new ArrayList<byte[]>(elements.size());
+		for (E element : elements) {
+			records.add(codec.encode(element));
+		}
+		synchronized (items) {
+			load();
+			try {
+				journal.putAll(records);
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			items.addAll(elements);
+		}
+	}
+
+	@Override
+	protected E extractItem() throws SQLException {
+		synchronized (items) {
+			load();
+			if (items.isEmpty())
+				return null;
+			takeJournaled(1);
+			return items.pollFirst();
+		}
+	}
+
+	@Override
+	protected List<E> extractItems(int max) throws SQLException {
+		synchronized (items) {
+			load();
+			final int n = Math.min(max, items.size());
+			final var x = new ArrayList<E>(n);
+			if (n == 0)
+				return x;
+			takeJournaled(n);
+			for (int i = 0; i < n; i++) {
+				x.add(items.pollFirst());
+			}
+			return x;
+		}
+	}
+
+	@Override
+	protected E itemAt(int i) throws SQLException {
+		synchronized (items) {
+			load();
+			if (i == 0)
+				return items.peekFirst();
+			final var x = itemsAt(i, 1);
+			return x.isEmpty() ? null : x.get(0);
+		}
+	}
+
+	@Override
+	protected List<E> itemsAt(int from, int max) throws SQLException {
+		synchronized (items) {
+			load();
+			final var x = new ArrayList<E>();
+			final Iterator<E> it = items.iterator();
+			for (int i = 0; it.hasNext() && x.size() < max; i++) {
+				final var element = it.next();
+				if (i >= from)
+					x.add(element);
+			}
+			return x;
+		}
+	}
+
+	@Override
+	protected int count() throws SQLException {
+		synchronized (items) {
+			load();
+			return items.size();
+		}
+	}
+
+	@Override
+	protected boolean removeItemAt(int i) throws SQLException {
+		synchronized (items) {
+			load();
+			if (i < 0 || i >= items.size())
+				return false;
+			try {
+				journal.remove(i);
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			final Iterator<E> it = items.iterator();
+			for (int j = 0; j <= i; j++) {
+				it.next();
+			}
+			it.remove();
+			return true;
+		}
+	}
+
+	@Override
+	protected void removeHead(int n) throws SQLException {
+		synchronized (items) {
+			load();
+			final int m = Math.min(n, items.size());
+			if (m == 0)
+				return;
+			takeJournaled(m);
+			for (int i = 0; i < m; i++) {
+				items.pollFirst();
+			}
+		}
+	}
+
+	@Override
+	protected void clearTable() throws SQLException {
+		synchronized (items) {
+			load();
+			try {
+				journal.clear();
+			} catch (IOException e) {
+				throw failure(e);
+			}
+			items.clear();
+		}
+	}
+
+	/**
+	 * Opens an iterator over a copy of the elements.
+	 */
+	@Override
+	protected CloseableIterator<E> openCursor(int fetchSize) throws SQLException {
+		final List<E> snapshot;
+		synchronized (items) {
+			load();
+			snapshot = new ArrayList<>(items);
+		}
+		final var it = snapshot.iterator();
+		return new CloseableIterator<E>() {
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public E next() {
+				return it.next();
+			}
+
+			@Override
+			public void close() {
+				// nothing held
+			}
+		};
+	}
+
+	/**
+	 * Decodes the records recovered by the journal on first use. Call only
+	 * when holding the items lock.
+	 */
+	private void load() {
+		if (loaded)
+			return;
+		for (byte[] record : journal.takeRecovered()) {
+			items.addLast(codec.decode(record));
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Journals the removal of the first {@code n} elements. Call only when
+	 * holding the items lock.
+	 */
+	private void takeJournaled(int n) throws SQLException {
+		try {
+			journal.take(n);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	private static SQLException failure(IOException e) {
+		return new SQLException(e.getMessage(), IO_ERROR, e);
+	}
+}
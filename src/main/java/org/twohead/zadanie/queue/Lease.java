@@ -0,0 +1,105 @@
+package org.twohead.zadanie.queue;
+
+import java.sql.SQLException;
+
+/**
+ * An element taken from a {@link DBBlockingQueue} under a lease. The row of the
+ * element stays in the table, invisible to other takes, until the lease is
+ * acknowledged, which deletes it, or released, which puts the element back at
+ * its original position. A lease neither acknowledged nor released by its
+ * deadline expires and the element is delivered again. A failed lease is
+ * delivered again after a delay, or dead-lettered after too many failures.
+ *
+ * @param <E> the type of the leased element
+ */
+public class Lease<E> {
+
+	private final DBBlockingQueue<E> queue;
+	private final String owner;
+	private final E element;
+	private final long deadline;
+	private boolean settled;
+
+	Lease(DBBlockingQueue<E> queue, String owner, E element, long deadline) {
+		this.queue = queue;
+		this.owner = owner;
+		this.element = element;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Returns the leased element.
+	 */
+	public E getElement() {
+		return element;
+	}
+
+	/**
+	 * Returns the token identifying this lease in the table.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the time the lease expires, in milliseconds since the epoch.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Acknowledges the element as processed and deletes it from the queue.
+	 *
+	 * @return {@code false} if the lease was already settled or has expired and
+	 *         the element was released for delivery again
+	 * @throws SQLException
+	 */
+	public synchronized boolean ack() throws SQLException {
+		if (settled)
+			return false;
+		final boolean held = queue.ack(this);
+		settled = true;
+		return held;
+	}
+
+	/**
+	 * Releases the element unprocessed, it becomes available to takes again at
+	 * its original position.
+	 *
+	 * @return {@code false} if the lease was already settled or has expired and
+	 *         the element was released for delivery again
+	 * @throws SQLException
+	 */
+	public synchronized boolean nack() throws SQLException {
+		if (settled)
+			return false;
+		final boolean held = queue.nack(this);
+		settled = true;
+		return held;
+	}
+
+	/**
+	 * Reports the element as failed. It is delivered again once the
+	 * {@linkplain DBBlockingQueue#setRetryPolicy(RetryPolicy) retry policy} of
+	 * the queue allows, at its original position, or moved to the dead-letter
+	 * table of the queue after too many failed attempts.
+	 *
+	 * @param cause the failure, kept with a dead letter, {@code null} if unknown
+	 * @return {@code false} if the lease was already settled or has expired and
+	 *         the element was released for delivery again
+	 * @throws SQLException
+	 */
+	public synchronized boolean fail(Throwable cause) throws SQLException {
+		if (settled)
+			return false;
+		final boolean held = queue.fail(this, cause);
+		settled = true;
+		return held;
+	}
+
+	@Override
+	public String toString() {
+		return "Lease [owner=" + owner + ", deadline=" + deadline + ", element=" + element + "]";
+	}
+}
@@ -0,0 +1,229 @@
+package org.twohead.zadanie.queue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue spread over several {@link DBBlockingQueue} partitions, each with
+ * its own table and locks, so puts and takes of different partitions do not
+ * contend. A {@link Partitioner} chooses the partition of every element;
+ * elements are FIFO within their partition, there is no order across
+ * partitions.
+ *
+ * <p>
+ * Elements are taken from the partitions directly, consumers being assigned
+ * partitions with {@link #assignedTo(int, int)}. Operations over the whole
+ * queue visit the partitions one after another and are not atomic.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class PartitionedBlockingQueue<E> {
+
+	private final List<DBBlockingQueue<E>> partitions;
+	private final Partitioner<? super E> partitioner;
+
+	/**
+	 * Creates a queue over the given partitions.
+	 *
+	 * @param partitions  the partitions, each backed by its own table
+	 * @param partitioner chooses the partition of an element
+	 * @throws IllegalArgumentException if there are no partitions
+	 */
+	public PartitionedBlockingQueue(List<? extends DBBlockingQueue<E>> partitions, Partitioner<? super E> partitioner) {
+		if (partitions.isEmpty())
+			throw new IllegalArgumentException();
+		if (partitioner == null)
+			throw new NullPointerException();
+		this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+		this.partitioner = partitioner;
+	}
+
+	/**
+	 * Returns the number of partitions.
+	 */
+	public int partitionCount() {
+		return partitions.size();
+	}
+
+	/**
+	 * Returns the partition with the given index.
+	 *
+	 * @param i the partition index
+	 * @throws IndexOutOfBoundsException if there is no such partition
+	 */
+	public DBBlockingQueue<E> partition(int i) {
+		return partitions.get(i);
+	}
+
+	/**
+	 * Returns the index of the partition the element belongs to.
+	 *
+	 * @param e the element
+	 * @throws NullPointerException if the element is null
+	 */
+	public int partitionOf(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		return partitioner.partition(e, partitions.size());
+	}
+
+	/**
+	 * Returns the partitions a consumer takes from when the partitions are
+	 * shared out round robin among {@code consumers} consumers. Every partition
+	 * is assigned to exactly one consumer; with more consumers than partitions
+	 * some get none.
+	 *
+	 * @param consumer  the consumer index, from 0 to {@code consumers - 1}
+	 * @param consumers the number of consumers
+	 * @throws IllegalArgumentException if the consumer index is out of range
+	 */
+	public List<DBBlockingQueue<E>> assignedTo(int consumer, int consumers) {
+		if (consumers <= 0 || consumer < 0 || consumer >= consumers)
+			throw new IllegalArgumentException();
+		final var assigned = new ArrayList<DBBlockingQueue<E>>();
+		for (int i = consumer; i < partitions.size(); i += consumers) {
+			assigned.add(partitions.get(i));
+		}
+		return assigned;
+	}
+
+	/**
+	 * Inserts the element at the tail of its partition, waiting if necessary
+	 * for space to become available.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException 
+	 * @throws NullPointerException if the element is null
+	 * @see DBBlockingQueue#put(Object)
+	 */
+	public void put(E e) throws InterruptedException, SQLException {
+		partitions.get(partitionOf(e)).put(e);
+	}
+
+	/**
+	 * Inserts the element at the tail of its partition if it is possible to do
+	 * so immediately without exceeding the partition's capacity.
+	 *
+	 * @return {@code true} if the element was added, else {@code false}
+	 * @throws SQLException 
+	 * @throws NullPointerException if the element is null
+	 * @see DBBlockingQueue#offer(Object)
+	 */
+	public boolean offer(E e) throws SQLException {
+		return partitions.get(partitionOf(e)).offer(e);
+	}
+
+	/**
+	 * Inserts the element at the tail of its partition, waiting if necessary up
+	 * to the specified wait time for space to become available.
+	 *
+	 * @return {@code true} if successful, or {@code false} if the specified
+	 *         waiting time elapses before space is available
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException 
+	 * @throws NullPointerException if the element is null
+	 * @see DBBlockingQueue#offer(Object, long, TimeUnit)
+	 */
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException, SQLException {
+		return partitions.get(partitionOf(e)).offer(e, timeout, unit);
+	}
+
+	/**
+	 * Inserts all elements of the collection at the tail of their partitions,
+	 * in the collection's iteration order within each partition. The elements
+	 * of one partition are written with one commit, but a failure may leave the
+	 * elements of some partitions added and of others not.
+	 *
+	 * @param c the elements to add
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException 
+	 * @throws NullPointerException if the collection or any of its elements is null
+	 * @see DBBlockingQueue#putAll(Collection)
+	 */
+	public void putAll(Collection<? extends E> c) throws InterruptedException, SQLException {
+		final var byPartition = new ArrayList<List<E>>(partitions.size());
+		for (int i = 0; i < partitions.size(); i++) {
+			byPartition.add(new ArrayList<>());
+		}
+		for (E e : c) {
+			byPartition.get(partitionOf(e)).add(e);
+		}
+		for (int i = 0; i < partitions.size(); i++) {
+			if (!byPartition.get(i).isEmpty())
+				partitions.get(i).putAll(byPartition.get(i));
+		}
+	}
+
+	/**
+	 * Returns the number of elements in all partitions.
+	 *
+	 * @throws SQLException 
+	 */
+	public int size() throws SQLException {
+		int size = 0;
+		for (DBBlockingQueue<E> partition : partitions) {
+			size += partition.size();
+		}
+		return size;
+	}
+
+	public boolean isEmpty() throws SQLException {
+		for (DBBlockingQueue<E> partition : partitions) {
+			if (!partition.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all available elements from all partitions and adds them to the
+	 * given collection, partition by partition.
+	 *
+	 * @param c the collection to transfer elements into
+	 * @return the number of elements transferred
+	 * @throws SQLException 
+	 * @see DBBlockingQueue#drainTo(Collection)
+	 */
+	public int drainTo(Collection<? super E> c) throws SQLException {
+		int n = 0;
+		for (DBBlockingQueue<E> partition : partitions) {
+			n += partition.drainTo(c);
+		}
+		return n;
+	}
+
+	/**
+	 * Removes at most the given number of available elements from the
+	 * partitions, in partition order, and adds them to the given collection.
+	 *
+	 * @param c           the collection to transfer elements into
+	 * @param maxElements the maximum number of elements to transfer
+	 * @return the number of elements transferred
+	 * @throws SQLException 
+	 * @see DBBlockingQueue#drainTo(Collection, int)
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) throws SQLException {
+		int n = 0;
+		for (DBBlockingQueue<E> partition : partitions) {
+			if (n >= maxElements)
+				break;
+			n += partition.drainTo(c, maxElements - n);
+		}
+		return n;
+	}
+
+	/**
+	 * Removes all of the elements from all partitions.
+	 *
+	 * @throws SQLException 
+	 */
+	public void clear() throws SQLException {
+		for (DBBlockingQueue<E> partition : partitions) {
+			partition.clear();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.twohead.zadanie.queue;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Chooses the partition of a {@link PartitionedBlockingQueue} an element is
+ * put into. Elements of the same partition keep their order, so elements that
+ * must stay ordered go to the same partition.
+ *
+ * @param <E> the type of elements partitioned
+ */
+@FunctionalInterface
+public interface Partitioner<E> {
+
+	/**
+	 * Returns the partition of the element.
+	 *
+	 * @param element    the element
+	 * @param partitions the number of partitions
+	 * @return the partition index, from 0 to {@code partitions - 1}
+	 */
+	int partition(E element, int partitions);
+
+	/**
+	 * Returns a partitioner hashing a key of the element, so all elements with
+	 * equal keys go to the same partition.
+	 *
+	 * @param key extracts the key of an element
+	 */
+	static <E> Partitioner<E> hashing(Function<? super E, ?> key) {
+		Objects.requireNonNull(key);
+		return (element, partitions) -> Math.floorMod(Objects.hashCode(key.apply(element)), partitions);
+	}
+}
@@ -0,0 +1,267 @@
+package org.twohead.zadanie.queue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.twohead.zadanie.dao.PayloadDAO;
+import org.twohead.zadanie.model.DeadLetter;
+import org.twohead.zadanie.persistance.CloseableIterator;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.persistance.UncheckedSQLException;
+
+/**
+ * A {@code DBBlockingQueue} of any element type, stored in a table of
+ * sequence ids and binary payloads encoded by a {@link Codec}. One table
+ * layout serves every element type, so no DAO or schema is written per type.
+ * Lookups by key decode and scan the rows. Leases are supported.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class PayloadQueue<E> extends DBBlockingQueue<E> {
+
+	private final PayloadDAO dao;
+	private final Codec<E> codec;
+
+	/**
+	 * Returns an unbounded queue over the payload table, created unless it
+	 * exists. The element count is kept per queue, so the table must be used by
+	 * one queue at a time unless takes
+	 * {@linkplain #setPolling(long, long, java.util.concurrent.TimeUnit) poll}
+	 * it.
+	 *
+	 * @param table the table name
+	 * @param codec the codec of the elements
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 */
+	public static <E> PayloadQueue<E> forTable(String table, Codec<E> codec) throws SQLException {
+		return forTable(table, codec, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Returns a queue over the payload table, created unless it exists.
+	 *
+	 * @see #forTable(String, Codec)
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public static <E> PayloadQueue<E> forTable(String table, Codec<E> codec, int capacity, boolean fair,
+			boolean splitLocks) throws SQLException {
+		DBUtils.getInstance().createPayloadTable(table);
+		return new PayloadQueue<>(table, codec, capacity, fair, splitLocks);
+	}
+
+	/**
+	 * Creates a queue over the given payload table, which must exist.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	protected PayloadQueue(String table, Codec<E> codec, int capacity, boolean fair, boolean splitLocks) {
+		this(table, codec, false, capacity, fair, splitLocks);
+	}
+
+	/**
+	 * Creates a queue over the given payload table, which must exist, taking
+	 * its rows in priority order if {@code prioritized}.
+	 *
+	 * @see PayloadDAO#PayloadDAO(String, org.twohead.zadanie.metrics.LatencyHistogram, boolean)
+	 */
+	PayloadQueue(String table, Codec<E> codec, boolean prioritized, int capacity, boolean fair,
+			boolean splitLocks) {
+		super(capacity, fair, splitLocks);
+		this.dao = new PayloadDAO(table, getMetrics().getCommitHistogram(), prioritized);
+		this.codec = codec;
+	}
+
+	public Codec<E> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the priority stored with the element, 0 in a FIFO queue.
+	 */
+	int priorityOf(E element) {
+		return 0;
+	}
+
+	@Override
+	protected void insertItem(E element) throws SQLException {
+		dao.insert(codec.encode(element), priorityOf(element));
+	}
+
+	@Override
+	protected void insertItems(Collection<? extends E> elements) throws SQLException {
+		final var payloads = new ArrayList<byte[]>(elements.size());
+		final var priorities = new int[elements.size()];
+		for (E element : elements) {
+			priorities[payloads.size()] = priorityOf(element);
+			payloads.add(codec.encode(element));
+		}
+		dao.insertAll(payloads, priorities);
+	}
+
+	@Override
+	protected E extractItem() throws SQLException {
+		return decode(dao.extract());
+	}
+
+	@Override
+	protected List<E> extractItems(int max) throws SQLException {
+		return decodeAll(dao.extractAll(max));
+	}
+
+	@Override
+	protected E itemAt(int i) throws SQLException {
+		return decode(dao.itemAt(i));
+	}
+
+	@Override
+	protected int count() throws SQLException {
+		return dao.count();
+	}
+
+	@Override
+	protected boolean removeItemAt(int i) throws SQLException {
+		return dao.removeItemAt(i);
+	}
+
+	@Override
+	protected boolean removeItem(Object o, int fetchSize) throws SQLException {
+		try (CloseableIterator<Map.Entry<Long, byte[]>> it = dao.keyedCursor(fetchSize)) {
+			while (it.hasNext()) {
+				final var row = it.next();
+				if (o.equals(codec.decode(row.getValue())))
+					return dao.remove(row.getKey());
+			}
+			return false;
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	protected void clearTable() throws SQLException {
+		dao.clearTable();
+	}
+
+	@Override
+	protected CloseableIterator<E> openCursor(int fetchSize) throws SQLException {
+		final var payloads = dao.cursor(fetchSize);
+		return new CloseableIterator<E>() {
+
+			@Override
+			public boolean hasNext() {
+				return payloads.hasNext();
+			}
+
+			@Override
+			public E next() {
+				return codec.decode(payloads.next());
+			}
+
+			@Override
+			public void close() {
+				payloads.close();
+			}
+		};
+	}
+
+	@Override
+	protected List<E> itemsAt(int from, int max) throws SQLException {
+		return decodeAll(dao.itemsAt(from, max));
+	}
+
+	@Override
+	protected void removeHead(int n) throws SQLException {
+		dao.removeHead(n);
+	}
+
+	@Override
+	public boolean isLeaseSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean isDeadLetterSupported() {
+		return true;
+	}
+
+	@Override
+	protected E leaseItem(String owner, long deadline) throws SQLException {
+		return decode(dao.lease(owner, deadline));
+	}
+
+	@Override
+	protected boolean ackItem(String owner) throws SQLException {
+		return dao.ack(owner);
+	}
+
+	@Override
+	protected boolean nackItem(String owner) throws SQLException {
+		return dao.nack(owner);
+	}
+
+	@Override
+	protected int releaseExpiredItems(long now) throws SQLException {
+		return dao.releaseExpired(now);
+	}
+
+	@Override
+	protected int countLeased() throws SQLException {
+		return dao.countLeased();
+	}
+
+	@Override
+	protected int failItem(String owner) throws SQLException {
+		return dao.fail(owner);
+	}
+
+	@Override
+	protected boolean retryItem(String owner, long notBefore) throws SQLException {
+		return dao.retry(owner, notBefore);
+	}
+
+	@Override
+	protected boolean deadLetterItem(String owner, String reason, long failedAt) throws SQLException {
+		return dao.deadLetter(owner, reason, failedAt);
+	}
+
+	@Override
+	protected void insertDeadItem(E element, int attempts, String reason, long failedAt) throws SQLException {
+		dao.insertDeadLetter(codec.encode(element), priorityOf(element), attempts, reason, failedAt);
+	}
+
+	@Override
+	protected int countDeadItems() throws SQLException {
+		return dao.countDeadLetters();
+	}
+
+	@Override
+	protected List<DeadLetter<E>> deadItems(int max) throws SQLException {
+		final var letters = new ArrayList<DeadLetter<E>>();
+		for (DeadLetter<byte[]> letter : dao.deadLetters(max)) {
+			letters.add(new DeadLetter<>(letter.getId(), decode(letter.getElement()), letter.getAttempts(),
+					letter.getReason(), letter.getFailedAt()));
+		}
+		return letters;
+	}
+
+	@Override
+	protected int replayDeadItems(int max) throws SQLException {
+		return dao.replayDeadLetters(max);
+	}
+
+	private E decode(byte[] payload) {
+		return (payload == null) ? null : codec.decode(payload);
+	}
+
+	private List<E> decodeAll(List<byte[]> payloads) {
+		final var elements = new ArrayList<E>(payloads.size());
+		for (byte[] payload : payloads) {
+			elements.add(codec.decode(payload));
+		}
+		return elements;
+	}
+}
@@ -0,0 +1,120 @@
+package org.twohead.zadanie.queue;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The future of an asynchronous take, completed by the queue once elements
+ * arrive. The queue claims it before taking elements for it, a completion or
+ * cancellation by others meanwhile is deferred and applied only if no
+ * element is delivered, so no taken element is lost to a racing timeout or
+ * cancellation.
+ *
+ * @param <T> the type of the result, an element or a list of them
+ */
+final class PendingTake<T> extends CompletableFuture<T> {
+
+	/** The maximum number of elements to take, 0 for a single element */
+	final int max;
+	/** Time the take was requested, a value of {@link System#nanoTime()} */
+	final long startNanos;
+
+	/** Whether the queue takes elements for it or others complete it, guarded by this */
+	private boolean claimed;
+	/** Completion by others while the queue held the claim, guarded by this */
+	private Runnable deferred;
+	/** Elements or failure taken by the queue, written under the queue lock before delivery */
+	private T result;
+	private Throwable failure;
+	/** Whether the queue completed it, having removed it from its pending takes */
+	private volatile boolean delivered;
+
+	PendingTake(int max) {
+		this.max = max;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Claims the take for the queue. Returns {@code false} if it is completed
+	 * or being completed by others.
+	 */
+	synchronized boolean claim() {
+		if (claimed || isDone())
+			return false;
+		claimed = true;
+		return true;
+	}
+
+	/**
+	 * Gives up the claim of the queue after it found no element. Returns the
+	 * completion by others attempted meanwhile, which then owns the take and
+	 * is to be run by the caller, or {@code null}.
+	 */
+	synchronized Runnable release() {
+		final Runnable r = deferred;
+		deferred = null;
+		claimed = (r != null);
+		return r;
+	}
+
+	/**
+	 * Sets the elements taken for a claimed take, delivered later.
+	 */
+	void taken(T value) {
+		result = value;
+	}
+
+	/**
+	 * Sets the failure of taking elements for a claimed take, delivered later.
+	 */
+	void failed(Throwable ex) {
+		failure = ex;
+	}
+
+	/**
+	 * Completes a claimed take with its elements or failure. Called once the
+	 * queue lock is released, so dependent actions do not run under it.
+	 */
+	void deliver() {
+		delivered = true;
+		if (failure != null)
+			super.completeExceptionally(failure);
+		else
+			super.complete(result);
+	}
+
+	/**
+	 * Returns whether the queue completed the take, rather than others.
+	 */
+	boolean delivered() {
+		return delivered;
+	}
+
+	/**
+	 * Claims the take for a completion by others, or defers the completion
+	 * while the queue holds the claim.
+	 */
+	private synchronized boolean claimOrDefer(Runnable completion) {
+		if (!claimed) {
+			claimed = true;
+			return true;
+		}
+		if (!isDone())
+			deferred = completion;
+		return false;
+	}
+
+	@Override
+	public boolean complete(T value) {
+		return claimOrDefer(() -> super.complete(value)) && super.complete(value);
+	}
+
+	@Override
+	public boolean completeExceptionally(Throwable ex) {
+		return claimOrDefer(() -> super.completeExceptionally(ex)) && super.completeExceptionally(ex);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return claimOrDefer(() -> super.cancel(mayInterruptIfRunning)) && super.cancel(mayInterruptIfRunning);
+	}
+}
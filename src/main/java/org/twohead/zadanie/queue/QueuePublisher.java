@@ -0,0 +1,192 @@
+package org.twohead.zadanie.queue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the elements of a {@link DBBlockingQueue} to
+ * {@link Flow.Subscriber}s as they are requested. Each subscription takes
+ * batches of elements sized to its outstanding demand, at most
+ * {@code maxBatch} of them per take, and issues no take at all while its
+ * demand is zero, so no element is read before a subscriber is ready for
+ * it.
+ *
+ * <p>
+ * Every subscriber gets its own subscription, subscribers of the same queue
+ * compete for its elements like consumers do. The stream never completes,
+ * it ends only by cancellation or by the failure of a take, signalled with
+ * its {@code SQLException}. Elements are delivered by the given executor,
+ * one subscription at a time.
+ *
+ * <p>
+ * Elements taken for a subscription cancelled meanwhile are put back at the
+ * tail of the queue.
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class QueuePublisher<E> implements Flow.Publisher<E> {
+
+	/** Default maximum number of elements taken at once */
+	public static final int DEFAULT_MAX_BATCH = 100;
+
+	private final DBBlockingQueue<E> queue;
+	private final int maxBatch;
+	private final Executor executor;
+
+	/**
+	 * Creates a publisher taking up to {@value #DEFAULT_MAX_BATCH} elements at
+	 * once and delivering them by the common pool.
+	 *
+	 * @param queue the queue to take elements from
+	 */
+	public QueuePublisher(DBBlockingQueue<E> queue) {
+		this(queue, DEFAULT_MAX_BATCH, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a publisher.
+	 *
+	 * @param queue    the queue to take elements from
+	 * @param maxBatch the maximum number of elements taken at once
+	 * @param executor runs the delivery of the taken elements
+	 * @throws IllegalArgumentException if {@code maxBatch} is not positive
+	 */
+	public QueuePublisher(DBBlockingQueue<E> queue, int maxBatch, Executor executor) {
+		if (queue == null || executor == null)
+			throw new NullPointerException();
+		if (maxBatch <= 0)
+			throw new IllegalArgumentException();
+		this.queue = queue;
+		this.maxBatch = maxBatch;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super E> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+		subscriber.onSubscribe(new QueueSubscription(subscriber));
+	}
+
+	/**
+	 * Subscription taking one batch at a time. While a take is outstanding or
+	 * its elements are delivered the subscription is busy; requests meanwhile
+	 * only add demand, which is served once the delivery ends.
+	 */
+	private final class QueueSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super E> subscriber;
+		/** Outstanding demand, {@code Long.MAX_VALUE} for unbounded */
+		private final AtomicLong demand = new AtomicLong();
+		/** Whether a take is outstanding or its elements are delivered */
+		private final AtomicBoolean busy = new AtomicBoolean();
+		private volatile boolean cancelled;
+		/** Error to signal once not busy, set by an illegal request */
+		private volatile Throwable error;
+		/** The outstanding take, cancelled with the subscription */
+		private volatile CompletableFuture<List<E>> pending;
+
+		QueueSubscription(Flow.Subscriber<? super E> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("non-positive request: " + n);
+				cancel();
+				if (busy.compareAndSet(false, true))
+					execute(() -> deliver(null, null));
+				return;
+			}
+			demand.accumulateAndGet(n, (d, m) -> d + m < 0 ? Long.MAX_VALUE : d + m);
+			fetch();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			final var take = pending;
+			if (take != null)
+				take.cancel(false);
+		}
+
+		/**
+		 * Takes a batch sized to the demand, unless busy, cancelled or without
+		 * demand.
+		 */
+		private void fetch() {
+			if (cancelled || demand.get() == 0 || !busy.compareAndSet(false, true))
+				return;
+			// demand only drops by deliveries, which are excluded by now
+			final var take = queue.takeBatchAsync((int) Math.min(demand.get(), maxBatch));
+			pending = take;
+			take.whenComplete((batch, ex) -> execute(() -> deliver(batch, ex)));
+			if (cancelled)
+				take.cancel(false);
+		}
+
+		/**
+		 * Delivers a taken batch or the failure of a take, then takes the next
+		 * batch if demand remains. Elements left over by a cancellation go back
+		 * to the queue.
+		 */
+		private void deliver(List<E> batch, Throwable ex) {
+			pending = null;
+			if (batch != null) {
+				int i = 0;
+				try {
+					for (; i < batch.size() && !cancelled; i++) {
+						subscriber.onNext(batch.get(i));
+						demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+					}
+				} catch (Throwable t) {
+					// a subscriber must not throw, the element is lost to it
+					i++;
+					cancelled = true;
+					t.printStackTrace();
+				}
+				if (i < batch.size())
+					putBack(batch.subList(i, batch.size()));
+			} else if (ex != null && !cancelled) {
+				cancelled = true;
+				error = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+			}
+			if (error != null) {
+				// stay busy, nothing is signalled after the error
+				subscriber.onError(error);
+				return;
+			}
+			busy.set(false);
+			if (error != null && busy.compareAndSet(false, true)) {
+				// an illegal request arrived during the delivery
+				subscriber.onError(error);
+				return;
+			}
+			fetch();
+		}
+
+		private void putBack(List<E> elements) {
+			for (E e : elements)
+				queue.putAsync(e).exceptionally(t -> {
+					t.printStackTrace();
+					return null;
+				});
+		}
+
+		private void execute(Runnable delivery) {
+			try {
+				executor.execute(delivery);
+			} catch (RejectedExecutionException e) {
+				delivery.run();
+			}
+		}
+	}
+}
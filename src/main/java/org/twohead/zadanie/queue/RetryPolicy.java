@@ -0,0 +1,63 @@
+package org.twohead.zadanie.queue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When an element whose processing failed is delivered again. The delay
+ * before the next attempt doubles from the initial delay up to the maximum
+ * with every failed attempt, after {@code maxAttempts} failures the element
+ * is moved to the dead-letter table of its queue instead.
+ *
+ * @see Lease#fail(Throwable)
+ */
+public final class RetryPolicy {
+
+	/** Five attempts, retried after 1, 2, 4 and 8 seconds */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(5, 1, 60, TimeUnit.SECONDS);
+
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+
+	/**
+	 * Creates a retry policy.
+	 *
+	 * @param maxAttempts  the number of failed attempts dead-lettering an
+	 *                     element, 1 to never retry
+	 * @param initialDelay the delay after the first failure
+	 * @param maxDelay     the maximum delay
+	 * @param unit         the time unit of the delays
+	 * @throws IllegalArgumentException if {@code maxAttempts} is not positive,
+	 *                                  {@code initialDelay} is negative or
+	 *                                  {@code maxDelay} is less than it
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit) {
+		if (maxAttempts <= 0 || initialDelay < 0 || maxDelay < initialDelay)
+			throw new IllegalArgumentException();
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMillis = unit.toMillis(initialDelay);
+		this.maxDelayMillis = unit.toMillis(maxDelay);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns the delay before the attempt following {@code attempts} failed
+	 * ones, in milliseconds.
+	 */
+	public long getDelayMillis(int attempts) {
+		long delay = initialDelayMillis;
+		for (int i = 1; i < attempts && delay < maxDelayMillis; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxDelayMillis);
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy [maxAttempts=" + maxAttempts + ", initialDelayMillis=" + initialDelayMillis
+				+ ", maxDelayMillis=" + maxDelayMillis + "]";
+	}
+}
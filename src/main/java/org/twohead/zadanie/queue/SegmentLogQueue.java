@@ -0,0 +1,196 @@
+package org.twohead.zadanie.queue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.twohead.zadanie.persistance.CloseableIterator;
+import org.twohead.zadanie.persistance.SegmentLog;
+import org.twohead.zadanie.persistance.UncheckedSQLException;
+
+/**
+ * A {@code DBBlockingQueue} stored in a memory-mapped {@link SegmentLog}
+ * instead of a database table. Puts append to the tail of the log and takes
+ * consume its head sequentially, without the index and transaction log a
+ * table needs. Elements are turned into records by a {@link Codec}.
+ *
+ * <p>
+ * Removing an element other than the head marks its record removed, lookups
+ * by key scan the log. Leases are not supported. Failures of the log are
+ * thrown as {@link SQLException} like those of a table, with the
+ * {@link IOException} as cause.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class SegmentLogQueue<E> extends DBBlockingQueue<E> {
+
+	/** SQL state of I/O errors */
+	private static final String IO_ERROR = "58030";
+
+	private final SegmentLog log;
+	private final Codec<E> codec;
+
+	/**
+	 * Creates an unbounded queue over the log, holding the elements already in
+	 * it.
+	 */
+	public SegmentLogQueue(SegmentLog log, Codec<E> codec) {
+		this(log, codec, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Creates a queue over the log, holding the elements already in it.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public SegmentLogQueue(SegmentLog log, Codec<E> codec, int capacity, boolean fair, boolean splitLocks) {
+		super(capacity, fair, splitLocks);
+		this.log = log;
+		this.codec = codec;
+	}
+
+	public SegmentLog getLog() {
+		return log;
+	}
+
+	public Codec<E> getCodec() {
+		return codec;
+	}
+
+	@Override
+	protected void insertItem(E element) throws SQLException {
+		try {
+			log.append(codec.encode(element));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected void insertItems(Collection<? extends E> elements) throws SQLException {
+		final var records = new ArrayList<byte[]>(elements.size());
+		for (E element : elements) {
+			records.add(codec.encode(element));
+		}
+		try {
+			log.appendAll(records);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected E extractItem() throws SQLException {
+		try {
+			final var record = log.poll();
+			return (record == null) ? null : codec.decode(record);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected List<E> extractItems(int max) throws SQLException {
+		try {
+			return decodeAll(log.pollAll(max));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected E itemAt(int i) throws SQLException {
+		try {
+			final var record = log.get(i);
+			return (record == null) ? null : codec.decode(record);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected List<E> itemsAt(int from, int max) throws SQLException {
+		try {
+			return decodeAll(log.list(from, max));
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected int count() throws SQLException {
+		return log.size();
+	}
+
+	@Override
+	protected boolean removeItemAt(int i) throws SQLException {
+		try {
+			return log.remove(i);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected void removeHead(int n) throws SQLException {
+		try {
+			log.removeHead(n);
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected void clearTable() throws SQLException {
+		try {
+			log.clear();
+		} catch (IOException e) {
+			throw failure(e);
+		}
+	}
+
+	@Override
+	protected CloseableIterator<E> openCursor(int fetchSize) throws SQLException {
+		final var records = log.cursor(fetchSize);
+		return new CloseableIterator<E>() {
+
+			@Override
+			public boolean hasNext() {
+				try {
+					return records.hasNext();
+				} catch (UncheckedIOException e) {
+					throw new UncheckedSQLException(failure(e.getCause()));
+				}
+			}
+
+			@Override
+			public E next() {
+				try {
+					return codec.decode(records.next());
+				} catch (UncheckedIOException e) {
+					throw new UncheckedSQLException(failure(e.getCause()));
+				}
+			}
+
+			@Override
+			public void close() {
+				records.close();
+			}
+		};
+	}
+
+	private List<E> decodeAll(List<byte[]> records) {
+		final var elements = new ArrayList<E>(records.size());
+		for (byte[] record : records) {
+			elements.add(codec.decode(record));
+		}
+		return elements;
+	}
+
+	private static SQLException failure(IOException e) {
+		return new SQLException(e.getMessage(), IO_ERROR, e);
+	}
+}
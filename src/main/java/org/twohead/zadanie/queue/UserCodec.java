@@ -0,0 +1,67 @@
+package org.twohead.zadanie.queue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.twohead.zadanie.model.User;
+
+/**
+ * A compact binary codec of users: the user id followed by the guid and the
+ * name, each string as its UTF-8 length and bytes.
+ */
+public class UserCodec implements Codec<User> {
+
+	/** Length of a missing string */
+	private static final int NULL_LENGTH = -1;
+
+	@Override
+	public byte[] encode(User user) {
+		final var guid = bytes(user.getUserGuid());
+		final var name = bytes(user.getName());
+		final var buffer = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES + length(guid) + length(name));
+		buffer.putLong(user.getUserId());
+		put(buffer, guid);
+		put(buffer, name);
+		return buffer.array();
+	}
+
+	@Override
+	public User decode(byte[] bytes) {
+		try {
+			final var buffer = ByteBuffer.wrap(bytes);
+			final var userId = buffer.getLong();
+			final var guid = string(buffer);
+			final var name = string(buffer);
+			return new User(userId, guid, name);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Not an encoded user", e);
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] b) {
+		return (b == null) ? 0 : b.length;
+	}
+
+	private static void put(ByteBuffer buffer, byte[] b) {
+		if (b == null) {
+			buffer.putInt(NULL_LENGTH);
+		} else {
+			buffer.putInt(b.length);
+			buffer.put(b);
+		}
+	}
+
+	private static String string(ByteBuffer buffer) {
+		final var length = buffer.getInt();
+		if (length == NULL_LENGTH)
+			return null;
+		final var s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+}
@@ -0,0 +1,44 @@
+package org.twohead.zadanie.queue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.Journal;
+
+/**
+ * A user queue kept in memory and made durable by a {@link Journal}. It has
+ * the lookup keys of {@link UserQueue}, found by scanning the elements.
+ */
+public class UserJournaledQueue extends JournaledQueue<User> {
+
+	/**
+	 * Creates an unbounded queue over the journal.
+	 */
+	public UserJournaledQueue(Journal journal) {
+		this(journal, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Creates a queue over the journal.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public UserJournaledQueue(Journal journal, int capacity, boolean fair, boolean splitLocks) {
+		super(journal, new UserCodec(), capacity, fair, splitLocks);
+	}
+
+	@Override
+	protected Set<String> keyNames() {
+		return UserQueue.KEY_NAMES;
+	}
+
+	@Override
+	protected Map<String, Object> lookupKeys(User user) {
+		final var keys = new LinkedHashMap<String, Object>();
+		keys.put(UserQueue.KEY_USER_ID, user.getUserId());
+		keys.put(UserQueue.KEY_USER_GUID, user.getUserGuid());
+		return keys;
+	}
+}
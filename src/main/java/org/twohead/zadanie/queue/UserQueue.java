@@ -1,55 +1,340 @@
 package org.twohead.zadanie.queue;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
 
 import org.twohead.zadanie.dao.UserDAO;
+import org.twohead.zadanie.model.DeadLetter;
 import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.CloseableIterator;
 import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.persistance.UncheckedSQLException;
 
 public class UserQueue extends DBBlockingQueue<User> {
 	
+	/** Lookup key of {@link User#getUserId()} */
+	public static final String KEY_USER_ID = "userId";
+	/** Lookup key of {@link User#getUserGuid()} */
+	public static final String KEY_USER_GUID = "userGuid";
+	/** Names of the lookup keys of users */
+	static final Set<String> KEY_NAMES = Set.of(KEY_USER_ID, KEY_USER_GUID);
+
+	/** Name prefix of the partition tables of {@link #partitioned(int)} */
+	public static final String PARTITION_TABLE_PREFIX = DBUtils.USER_TABLE + "_p";
+
 	private static UserQueue instance;
+	/** Queues of other tables than the default one, by upper case table name */
+	private static final Map<String, UserQueue> tableQueues = new HashMap<>();
+
+	private static boolean fair = true;
+	private static boolean splitLocks = false;
+	private static int capacity = Integer.MAX_VALUE;
+
+	/**
+	 * Sets the access policy and locking mode of the queue instance. Has no
+	 * effect once the instance has been created.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(boolean, boolean)
+	 */
+	public static void init(boolean fair, boolean splitLocks) {
+		init(Integer.MAX_VALUE, fair, splitLocks);
+	}
+
+	/**
+	 * Sets the capacity, access policy and locking mode of the queue instance.
+	 * Has no effect once the instance has been created.
+	 *
+	 * @throws IllegalArgumentException if {@code capacity} is not greater than
+	 *                                  zero
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public static void init(int capacity, boolean fair, boolean splitLocks) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		synchronized (DBUtils.class) {
+			if (instance == null) {
+				UserQueue.capacity = capacity;
+				UserQueue.fair = fair;
+				UserQueue.splitLocks = splitLocks;
+			}
+		}
+	}
 	
 	public static UserQueue getInstance() {
 		if (instance == null) {
 			synchronized (DBUtils.class) {
 				if (instance == null) {
-					instance = new UserQueue();
+					instance = new UserQueue(capacity, fair, splitLocks);
+					registerMetrics(instance, DBUtils.USER_TABLE);
 				}
 			}
 		}
 		return instance;
 	}
 
-	private UserQueue() {}
+	/**
+	 * Returns the queue of the given user table, creating the table if
+	 * necessary. Each table has one queue with its own locks, configured like
+	 * the default instance.
+	 *
+	 * @param table the table name
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if the name is not a plain SQL identifier
+	 * @see #init(int, boolean, boolean)
+	 */
+	public static UserQueue forTable(String table) throws SQLException {
+		if (DBUtils.USER_TABLE.equalsIgnoreCase(table)) {
+			return getInstance();
+		}
+		DBUtils.checkTableName(table);
+		synchronized (DBUtils.class) {
+			var queue = tableQueues.get(table.toUpperCase());
+			if (queue == null) {
+				DBUtils.getInstance().createUserTable(table);
+				queue = new UserQueue(table, capacity, fair, splitLocks);
+				registerMetrics(queue, table);
+				tableQueues.put(table.toUpperCase(), queue);
+			}
+			return queue;
+		}
+	}
+
+	/**
+	 * Publishes the metrics of the queue over JMX under its table name. A
+	 * failure is only reported, the queue works without them.
+	 */
+	private static void registerMetrics(UserQueue queue, String table) {
+		try {
+			queue.getMetrics().register(table.toUpperCase());
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a queue spread over {@code partitions} user tables, named by
+	 * {@link #PARTITION_TABLE_PREFIX} and the partition index. Users are
+	 * partitioned by their user id, so the users of one id keep their order.
+	 *
+	 * @param partitions the number of partitions
+	 * @throws SQLException
+	 * @throws IllegalArgumentException if {@code partitions} is not positive
+	 */
+	public static PartitionedBlockingQueue<User> partitioned(int partitions) throws SQLException {
+		if (partitions <= 0)
+			throw new IllegalArgumentException();
+		final var queues = new ArrayList<UserQueue>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			queues.add(forTable(PARTITION_TABLE_PREFIX + i));
+		}
+		return new PartitionedBlockingQueue<>(queues, Partitioner.hashing(User::getUserId));
+	}
+
+	private final UserDAO dao;
+
+	/**
+	 * Creates a queue over the default user table. The element count is kept
+	 * per queue, so the table must be used by one queue at a time unless takes
+	 * {@linkplain #setPolling(long, long, TimeUnit) poll} it.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	protected UserQueue(int capacity, boolean fair, boolean splitLocks) {
+		this(DBUtils.USER_TABLE, capacity, fair, splitLocks);
+	}
+
+	/**
+	 * Creates a queue over the given user table, which must exist.
+	 *
+	 * @see #UserQueue(int, boolean, boolean)
+	 */
+	protected UserQueue(String table, int capacity, boolean fair, boolean splitLocks) {
+		super(capacity, fair, splitLocks);
+		this.dao = new UserDAO(table, getMetrics().getCommitHistogram());
+	}
 
 	@Override
 	protected void insertItem(User user) throws SQLException {
-		new UserDAO().insert(user);
+		dao.insert(user);
+	}
+
+	@Override
+	protected void insertItems(Collection<? extends User> users) throws SQLException {
+		dao.insertAll(users);
 	}
 
 	@Override
 	protected User extractItem() throws SQLException {
-		return new UserDAO().extract();
+		return dao.extract();
+	}
+
+	@Override
+	protected List<User> extractItems(int max) throws SQLException {
+		return dao.extractAll(max);
 	}
 
 	@Override
 	protected User itemAt(int i) throws SQLException {
-		return new UserDAO().itemAt(i);
+		return dao.itemAt(i);
 	}
 
 	@Override
 	protected int count() throws SQLException {
-		return new UserDAO().count();
+		return dao.count();
 	}
 
 	@Override
-	protected void removeItemAt(int i) throws SQLException {
-		new UserDAO().removeItemAt(i);
+	protected boolean removeItemAt(int i) throws SQLException {
+		return dao.removeItemAt(i);
+	}
+
+	@Override
+	protected boolean removeItem(Object o, int fetchSize) throws SQLException {
+		try (CloseableIterator<Map.Entry<Long, User>> it = dao.keyedCursor(fetchSize)) {
+			while (it.hasNext()) {
+				final var row = it.next();
+				if (o.equals(row.getValue()))
+					return dao.remove(row.getKey());
+			}
+			return false;
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
 	}
 
 	@Override
 	protected void clearTable() throws SQLException {
-		new UserDAO().clearTable();
+		dao.clearTable();
+	}
+
+	@Override
+	protected CloseableIterator<User> openCursor(int fetchSize) throws SQLException {
+		return dao.cursor(fetchSize);
+	}
+
+	@Override
+	protected List<User> itemsAt(int from, int max) throws SQLException {
+		return dao.itemsAt(from, max);
+	}
+
+	@Override
+	protected void removeHead(int n) throws SQLException {
+		dao.removeHead(n);
+	}
+
+	@Override
+	public boolean isLeaseSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean isDeadLetterSupported() {
+		return true;
+	}
+
+	@Override
+	protected User leaseItem(String owner, long deadline) throws SQLException {
+		return dao.lease(owner, deadline);
+	}
+
+	@Override
+	protected boolean ackItem(String owner) throws SQLException {
+		return dao.ack(owner);
+	}
+
+	@Override
+	protected boolean nackItem(String owner) throws SQLException {
+		return dao.nack(owner);
+	}
+
+	@Override
+	protected int releaseExpiredItems(long now) throws SQLException {
+		return dao.releaseExpired(now);
+	}
+
+	@Override
+	protected int countLeased() throws SQLException {
+		return dao.countLeased();
+	}
+
+	@Override
+	protected int failItem(String owner) throws SQLException {
+		return dao.fail(owner);
+	}
+
+	@Override
+	protected boolean retryItem(String owner, long notBefore) throws SQLException {
+		return dao.retry(owner, notBefore);
+	}
+
+	@Override
+	protected boolean deadLetterItem(String owner, String reason, long failedAt) throws SQLException {
+		return dao.deadLetter(owner, reason, failedAt);
+	}
+
+	@Override
+	protected void insertDeadItem(User user, int attempts, String reason, long failedAt) throws SQLException {
+		dao.insertDeadLetter(user, attempts, reason, failedAt);
+	}
+
+	@Override
+	protected int countDeadItems() throws SQLException {
+		return dao.countDeadLetters();
+	}
+
+	@Override
+	protected List<DeadLetter<User>> deadItems(int max) throws SQLException {
+		return dao.deadLetters(max);
+	}
+
+	@Override
+	protected int replayDeadItems(int max) throws SQLException {
+		return dao.replayDeadLetters(max);
+	}
+
+	@Override
+	protected Set<String> keyNames() {
+		return KEY_NAMES;
+	}
+
+	@Override
+	protected Map<String, Object> lookupKeys(User user) {
+		final var keys = new LinkedHashMap<String, Object>();
+		keys.put(KEY_USER_ID, user.getUserId());
+		keys.put(KEY_USER_GUID, user.getUserGuid());
+		return keys;
+	}
+
+	@Override
+	protected boolean containsItemKey(String key, Object value) throws SQLException {
+		switch (key) {
+		case KEY_USER_ID:
+			return dao.containsUserId(((Number) value).longValue());
+		case KEY_USER_GUID:
+			return dao.containsUserGuid((String) value);
+		default:
+			throw new IllegalArgumentException("Unknown lookup key " + key);
+		}
+	}
+
+	@Override
+	protected boolean removeItemKey(String key, Object value) throws SQLException {
+		switch (key) {
+		case KEY_USER_ID:
+			return dao.removeFirstByUserId(((Number) value).longValue());
+		case KEY_USER_GUID:
+			return dao.removeFirstByUserGuid((String) value);
+		default:
+			throw new IllegalArgumentException("Unknown lookup key " + key);
+		}
 	}
 }
@@ -0,0 +1,44 @@
+package org.twohead.zadanie.queue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.SegmentLog;
+
+/**
+ * A user queue stored in a {@link SegmentLog}. It has the lookup keys of
+ * {@link UserQueue}, found by scanning the log.
+ */
+public class UserSegmentLogQueue extends SegmentLogQueue<User> {
+
+	/**
+	 * Creates an unbounded queue over the log.
+	 */
+	public UserSegmentLogQueue(SegmentLog log) {
+		this(log, Integer.MAX_VALUE, false, false);
+	}
+
+	/**
+	 * Creates a queue over the log.
+	 *
+	 * @see DBBlockingQueue#DBBlockingQueue(int, boolean, boolean)
+	 */
+	public UserSegmentLogQueue(SegmentLog log, int capacity, boolean fair, boolean splitLocks) {
+		super(log, new UserCodec(), capacity, fair, splitLocks);
+	}
+
+	@Override
+	protected Set<String> keyNames() {
+		return UserQueue.KEY_NAMES;
+	}
+
+	@Override
+	protected Map<String, Object> lookupKeys(User user) {
+		final var keys = new LinkedHashMap<String, Object>();
+		keys.put(UserQueue.KEY_USER_ID, user.getUserId());
+		keys.put(UserQueue.KEY_USER_GUID, user.getUserGuid());
+		return keys;
+	}
+}
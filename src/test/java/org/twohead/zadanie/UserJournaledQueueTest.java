@@ -0,0 +1,137 @@
+package org.twohead.zadanie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.Journal;
+import org.twohead.zadanie.persistance.Journal.FsyncPolicy;
+import org.twohead.zadanie.queue.UserJournaledQueue;
+
+public class UserJournaledQueueTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private int userId = 0;
+	private Path dir;
+	private final List<Journal> journals = new ArrayList<>();
+
+	@Before
+	public void init() {
+		dir = folder.getRoot().toPath().resolve("journal");
+	}
+
+	@After
+	public void close() throws IOException {
+		for (Journal journal : journals) {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void recoveryTest() throws InterruptedException, SQLException, IOException {
+		final var queue = open();
+		final var userList = createUserList(30);
+		queue.putAll(userList.subList(0, 10));
+		for (User user : userList.subList(10, 30)) {
+			queue.put(user);
+		}
+		final var taken = new ArrayList<User>();
+		taken.add(queue.take());
+		taken.addAll(queue.takeBatch(9));
+		assertEquals("Taken users should be the first added users", userList.subList(0, 10), taken);
+		final var removed = userList.get(20);
+		assertTrue("Contained user should be removed", queue.remove(removed));
+
+		// reopened without a checkpoint, as after a crash
+		final var recovered = open();
+		final var expected = new ArrayList<>(userList.subList(10, 30));
+		expected.remove(removed);
+		assertEquals("Recovered queue should replay the journal", expected.size(), recovered.size());
+		final var drained = new ArrayList<User>();
+		recovered.drainTo(drained);
+		assertEquals("Recovered users should keep their order", expected, drained);
+	}
+
+	@Test
+	public void checkpointTest() throws InterruptedException, SQLException, IOException {
+		final var queue = open();
+		final var userList = createUserList(20);
+		queue.putAll(userList);
+		queue.checkpoint();
+		queue.takeBatch(5);
+		final var more = createUserList(5);
+		queue.putAll(more);
+		queue.checkpoint();
+		queue.take();
+		assertEquals("Checkpoints should delete the journal they cover", 1, journalFiles().size());
+
+		final var recovered = open();
+		final var expected = new ArrayList<>(userList.subList(6, 20));
+		expected.addAll(more);
+		final var drained = new ArrayList<User>();
+		recovered.drainTo(drained);
+		assertEquals("Recovered queue should load the checkpoint and replay the journal after it", expected,
+				drained);
+	}
+
+	@Test
+	public void tornTailTest() throws InterruptedException, SQLException, IOException {
+		final var queue = open();
+		final var userList = createUserList(5);
+		queue.putAll(userList);
+		journals.remove(queue.getJournal());
+		queue.getJournal().close();
+		// a crash while appending leaves part of an entry
+		Files.write(journalFiles().get(0), new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		final var recovered = open();
+		assertEquals("Torn entry should be cut off", userList.size(), recovered.size());
+		final var user = createUserList(1).get(0);
+		recovered.put(user);
+		userList.add(user);
+
+		final var reopened = open();
+		final var drained = new ArrayList<User>();
+		reopened.drainTo(drained);
+		assertEquals("Journal should continue after the cut", userList, drained);
+	}
+
+	private UserJournaledQueue open() throws IOException {
+		final var journal = new Journal(dir, FsyncPolicy.NEVER, 0);
+		journals.add(journal);
+		return new UserJournaledQueue(journal);
+	}
+
+	private List<Path> journalFiles() throws IOException {
+		try (var files = Files.list(dir)) {
+			return files.filter(f -> f.getFileName().toString().startsWith("journal-")).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private List<User> createUserList(int size) {
+		final var res = new ArrayList<User>();
+		for (int i = 0; i < size; i++) {
+			res.add(new User(userId, UUID.randomUUID().toString().substring(0, 32), "Name" + userId));
+			userId++;
+		}
+		return res;
+	}
+}
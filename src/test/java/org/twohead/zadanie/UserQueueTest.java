@@ -1,22 +1,50 @@
 package org.twohead.zadanie;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import javax.management.openmbean.CompositeData;
 
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.twohead.zadanie.consumer.AbstractConsumer;
+import org.twohead.zadanie.consumer.ConsumerGroup;
 import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.ConnectionPool;
 import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.queue.DBBlockingQueue;
+import org.twohead.zadanie.queue.DBPriorityBlockingQueue;
+import org.twohead.zadanie.queue.Durability;
+import org.twohead.zadanie.queue.PayloadQueue;
+import org.twohead.zadanie.queue.RetryPolicy;
+import org.twohead.zadanie.queue.UserCodec;
 import org.twohead.zadanie.queue.UserQueue;
 
 public class UserQueueTest {
@@ -37,11 +65,7 @@ public class UserQueueTest {
 
 	@Before
 	public void clean() throws SQLException {
-		final var conn = DBUtils.getInstance().getConnection();
-		final var s = conn.createStatement();
-		s.execute("delete from suser");
-		conn.commit();
-		DBUtils.getInstance().close(s);
+		UserQueue.getInstance().clear();
 	}
 
 	@Test
@@ -80,6 +104,527 @@ public class UserQueueTest {
 		assertEquals("Number of taken users should match the number of added users", count, i);
 	}
 
+	@Test
+	public void putAllTest() throws InterruptedException, SQLException {
+		final var count = 1000;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+
+		cat.putAll(userList);
+
+		assertEquals("Result size should match number of added users", count, cat.size());
+		for (User user : userList) {
+			assertEquals("Taken user should be equal to added user", user, cat.take());
+		}
+	}
+
+	@Test
+	public void prefetchTest() throws InterruptedException, SQLException {
+		final var count = 100;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+
+		cat.setPrefetch(10, 3);
+		try {
+			for (int i = 0; i < count; i++) {
+				assertEquals("Peeked user should be the next added user", userList.get(i), cat.peek());
+				assertEquals("Taken user should be equal to added user", userList.get(i), cat.take());
+				assertEquals("Size should not count taken users", count - i - 1, cat.size());
+			}
+			assertNull("Queue should be empty", cat.take(100, TimeUnit.MILLISECONDS));
+		} finally {
+			cat.setPrefetch(0, 0);
+		}
+		assertTrue("Rows of taken users should be deleted", cat.isEmpty());
+	}
+
+	@Test
+	public void groupCommitTest() throws InterruptedException, SQLException {
+		final var producers = 8;
+		final var count = 25;
+		final var cat = UserQueue.getInstance();
+		final var userLists = new ArrayList<List<User>>();
+		for (int p = 0; p < producers; p++) {
+			userLists.add(createUserList(count));
+		}
+
+		for (Durability durability : new Durability[] { Durability.GROUP, Durability.ASYNC }) {
+			cat.setDurability(durability, 16, 1, TimeUnit.MILLISECONDS);
+			try {
+				final var threads = new ArrayList<Thread>();
+				for (List<User> userList : userLists) {
+					threads.add(new Thread(() -> {
+						try {
+							for (User user : userList) {
+								cat.put(user);
+							}
+						} catch (InterruptedException | SQLException e) {
+							e.printStackTrace();
+						}
+					}));
+				}
+				threads.forEach(Thread::start);
+				for (Thread t : threads) {
+					t.join();
+				}
+				cat.flush();
+				assertEquals("All put users should be committed", producers * count, cat.size());
+
+				final var taken = cat.takeBatch(producers * count);
+				for (List<User> userList : userLists) {
+					final var order = new ArrayList<>(taken);
+					order.retainAll(userList);
+					assertEquals("Users of one producer should be taken in put order", userList, order);
+				}
+			} finally {
+				cat.setDurability(Durability.SYNC);
+			}
+		}
+	}
+
+	@Test
+	public void asyncFailureTest() throws InterruptedException, SQLException {
+		final var table = "suser_async";
+		UserQueue.forTable(table).clear();
+		final var failing = new AtomicBoolean();
+		final var cat = new UserQueue(table, Integer.MAX_VALUE, false, false) {
+			@Override
+			protected void insertItems(Collection<? extends User> users) throws SQLException {
+				if (failing.getAndSet(false))
+					throw new SQLException("write failed");
+				super.insertItems(users);
+			}
+		};
+		cat.setDurability(Durability.ASYNC);
+
+		failing.set(true);
+		cat.put(createUser());
+		try {
+			cat.flush();
+			fail("Flush should throw the failed write");
+		} catch (SQLException e) {
+			assertEquals("Flush should throw the failed write", "write failed", e.getMessage());
+		}
+		cat.flush();
+
+		failing.set(true);
+		cat.put(createUser());
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		SQLException thrown = null;
+		while (thrown == null && System.nanoTime() < deadline) {
+			try {
+				cat.put(createUser());
+			} catch (SQLException e) {
+				thrown = e;
+			}
+		}
+		assertTrue("Next put should throw the failed write", thrown != null);
+
+		failing.set(true);
+		cat.put(createUser());
+		try {
+			cat.setDurability(Durability.SYNC);
+			fail("Changing the durability should throw the failed write");
+		} catch (SQLException e) {
+			assertEquals("Changing the durability should throw the failed write", "write failed", e.getMessage());
+		}
+		final var user = createUser();
+		cat.put(user);
+		assertTrue("Put after the failure should be written", cat.contains(user));
+	}
+
+	@Test
+	public void capacityTest() throws InterruptedException, SQLException {
+		final var capacity = 3;
+		final var bounded = new UserQueue(capacity, true, false) {
+		};
+		final var userList = createUserList(capacity + 1);
+		try {
+			for (int i = 0; i < capacity; i++) {
+				assertTrue("Offer should succeed below the capacity", bounded.offer(userList.get(i)));
+			}
+			assertEquals("Queue should be full", 0, bounded.remainingCapacity());
+			assertFalse("Offer should fail when full", bounded.offer(userList.get(capacity)));
+			assertFalse("Timed offer should fail when full",
+					bounded.offer(userList.get(capacity), 50, TimeUnit.MILLISECONDS));
+
+			final var producer = new Thread(() -> {
+				try {
+					bounded.put(userList.get(capacity));
+				} catch (InterruptedException | SQLException e) {
+					e.printStackTrace();
+				}
+			});
+			producer.start();
+			producer.join(200);
+			assertTrue("Put should wait while the queue is full", producer.isAlive());
+
+			assertEquals("Taken user should be the first added user", userList.get(0), bounded.take());
+			producer.join(5000);
+			assertFalse("Put should complete once there is room", producer.isAlive());
+			assertEquals("Queue should be full again", capacity, bounded.size());
+			assertEquals("Waiting put should be added last", userList.subList(1, capacity + 1),
+					bounded.takeBatch(capacity));
+		} finally {
+			bounded.clear();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void putAllOverCapacityTest() throws InterruptedException, SQLException {
+		new UserQueue(2, true, false) {
+		}.putAll(createUserList(3));
+	}
+
+	@Test
+	public void leaseTest() throws InterruptedException, SQLException {
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(3);
+		cat.putAll(userList);
+
+		final var first = cat.lease(1, TimeUnit.MINUTES);
+		assertEquals("Leased user should be the first added user", userList.get(0), first.getElement());
+		assertEquals("Size should not count leased users", 2, cat.size());
+		final var second = cat.lease(1, TimeUnit.MINUTES);
+		assertEquals("Leased user should be the next added user", userList.get(1), second.getElement());
+
+		assertTrue("Released lease should be held", second.nack());
+		assertFalse("Lease should be settled once", second.nack());
+		assertEquals("Released user should be counted again", 2, cat.size());
+		assertEquals("Released user should keep its position", userList.get(1), cat.take());
+
+		assertTrue("Acknowledged lease should be held", first.ack());
+		assertFalse("Lease should be settled once", first.ack());
+		assertEquals("Acknowledged user should be deleted", 1, cat.size());
+		assertEquals("Unleased user should remain", userList.get(2), cat.take());
+		assertTrue("Queue should be empty", cat.isEmpty());
+	}
+
+	@Test
+	public void leaseExpiryTest() throws InterruptedException, SQLException {
+		final var cat = UserQueue.getInstance();
+		final var user = createUser();
+		cat.put(user);
+
+		cat.setLeaseReapInterval(20, TimeUnit.MILLISECONDS);
+		try {
+			final var lease = cat.lease(100, TimeUnit.MILLISECONDS);
+			assertTrue("Leased user should not be visible", cat.isEmpty());
+			assertEquals("Expired lease should be delivered again", user, cat.take(5, TimeUnit.SECONDS));
+			assertFalse("Expired lease should not be acknowledged", lease.ack());
+		} finally {
+			cat.setLeaseReapInterval(DBBlockingQueue.DEFAULT_LEASE_REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Test
+	public void deadLetterTest() throws InterruptedException, SQLException {
+		final var cat = UserQueue.getInstance();
+		final var poison = createUser();
+		final var user = createUser();
+		cat.put(poison);
+		cat.put(user);
+		cat.setRetryPolicy(new RetryPolicy(2, 50, 50, TimeUnit.MILLISECONDS));
+		cat.setLeaseReapInterval(10, TimeUnit.MILLISECONDS);
+		try {
+			final var first = cat.lease(1, TimeUnit.MINUTES);
+			assertEquals("Head should be leased", poison, first.getElement());
+			assertTrue("Failed lease should be held", first.fail(new IllegalStateException("poison")));
+			assertFalse("Lease should be settled once", first.fail(null));
+			final var next = cat.lease(1, TimeUnit.MINUTES);
+			assertEquals("Retried user should wait for its delay", user, next.getElement());
+			assertTrue("Next user should be acknowledged", next.ack());
+
+			final var retried = cat.lease(60_000, 5_000, TimeUnit.MILLISECONDS);
+			assertEquals("Failed user should be delivered again", poison, retried.getElement());
+			assertTrue("Last attempt should be held", retried.fail(new IllegalStateException("poison")));
+			assertNull("Dead letter should not be delivered", cat.lease(60_000, 200, TimeUnit.MILLISECONDS));
+			assertEquals("Failed user should be dead-lettered", 1, cat.deadLetterCount());
+			final var letter = cat.deadLetters(10).get(0);
+			assertEquals("Dead letter should hold the user", poison, letter.getElement());
+			assertEquals("Dead letter should count the attempts", 2, letter.getAttempts());
+			assertTrue("Dead letter should keep the failure", letter.getReason().contains("poison"));
+
+			assertEquals("Dead letter should be replayed", 1, cat.replayDeadLetters(10));
+			assertEquals("Replayed dead letter should leave the table", 0, cat.deadLetterCount());
+			assertEquals("Replayed user should be taken", poison, cat.take());
+
+			// a failing consumer dead-letters the user and goes on
+			final var taken = new ArrayList<User>();
+			final var consumer = new AbstractConsumer<User>(cat, 100, TimeUnit.MILLISECONDS) {
+				@Override
+				protected void process(User u) {
+					if (u.equals(poison))
+						throw new IllegalStateException("poison");
+					taken.add(u);
+				}
+			};
+			cat.put(poison);
+			cat.put(user);
+			consumer.run();
+			assertEquals("Consumer should survive a failing user", List.of(user), taken);
+			assertEquals("Consumed failing user should be dead-lettered", poison, cat.deadLetters(10).get(0).getElement());
+			assertEquals("Dead letter should be replayed", 1, cat.replayDeadLetters(10));
+		} finally {
+			cat.setRetryPolicy(RetryPolicy.DEFAULT);
+			cat.setLeaseReapInterval(DBBlockingQueue.DEFAULT_LEASE_REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Test
+	public void partitionedTest() throws InterruptedException, SQLException {
+		final var partitions = 4;
+		final var queue = UserQueue.partitioned(partitions);
+		queue.clear();
+		try {
+			final var userList = new ArrayList<User>();
+			for (int i = 0; i < 40; i++) {
+				// ten users per id, ordered within each id
+				userList.add(new User(i % 10, UUID.randomUUID().toString().replace("-", ""), "Name" + i));
+			}
+			queue.putAll(userList.subList(0, 20));
+			for (User user : userList.subList(20, 40)) {
+				queue.put(user);
+			}
+			assertEquals("Size should count all partitions", userList.size(), queue.size());
+
+			for (int p = 0; p < partitions; p++) {
+				final var partition = p;
+				final var expected = new ArrayList<User>();
+				userList.stream().filter(u -> queue.partitionOf(u) == partition).forEach(expected::add);
+				assertEquals("Partition should hold its users in put order", expected,
+						queue.partition(p).takeBatch(userList.size(), 0, TimeUnit.MILLISECONDS));
+			}
+			assertTrue("Partitions should be empty", queue.isEmpty());
+
+			queue.putAll(userList);
+			final var drained = new ArrayList<User>();
+			assertEquals("Drain should be limited", 15, queue.drainTo(drained, 15));
+			assertEquals("Drain should take the rest", userList.size() - 15, queue.drainTo(drained));
+			assertEquals("Drained users should be the added users", userList.size(), drained.size());
+			assertTrue("Drained users should be the added users", drained.containsAll(userList));
+		} finally {
+			queue.clear();
+		}
+	}
+
+	@Test
+	public void partitionAssignmentTest() throws SQLException {
+		final var queue = UserQueue.partitioned(5);
+		final var assigned = new ArrayList<Object>();
+		for (int c = 0; c < 2; c++) {
+			assigned.addAll(queue.assignedTo(c, 2));
+		}
+		assertEquals("Every partition should be assigned once", 5, assigned.size());
+		assertEquals("Every partition should be assigned once", 5, new HashSet<>(assigned).size());
+		assertTrue("Extra consumers should get no partition", queue.assignedTo(5, 6).isEmpty());
+	}
+
+	@Test
+	public void pollingTest() throws InterruptedException, SQLException {
+		// two queues over one table stand for two processes sharing it
+		final var table = "suser_shared";
+		final var producer = UserQueue.forTable(table);
+		producer.clear();
+		final var consumers = new ArrayList<UserQueue>();
+		for (int i = 0; i < 2; i++) {
+			final var consumer = new UserQueue(table, Integer.MAX_VALUE, false, false) {
+			};
+			consumer.setPolling(1, 20, TimeUnit.MILLISECONDS);
+			consumers.add(consumer);
+		}
+		final var count = 60;
+		final var userList = createUserList(count);
+		final var taken = new ArrayList<User>();
+		final var threads = new ArrayList<Thread>();
+		for (UserQueue consumer : consumers) {
+			threads.add(new Thread(() -> {
+				try {
+					User user;
+					while ((user = consumer.take(500, TimeUnit.MILLISECONDS)) != null) {
+						synchronized (taken) {
+							taken.add(user);
+						}
+					}
+				} catch (InterruptedException | SQLException e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (User user : userList) {
+			producer.put(user);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("Every user should be taken once", count, taken.size());
+		assertEquals("Every user should be taken once", count, new HashSet<>(taken).size());
+		assertTrue("Taken users should be the added users", taken.containsAll(userList));
+		assertTrue("Shared table should be empty", consumers.get(0).isEmpty());
+	}
+
+	@Test
+	public void pollingCapacityTest() throws Exception {
+		final var table = "suser_shared";
+		UserQueue.forTable(table).clear();
+		final var producer = new UserQueue(table, 2, false, false) {
+		};
+		producer.setPolling(1, 20, TimeUnit.MILLISECONDS);
+		final var consumer = new UserQueue(table, Integer.MAX_VALUE, false, false) {
+		};
+		consumer.setPolling(1, 20, TimeUnit.MILLISECONDS);
+		producer.putAll(createUserList(2));
+		assertFalse("Full shared queue should refuse an offer", producer.offer(createUser()));
+		final var pending = producer.putAsync(createUser());
+
+		assertTrue("Consumer should take a user", consumer.take(1, TimeUnit.SECONDS) != null);
+		pending.get(5, TimeUnit.SECONDS);
+		assertTrue("Consumer should take a user", consumer.take(1, TimeUnit.SECONDS) != null);
+		assertTrue("Taken users should free room for the producer",
+				producer.offer(createUser(), 5, TimeUnit.SECONDS));
+		assertEquals("Shared table should hold the users left", 2, consumer.size());
+	}
+
+	@Test
+	public void networkServerTest() throws Exception {
+		try {
+			Class.forName("org.apache.derby.client.ClientAutoloadedDriver");
+		} catch (ClassNotFoundException e) {
+			Assume.assumeNoException("derbyclient is not on the class path", e);
+		}
+		final int port;
+		try (var socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		// the embedded engine runs already, the server starts regardless
+		DBUtils.startServer(port);
+		final var user = createUser();
+		UserQueue.getInstance().put(user);
+
+		final var props = new Properties();
+		props.put("user", "user1");
+		props.put("password", "user1");
+		final var pool = new ConnectionPool("jdbc:derby://localhost:" + port + "/" + DB_TEST, props, 1, 1);
+		try {
+			final var conn = pool.borrow();
+			try (var rs = pool.prepare(conn, "select USER_GUID from " + DBUtils.USER_TABLE).executeQuery()) {
+				assertTrue("Client should read the added user", rs.next());
+				assertEquals("Client should read the added user", user.getUserGuid(), rs.getString(1));
+				assertFalse("Client should read only the added user", rs.next());
+			} finally {
+				pool.release(conn);
+			}
+		} finally {
+			pool.close();
+		}
+		try {
+			DBUtils.startServer(port);
+			fail("Starting the server again should fail");
+		} catch (IllegalStateException e) {
+			// served already
+		}
+	}
+
+	@Test
+	public void consumerGroupTest() throws InterruptedException, SQLException {
+		final var cat = UserQueue.getInstance();
+		final var taken = Collections.synchronizedList(new ArrayList<User>());
+		final Supplier<AbstractConsumer<User>> factory = () -> new AbstractConsumer<User>(cat) {
+			@Override
+			protected void process(User user) {
+				taken.add(user);
+			}
+		};
+
+		// waiting consumers are stopped by interrupts
+		final var idle = ConsumerGroup.ofPlatformThreads(4, factory);
+		idle.start();
+		idle.shutdownNow();
+		assertTrue("Stopped consumers should exit", idle.awaitTermination(5, TimeUnit.SECONDS));
+
+		// waiting consumers are woken through the queue by a drain
+		final var waiting = ConsumerGroup.ofPlatformThreads(4, factory);
+		waiting.start();
+		Thread.sleep(200);
+		waiting.shutdown();
+		assertTrue("Drained waiting consumers should exit", waiting.awaitTermination(5, TimeUnit.SECONDS));
+
+		final var count = 40;
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+		final var group = ConsumerGroup.isVirtualThreadsSupported() ? ConsumerGroup.ofVirtualThreads(100, factory)
+				: ConsumerGroup.ofPlatformThreads(4, factory);
+		group.start();
+		group.shutdown();
+		assertTrue("Drained consumers should exit", group.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals("Drained consumers should take every user", count, taken.size());
+		assertTrue("Taken users should be the added users", taken.containsAll(userList));
+		assertTrue("Queue should be empty", cat.isEmpty());
+	}
+
+	@Test
+	public void payloadQueueTest() throws InterruptedException, SQLException {
+		final var queue = PayloadQueue.forTable("suser_payload", new UserCodec());
+		queue.clear();
+		final var userList = createUserList(20);
+		userList.add(new User(userId++, null, null));
+		queue.putAll(userList.subList(0, 10));
+		for (User user : userList.subList(10, userList.size())) {
+			queue.put(user);
+		}
+		assertEquals("Size should count added users", userList.size(), queue.size());
+		assertTrue("Added user should be contained", queue.contains(userList.get(3)));
+
+		final var lease = queue.lease(1, TimeUnit.MINUTES);
+		assertEquals("Lease should hold the head", userList.get(0), lease.getElement());
+		assertTrue("Lease should be acknowledged", lease.ack());
+
+		final var taken = new ArrayList<User>();
+		taken.add(queue.take());
+		taken.addAll(queue.takeBatch(userList.size()));
+		assertEquals("Taken users should be the added users in order", userList.subList(1, userList.size()), taken);
+		assertTrue("Queue should be empty", queue.isEmpty());
+	}
+
+	@Test
+	public void priorityQueueTest() throws InterruptedException, SQLException {
+		final var queue = DBPriorityBlockingQueue.forTable("suser_priority", new UserCodec(),
+				u -> u.getName().startsWith("VIP") ? 1 : 0);
+		queue.clear();
+		final var bulk = createUserList(10);
+		final var vips = new ArrayList<User>();
+		for (int i = 0; i < 3; i++) {
+			vips.add(new User(userId++, UUID.randomUUID().toString().replace("-", ""), "VIP" + i));
+		}
+		queue.putAll(bulk.subList(0, 5));
+		queue.put(vips.get(0));
+		queue.putAll(List.of(bulk.get(5), vips.get(1)));
+		for (User user : bulk.subList(6, bulk.size())) {
+			queue.put(user);
+		}
+		queue.put(vips.get(2));
+
+		assertEquals("Peek should return the oldest VIP", vips.get(0), queue.peek());
+		assertEquals("Take should return the oldest VIP", vips.get(0), queue.take());
+		final var lease = queue.lease(1, TimeUnit.MINUTES);
+		assertEquals("Lease should hold the next VIP", vips.get(1), lease.getElement());
+		assertTrue("Released lease should be held", lease.nack());
+		final var taken = new ArrayList<User>();
+		assertEquals("Drain should take all users", 12, queue.drainTo(taken));
+		final var expected = new ArrayList<User>(vips.subList(1, vips.size()));
+		expected.addAll(bulk);
+		assertEquals("VIPs should be taken before bulk users in order", expected, taken);
+		try {
+			queue.setPrefetch(10, 3);
+			fail("Priority queue should refuse prefetching");
+		} catch (IllegalStateException e) {
+			// like a polling queue
+		}
+	}
+
 	@Test
 	public void takeTimeoutTest() throws InterruptedException, SQLException {
 		final var cat = UserQueue.getInstance();
@@ -91,7 +636,34 @@ public class UserQueueTest {
 
 		long finish = System.nanoTime();
 		long timeElapsedInMs = (finish - start) / 1_000_000L;
-		assertTrue("Time elapsed should be greater or equal than time out", timeElapsedInMs > timeOutInMs);
+		assertTrue("Time elapsed should be greater or equal than time out", timeElapsedInMs >= timeOutInMs);
+	}
+
+	@Test
+	public void takeBatchTest() throws InterruptedException, SQLException {
+		final var count = 25;
+		final var max = 10;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+
+		final var taken = new ArrayList<User>();
+		while (taken.size() < count) {
+			final var batch = cat.takeBatch(max, 1, TimeUnit.SECONDS);
+			assertTrue("Batch should not exceed the maximum", batch.size() <= max);
+			assertTrue("Batch should not be empty while users are queued", !batch.isEmpty());
+			taken.addAll(batch);
+		}
+
+		assertEquals("Taken users should match added users in order", userList, taken);
+		assertTrue("Queue should be empty", cat.isEmpty());
+	}
+
+	@Test
+	public void takeBatchTimeoutTest() throws InterruptedException, SQLException {
+		final var cat = UserQueue.getInstance();
+		final var batch = cat.takeBatch(10, 500, TimeUnit.MILLISECONDS);
+		assertTrue("Batch should be empty", batch.isEmpty());
 	}
 
 	@Test
@@ -159,6 +731,26 @@ public class UserQueueTest {
 		assertEquals("Result size should match number of added users", count, resSize);
 	}
 
+	@Test
+	public void estimatedSizeTest() throws InterruptedException, SQLException {
+		final int count = 20;
+		final var cat = UserQueue.getInstance();
+		cat.putAll(createUserList(count));
+		assertEquals("Estimated size should match number of added users", count, cat.estimatedSize());
+		final var shared = UserQueue.forTable("suser_shared");
+		shared.clear();
+		shared.putAll(createUserList(3));
+		final var unused = new UserQueue("suser_shared", Integer.MAX_VALUE, false, false) {
+		};
+		assertEquals("Estimated size of an unused queue should count its table", 3, unused.estimatedSize());
+		shared.clear();
+
+		cat.take();
+		cat.takeBatch(4);
+		assertEquals("Estimated size should not count taken users", count - 5, cat.estimatedSize());
+		assertEquals("Estimated size should match size", cat.size(), cat.estimatedSize());
+	}
+
 	@Test
 	public void peekTest() throws InterruptedException, SQLException {
 		final var count = 100;
@@ -253,6 +845,229 @@ public class UserQueueTest {
 		}
 	}
 
+	@Test
+	public void iteratorTest() throws InterruptedException, SQLException {
+		final var count = 250;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+		cat.setFetchSize(16);
+
+		final var iterated = new ArrayList<User>();
+		try (var it = cat.iterator()) {
+			while (it.hasNext()) {
+				iterated.add(it.next());
+			}
+		}
+		assertEquals("Iterated users should match added users in order", userList, iterated);
+
+		try (var stream = cat.stream()) {
+			assertEquals("Stream should contain all added users", count, stream.count());
+		}
+		assertArrayEquals("Array should contain added users in order", userList.toArray(), cat.toArray());
+		assertArrayEquals("Typed array should contain added users in order", userList.toArray(new User[0]),
+				cat.toArray(new User[0]));
+	}
+
+	@Test
+	public void containsAndRemoveTest() throws InterruptedException, SQLException {
+		final var count = 10;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+
+		final var user = userList.get(4);
+		assertTrue("Queue should contain added user", cat.contains(user));
+		assertTrue("Added user should be removed", cat.remove(user));
+		assertFalse("Queue should not contain removed user", cat.contains(user));
+		assertFalse("Removed user should not be removed again", cat.remove(user));
+		assertEquals("Size should not count removed user", count - 1, cat.size());
+
+		final var lease = cat.lease(1, TimeUnit.MINUTES);
+		assertFalse("Leased user should not be removed", cat.remove(lease.getElement()));
+		assertEquals("Size should not change by a failed remove", count - 2, cat.size());
+		assertTrue("Leased user should be released", lease.nack());
+
+		userList.remove(4);
+		for (User expected : userList) {
+			assertEquals("Remaining users should keep their order", expected, cat.take());
+		}
+	}
+
+	@Test
+	public void keyLookupTest() throws InterruptedException, SQLException {
+		final var count = 10;
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(count);
+		cat.putAll(userList);
+
+		final var user = userList.get(3);
+		assertTrue("Queue should contain user by guid", cat.containsKey(UserQueue.KEY_USER_GUID, user.getUserGuid()));
+		assertTrue("Queue should contain user by id", cat.containsKey(UserQueue.KEY_USER_ID, user.getUserId()));
+		assertTrue("User should be removed by guid", cat.removeByKey(UserQueue.KEY_USER_GUID, user.getUserGuid()));
+		assertFalse("Queue should not contain removed user", cat.containsKey(UserQueue.KEY_USER_GUID, user.getUserGuid()));
+		assertFalse("Queue should not contain removed user", cat.containsKey(UserQueue.KEY_USER_ID, user.getUserId()));
+		assertFalse("Removed user should not be removed again", cat.removeByKey(UserQueue.KEY_USER_GUID, user.getUserGuid()));
+		assertEquals("Size should not count removed user", count - 1, cat.size());
+
+		assertTrue("User should be removed by id", cat.removeByKey(UserQueue.KEY_USER_ID, userList.get(0).getUserId()));
+		assertEquals("Head should move past removed user", userList.get(1), cat.peek());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownKeyTest() throws SQLException {
+		UserQueue.getInstance().containsKey("userName", "Name0");
+	}
+
+	@Test
+	public void printAllTest() throws InterruptedException, SQLException, IOException {
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(3);
+		cat.putAll(userList);
+
+		final var out = new StringBuilder();
+		cat.printAll(out);
+		for (User user : userList) {
+			assertTrue("Printed output should contain added user", out.indexOf(user.toString()) >= 0);
+		}
+		assertEquals("String should list added users", userList.toString(), cat.toString());
+	}
+
+	@Test
+	public void asyncTest() throws Exception {
+		final var cat = UserQueue.getInstance();
+		final var first = cat.takeAsync();
+		final var cancelled = cat.takeAsync();
+		final var batch = cat.takeBatchAsync(10);
+		assertTrue("Pending take should be cancelled", cancelled.cancel(false));
+		assertFalse("Take should wait for a user", first.isDone());
+
+		final var userList = createUserList(5);
+		final var puts = new ArrayList<CompletableFuture<?>>();
+		for (User user : userList) {
+			puts.add(cat.putAsync(user));
+		}
+		CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+		assertEquals("First take should get the first user", userList.get(0), first.get(10, TimeUnit.SECONDS));
+		final var taken = new ArrayList<User>();
+		taken.add(first.get());
+		taken.addAll(batch.get(10, TimeUnit.SECONDS));
+		while (taken.size() < userList.size()) {
+			taken.add(cat.takeAsync().get(10, TimeUnit.SECONDS));
+		}
+		assertEquals("Users should be taken once in order", userList, taken);
+		assertTrue("Queue should be empty", cat.isEmpty());
+	}
+
+	@Test
+	public void publisherTest() throws Exception {
+		final var cat = UserQueue.getInstance();
+		final var userList = createUserList(10);
+		cat.putAll(userList);
+		final var received = new LinkedBlockingQueue<User>();
+		final var subscription = new CompletableFuture<Flow.Subscription>();
+		cat.publisher().subscribe(new Flow.Subscriber<User>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription.complete(s);
+				s.request(4);
+			}
+
+			@Override
+			public void onNext(User user) {
+				received.add(user);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				t.printStackTrace();
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+
+		final var taken = new ArrayList<User>();
+		for (int i = 0; i < 4; i++) {
+			taken.add(received.poll(10, TimeUnit.SECONDS));
+		}
+		assertNull("No user should be delivered without demand", received.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals("No user should be taken without demand", 6, cat.size());
+
+		subscription.get().request(10);
+		for (int i = 0; i < 6; i++) {
+			taken.add(received.poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals("Users should be published once in order", userList, taken);
+		final var late = createUser();
+		cat.put(late);
+		assertEquals("Pending demand should take a later user", late, received.poll(10, TimeUnit.SECONDS));
+
+		subscription.get().cancel();
+		cat.put(createUser());
+		assertNull("No user should be delivered after cancel", received.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals("Cancelled subscription should leave users in the queue", 1, cat.size());
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+		final var cat = UserQueue.getInstance();
+		final var metrics = cat.getMetrics();
+		final long puts = metrics.getPutCount();
+		final long takes = metrics.getTakeCount();
+		final long commits = metrics.getCommitLatency().getCount();
+		final var userList = createUserList(10);
+		cat.putAll(userList);
+		cat.put(createUser());
+		cat.peek();
+		cat.takeBatch(5);
+		cat.take();
+
+		assertEquals("Put count should count added users", puts + 11, metrics.getPutCount());
+		assertEquals("Take count should count taken users", takes + 6, metrics.getTakeCount());
+		assertEquals("Depth should be the number of users", 5, metrics.getDepth());
+		assertTrue("Commits should be recorded", metrics.getCommitLatency().getCount() >= commits + 4);
+		assertTrue("Lock holds should be recorded", metrics.getLockHold().getCount() > 0);
+		assertTrue("Take latency should be positive", metrics.getTakeLatency().getP99Micros() > 0);
+
+		final var server = ManagementFactory.getPlatformMBeanServer();
+		final var name = metrics.getObjectName();
+		assertEquals("Metrics should be registered under the table name", DBUtils.USER_TABLE.toUpperCase(),
+				name.getKeyProperty("name"));
+		assertEquals("Registered depth should be readable", 5, server.getAttribute(name, "Depth"));
+		final var putLatency = (CompositeData) server.getAttribute(name, "PutLatency");
+		assertEquals("Registered latency should be composite data", metrics.getPutLatency().getCount(),
+				putLatency.get("count"));
+	}
+
+	@Test
+	public void statementCacheEvictionTest() throws InterruptedException, SQLException {
+		final var props = new Properties();
+		props.put("user", "user1");
+		props.put("password", "user1");
+		final var pool = new ConnectionPool("jdbc:derby:" + DB_TEST, props, 1, 1);
+		final var conn = pool.borrow();
+		PreparedStatement first;
+		try {
+			first = pool.prepare(conn, "select USER_ID from " + DBUtils.USER_TABLE);
+			UserQueue.getInstance().putAll(createUserList(2));
+			try (var rs = first.executeQuery()) {
+				assertTrue("First row should be read", rs.next());
+				final var second = pool.prepare(conn, "values 1");
+				try (var rs2 = second.executeQuery()) {
+					assertTrue("Second statement should execute", rs2.next());
+				}
+				assertFalse("Evicted statement should stay open while borrowed", first.isClosed());
+				assertTrue("Result set of the evicted statement should be readable", rs.next());
+			}
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		assertTrue("Evicted statement should be closed on release", first.isClosed());
+	}
+
 	private List<User> createUserList(int size) {
 		final var res = new ArrayList<User>();
 		for (int i = 0; i < size; i++) {
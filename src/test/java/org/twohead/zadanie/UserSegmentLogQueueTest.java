@@ -0,0 +1,196 @@
+package org.twohead.zadanie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twohead.zadanie.consumer.UserConsumer;
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.SegmentLog;
+import org.twohead.zadanie.queue.UserQueue;
+import org.twohead.zadanie.queue.UserSegmentLogQueue;
+
+public class UserSegmentLogQueueTest {
+
+	/** Holds a few users per segment, so tests roll over segments */
+	private static final int SEGMENT_SIZE = 512;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private int userId = 0;
+	private Path dir;
+	private SegmentLog log;
+
+	@Before
+	public void open() throws IOException {
+		dir = folder.getRoot().toPath().resolve("log");
+		log = new SegmentLog(dir, SEGMENT_SIZE, false);
+	}
+
+	@After
+	public void close() throws IOException {
+		log.close();
+	}
+
+	@Test
+	public void takeTest() throws InterruptedException, SQLException {
+		final var queue = new UserSegmentLogQueue(log);
+		final var userList = createUserList(50);
+		for (User user : userList) {
+			queue.put(user);
+		}
+		assertEquals("Size should count added users", userList.size(), queue.size());
+		assertEquals("Peek should return the head", userList.get(0), queue.peek());
+
+		final var taken = new ArrayList<User>();
+		taken.add(queue.take());
+		taken.addAll(queue.takeBatch(19));
+		while (taken.size() < userList.size()) {
+			taken.add(queue.take(1, TimeUnit.SECONDS));
+		}
+		assertEquals("Taken users should be the added users in order", userList, taken);
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertNull("Taken user should be null", queue.take(10, TimeUnit.MILLISECONDS));
+		assertEquals("Consumed segments should be deleted", 1, log.getSegmentCount());
+	}
+
+	@Test
+	public void reopenTest() throws InterruptedException, SQLException, IOException {
+		final var queue = new UserSegmentLogQueue(log);
+		final var userList = createUserList(30);
+		queue.putAll(userList);
+		final var taken = queue.takeBatch(12);
+		log.close();
+
+		log = new SegmentLog(dir, SEGMENT_SIZE, false);
+		final var reopened = new UserSegmentLogQueue(log);
+		assertEquals("Reopened queue should hold the users not taken", 18, reopened.size());
+		while (!reopened.isEmpty()) {
+			taken.add(reopened.take());
+		}
+		assertEquals("Users should be taken once in order across reopening", userList, taken);
+	}
+
+	@Test
+	public void removeTest() throws InterruptedException, SQLException, IOException {
+		final var queue = new UserSegmentLogQueue(log);
+		final var userList = createUserList(10);
+		queue.putAll(userList);
+		final var removed = userList.remove(5);
+		final var guid = userList.remove(7).getUserGuid();
+
+		assertTrue("Contained user should be removed", queue.remove(removed));
+		assertFalse("Removed user should not be contained", queue.contains(removed));
+		assertTrue("User should be found by key", queue.containsKey(UserQueue.KEY_USER_GUID, guid));
+		assertTrue("User should be removed by key", queue.removeByKey(UserQueue.KEY_USER_GUID, guid));
+		try {
+			queue.containsKey("userName", removed.getName());
+			fail("Undeclared key should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		final var iterated = new ArrayList<User>();
+		queue.iterator().forEachRemaining(iterated::add);
+		assertEquals("Iteration should skip removed users", userList, iterated);
+		log.close();
+
+		log = new SegmentLog(dir, SEGMENT_SIZE, false);
+		final var reopened = new UserSegmentLogQueue(log);
+		final var drained = new ArrayList<User>();
+		reopened.drainTo(drained);
+		assertEquals("Removed users should stay removed across reopening", userList, drained);
+	}
+
+	@Test
+	public void clearTest() throws InterruptedException, SQLException {
+		final var queue = new UserSegmentLogQueue(log);
+		queue.putAll(createUserList(40));
+		assertTrue("Users should span several segments", log.getSegmentCount() > 1);
+		queue.clear();
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Cleared log should keep one segment", 1, log.getSegmentCount());
+
+		final var user = new User(userId++, null, "Name");
+		queue.put(user);
+		assertEquals("Users without guid should be kept", user, queue.take());
+	}
+
+	@Test
+	public void unsupportedTest() throws InterruptedException, SQLException {
+		final var queue = new UserSegmentLogQueue(log);
+		final var user = createUserList(1).get(0);
+		queue.put(user);
+		assertFalse("Queue should not support leases", queue.isLeaseSupported());
+		assertFalse("Queue should not support dead letters", queue.isDeadLetterSupported());
+		try {
+			queue.lease(1, TimeUnit.MINUTES);
+			fail("Lease should be unsupported");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			queue.deadLetter(user, null);
+			fail("Dead letter should be unsupported");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertEquals("Dead letters should not be counted", 0, queue.deadLetterCount());
+		try {
+			new UserConsumer(queue);
+			fail("Consumer should need a dead-letter table");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("Rejected lease should leave the user", user, queue.take(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void asyncCapacityTest() throws Exception {
+		final var queue = new UserSegmentLogQueue(log, 2, false, false);
+		final var userList = createUserList(5);
+		final var puts = new ArrayList<CompletableFuture<Void>>();
+		for (User user : userList) {
+			puts.add(queue.putAsync(user));
+		}
+		puts.get(1).get(10, TimeUnit.SECONDS);
+		assertFalse("Put should wait for room", puts.get(2).isDone());
+		assertEquals("Queue should be full", 2, queue.size());
+
+		final var taken = new ArrayList<User>();
+		taken.add(queue.takeAsync().get(10, TimeUnit.SECONDS));
+		puts.get(2).get(10, TimeUnit.SECONDS);
+		assertFalse("Put should wait for room", puts.get(3).isDone());
+		while (taken.size() < userList.size()) {
+			taken.addAll(queue.takeBatchAsync(2).get(10, TimeUnit.SECONDS));
+		}
+		assertEquals("Waiting puts should be added in order", userList, taken);
+		puts.get(4).get(10, TimeUnit.SECONDS);
+	}
+
+	private List<User> createUserList(int size) {
+		final var res = new ArrayList<User>();
+		for (int i = 0; i < size; i++) {
+			res.add(new User(userId, UUID.randomUUID().toString().substring(0, 32), "Name" + userId));
+			userId++;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,103 @@
+package org.twohead.zadanie.bench;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.queue.DBBlockingQueue;
+import org.twohead.zadanie.queue.PayloadQueue;
+import org.twohead.zadanie.queue.UserCodec;
+import org.twohead.zadanie.queue.UserQueue;
+
+/**
+ * Compares users stored one column per field by {@link UserQueue} with users
+ * stored as binary payloads by a {@link PayloadQueue} and {@link UserCodec}.
+ * Each round puts the users in batches and takes them in batches, then puts
+ * and takes them one at a time, and reports the throughput of both phases and
+ * the size of the encoded users.
+ *
+ * <p>
+ * Arguments: users per round, batch size.
+ */
+public class CodecBenchmark {
+
+	private static final String DB_BENCH = "derbyDBBench";
+	private static final String PAYLOAD_TABLE = "suser_payload";
+	private static final int DEFAULT_USERS = 2000;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		final var users = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_USERS;
+		final var batchSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BATCH_SIZE;
+
+		DBUtils.init(DB_BENCH);
+		try {
+			final var columns = UserQueue.getInstance();
+			final var payloads = PayloadQueue.forTable(PAYLOAD_TABLE, new UserCodec());
+			columns.clear();
+			payloads.clear();
+			final var userList = createUserList(users);
+
+			final var codec = new UserCodec();
+			long bytes = 0;
+			for (User user : userList) {
+				bytes += codec.encode(user).length;
+			}
+			System.out.println(String.format("encoded user size %.1f bytes", (double) bytes / users));
+
+			// the first round warms up the statement cache and JIT
+			for (int round = 0; round < ROUNDS; round++) {
+				run("columns", columns, userList, batchSize);
+				run("payload", payloads, userList, batchSize);
+			}
+		} finally {
+			DBUtils.getInstance().shutdown(true);
+		}
+	}
+
+	private static void run(String name, DBBlockingQueue<User> queue, List<User> userList, int batchSize)
+			throws InterruptedException, SQLException {
+		var start = System.nanoTime();
+		for (int i = 0; i < userList.size(); i += batchSize) {
+			queue.putAll(userList.subList(i, Math.min(userList.size(), i + batchSize)));
+		}
+		final var taken = new ArrayList<User>(userList.size());
+		while (taken.size() < userList.size()) {
+			taken.addAll(queue.takeBatch(batchSize));
+		}
+		final var batched = System.nanoTime() - start;
+		check(userList, taken);
+
+		start = System.nanoTime();
+		for (User user : userList) {
+			queue.put(user);
+		}
+		taken.clear();
+		while (taken.size() < userList.size()) {
+			taken.add(queue.take());
+		}
+		final var single = System.nanoTime() - start;
+		check(userList, taken);
+
+		final var ops = 2L * userList.size();
+		System.out.println(String.format("%s: batched %.0f ops/s, single %.0f ops/s", name, ops * 1e9 / batched,
+				ops * 1e9 / single));
+	}
+
+	private static void check(List<User> expected, List<User> taken) {
+		if (!expected.equals(taken)) {
+			System.err.println("Taken users differ from the put users");
+		}
+	}
+
+	private static List<User> createUserList(int size) {
+		final var res = new ArrayList<User>();
+		for (int i = 0; i < size; i++) {
+			res.add(new User(i, String.format("%032x", i), "Name" + i));
+		}
+		return res;
+	}
+}
@@ -0,0 +1,108 @@
+package org.twohead.zadanie.bench;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.twohead.zadanie.model.User;
+import org.twohead.zadanie.persistance.DBUtils;
+import org.twohead.zadanie.queue.Durability;
+import org.twohead.zadanie.queue.UserQueue;
+
+/**
+ * Measures put/take throughput of {@link UserQueue} as producers and consumers
+ * are added. Every producer puts the same number of users one at a time, the
+ * consumers take them all; a run is timed from the start of the first producer
+ * to the last take.
+ *
+ * <p>
+ * Arguments: lock mode ({@code single} or {@code split}), users per producer,
+ * prefetch size (0 disables prefetching), durability of puts ({@code SYNC},
+ * {@code GROUP} or {@code ASYNC}).
+ */
+public class QueueScalingBenchmark {
+
+	private static final String DB_BENCH = "derbyDBBench";
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final int DEFAULT_OPS_PER_PRODUCER = 500;
+
+	public static void main(String[] args) throws Exception {
+		final var mode = args.length > 0 ? args[0] : "single";
+		final var opsPerProducer = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPS_PER_PRODUCER;
+		final var prefetch = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		final var durability = args.length > 3 ? Durability.valueOf(args[3]) : Durability.SYNC;
+		final var maxThreads = THREADS[THREADS.length - 1];
+
+		DBUtils.init(DB_BENCH, 2 * maxThreads + 1);
+		UserQueue.init(true, "split".equals(mode));
+		final var queue = UserQueue.getInstance();
+		try {
+			queue.clear();
+			queue.setPrefetch(prefetch, prefetch / 4);
+			queue.setDurability(durability);
+			// warm up the statement cache and JIT
+			run(queue, 1, 1, opsPerProducer);
+
+			System.out.println("- " + mode + " lock, prefetch " + prefetch + ", " + durability + " commit -------------------------------");
+			for (int producers : THREADS) {
+				for (int consumers : THREADS) {
+					final var nanos = run(queue, producers, consumers, opsPerProducer);
+					if (!queue.isEmpty()) {
+						System.err.println("Queue not drained after run, size " + queue.size());
+					}
+					final var ops = 2L * producers * opsPerProducer;
+					System.out.println(String.format("producers=%d consumers=%d ops=%d time=%dms throughput=%.0f ops/s",
+							producers, consumers, ops, nanos / 1_000_000L, ops * 1e9 / nanos));
+				}
+			}
+		} finally {
+			DBUtils.getInstance().shutdown(true);
+		}
+	}
+
+	/**
+	 * Runs one round and returns its duration in nanoseconds.
+	 */
+	private static long run(UserQueue queue, int producers, int consumers, int opsPerProducer)
+			throws InterruptedException, SQLException {
+		final var start = new CountDownLatch(1);
+		final var remaining = new AtomicInteger(producers * opsPerProducer);
+		final var threads = new ArrayList<Thread>();
+
+		for (int p = 0; p < producers; p++) {
+			final var producerId = p;
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < opsPerProducer; i++) {
+						queue.put(new User(i, "p" + producerId + "-" + i, "Name" + i));
+					}
+				} catch (InterruptedException | SQLException e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+		for (int c = 0; c < consumers; c++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					// every claimed ticket is one element still to take
+					while (remaining.getAndDecrement() > 0) {
+						queue.take();
+					}
+				} catch (InterruptedException | SQLException e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+
+		threads.forEach(Thread::start);
+		final var begin = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		return System.nanoTime() - begin;
+	}
+}